@@ -0,0 +1,40 @@
+package io.dockstore.provision;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Chunk size calculation, run for every upload.  The adaptive one assumes a 100 MB/s link.
+ *
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChunkSizeBenchmark {
+    // Small file, the 150 GB boundary, and a file large enough to need bigger chunks
+    @Param({ "1024", "150000000000", "5000000000000" })
+    public long sizeInBytes;
+
+    @Benchmark
+    public String getChunkSize() {
+        return S3CmdPluginHelper.getChunkSize(sizeInBytes);
+    }
+
+    @Benchmark
+    public long getChunkSizeInBytes() {
+        return S3CmdPluginHelper.getChunkSizeInBytes(sizeInBytes);
+    }
+
+    @Benchmark
+    public long getAdaptiveChunkSizeInBytes() {
+        return S3CmdPluginHelper.getAdaptiveChunkSizeInBytes(sizeInBytes, 100.0 * 1024 * 1024, 0.001);
+    }
+}
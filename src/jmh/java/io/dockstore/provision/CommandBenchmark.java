@@ -0,0 +1,39 @@
+package io.dockstore.provision;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building and splitting an 's3cmd put' command the way upload and executeConsoleCommand do
+ *
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandBenchmark {
+    private final String client = "/usr/bin/s3cmd";
+    private final String configLocation = "/home/user/.s3cfg";
+    private final Path sourceFile = Paths.get("/home/user/datastore/launcher-a8a39655/outputs/my sample.bam");
+    private final String destPath = "s3://dockstore.temp/dir/my sample.bam";
+    private final long sizeInBytes = 200000000000L;
+
+    @Benchmark
+    public String buildCommand() {
+        return client + " -c " + configLocation + " put " + sourceFile.toString().replace(" ", "%32") + " " + destPath
+                + S3CmdPluginHelper.getChunkSize(sizeInBytes);
+    }
+
+    @Benchmark
+    public String[] buildAndSplitCommand() {
+        return S3CmdPluginHelper.splitCommand(buildCommand());
+    }
+}
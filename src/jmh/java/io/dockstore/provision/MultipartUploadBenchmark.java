@@ -0,0 +1,94 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * End-to-end multipart uploads with the native transport against the stub S3 server, with a round trip added to every request.
+ * Compares the getChunkSize floor with the adaptive chunk size learned from a history of fast uploads.
+ *
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MultipartUploadBenchmark {
+    private static final int SIZE_IN_BYTES = 120 * 1024 * 1024;
+
+    @Param({ "false", "true" })
+    public boolean adaptive;
+
+    @Param({ "50" })
+    public long latencyMillis;
+
+    private StubS3Server server;
+    private Path directory;
+    private Path source;
+    private S3CmdPlugin.S3CmdProvision provision;
+    private PrintStream originalOut;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new StubS3Server();
+        server.setLatencyMillis(latencyMillis);
+        directory = Files.createTempDirectory("multipart-benchmark");
+        source = directory.resolve("upload.bin");
+        byte[] content = new byte[SIZE_IN_BYTES];
+        new Random(1).nextBytes(content);
+        Files.write(source, content);
+        Map<String, String> config = new HashMap<>();
+        config.put("client", "/does/not/exist/s3cmd");
+        config.put("config-file-location", server.writeConfig(directory).toString());
+        config.put("transport", "native");
+        config.put("adaptive-chunk-size", Boolean.toString(adaptive));
+        Path historyFile = directory.resolve("history.json");
+        config.put("transfer-history-file", historyFile.toString());
+        // A history of 1 GB/s uploads, as on a fast link within a region
+        TransferHistory history = TransferHistory.getInstance(historyFile);
+        for (int i = 0; i < 5; i++) {
+            history.record(config.get("config-file-location"), 1024L * 1024 * 1024, 1000, 1, 0, true);
+        }
+        provision = new S3CmdPlugin.S3CmdProvision();
+        provision.setConfiguration(config);
+        // Keep the upload output out of the benchmark results
+        originalOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @Benchmark
+    public boolean upload() {
+        // The same key every time, so the stub server only ever holds one copy
+        return provision.uploadTo("s3cmd://benchmark/upload.bin", source, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(originalOut);
+        server.close();
+    }
+}
@@ -0,0 +1,89 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The fixed cost of shelling out, measured with a fake client script that prints what 's3cmd get' prints and exits
+ *
+ * @since 18/10/26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProcessSpawnBenchmark {
+    private Path directory;
+    private Path client;
+    private S3CmdPlugin.S3CmdProvision provision;
+    private PrintStream originalOut;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("spawn-benchmark");
+        client = directory.resolve("s3cmd");
+        Files.write(client, Arrays.asList("#!/bin/sh", "echo \"download: 's3://bucket/object' -> 'object'  [1 of 1]\"",
+                "echo \" 33 of 33   100% in    0s    95.46 B/s  done\""), StandardCharsets.UTF_8);
+        client.toFile().setExecutable(true);
+        Map<String, String> config = new HashMap<>();
+        config.put("client", client.toString());
+        config.put("config-file-location", directory.resolve(".s3cfg").toString());
+        provision = new S3CmdPlugin.S3CmdProvision();
+        provision.setConfiguration(config);
+        // Keep the s3cmd output out of the benchmark results
+        originalOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.setOut(originalOut);
+        Files.delete(client);
+        Files.delete(directory);
+    }
+
+    /**
+     * Only the process itself, for comparison with the plugin overhead
+     */
+    @Benchmark
+    public int spawnProcess() throws Exception {
+        Process process = new ProcessBuilder(client.toString(), "get", "s3://bucket/object").redirectErrorStream(true).start();
+        byte[] buffer = new byte[8192];
+        while (process.getInputStream().read(buffer) != -1) {
+            // Drain the output like the plugin does
+        }
+        return process.waitFor();
+    }
+
+    /**
+     * A whole download through the plugin: configuration, command construction, spawn, output parsing and exit code check
+     */
+    @Benchmark
+    public boolean downloadFrom() {
+        return provision.downloadFrom("s3cmd://bucket/object", directory.resolve("object"));
+    }
+}
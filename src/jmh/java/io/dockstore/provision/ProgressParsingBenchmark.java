@@ -0,0 +1,71 @@
+package io.dockstore.provision;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of the s3cmd output, which runs on every line (and progress redraw) of every transfer
+ *
+ * @since 18/10/26
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProgressParsingBenchmark {
+    private static final String HEADER = "upload: '/home/user/datastore/launcher-a8a39655/outputs/sample.bam' -> 's3://dockstore.temp/sample.bam'  "
+            + "[part 2 of 5, 15MB] [1 of 1]";
+    private static final String PROGRESS = " 15728640 of 15728640   100% in    1s    11.84 MB/s  done";
+    private static final String MESSAGE = "WARNING: Module python-magic is not available. Guessing MIME types based on file extensions.";
+
+    private byte[] output;
+    private S3CmdProgressParser parser;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(MESSAGE).append('\n');
+        for (int part = 1; part <= 5; part++) {
+            builder.append(HEADER.replace("part 2", "part " + part)).append('\n');
+            for (int percent = 1; percent < 100; percent++) {
+                builder.append(' ').append(157286L * percent).append(" of 15728640   ").append(percent).append("% in    1s    11.84 MB/s\r");
+            }
+            builder.append(PROGRESS).append('\n');
+        }
+        output = builder.toString().getBytes(StandardCharsets.UTF_8);
+        parser = new S3CmdProgressParser(new ProgressListener() {
+            @Override
+            public void onMessage(String line) {
+                blackhole.consume(line);
+            }
+
+            @Override
+            public void onProgress(ProgressEvent event) {
+                blackhole.consume(event);
+            }
+        }, 0);
+    }
+
+    @Benchmark
+    public void nextLinesRequireCarriageReturn(Blackhole blackhole) {
+        blackhole.consume(S3CmdPluginHelper.nextLinesRequireCarriageReturn(HEADER));
+        blackhole.consume(S3CmdPluginHelper.nextLinesRequireCarriageReturn(PROGRESS));
+        blackhole.consume(S3CmdPluginHelper.nextLinesRequireCarriageReturn(MESSAGE));
+    }
+
+    /**
+     * The output of a 5 part upload with a redraw for every percent, every update is published
+     */
+    @Benchmark
+    public void parseUploadOutput() {
+        parser.feed(output, 0, output.length);
+    }
+}
@@ -0,0 +1,187 @@
+package io.dockstore.provision;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * One load test scenario, parsed from a spec of space-separated key=value pairs, for example
+ * {@code name=small files=1000 sizes=1k-64k shape=10x2 concurrency=8 latency=5 set.pipeline-linger-ms=0}
+ * <ul>
+ * <li>files: the number of files</li>
+ * <li>sizes: a fixed size (64k), sizes spread evenly on a log scale between two sizes (1k-64k), or a weighted mix of those (90%16k,10%8m)</li>
+ * <li>shape: flat for one directory, or WxD for W subdirectories per level, D levels deep, with the files spread over the deepest ones</li>
+ * <li>concurrency: the number of files transferred at once (batch-workers and recursive-download-workers)</li>
+ * <li>mode: batch to transfer every file with uploadTo/downloadFrom of a list, or directory for one recursive transfer of the tree</li>
+ * <li>transport: native or s3cmd</li>
+ * <li>latency: milliseconds the stub server waits before answering each request</li>
+ * <li>set.KEY: any other plugin setting</li>
+ * </ul>
+ *
+ * @since 18/10/26
+ */
+final class LoadScenario {
+    private String name = "default";
+    private int files = 100;
+    private String sizes = "64k";
+    private String shape = "flat";
+    private int concurrency = 4;
+    private String mode = "batch";
+    private String transport = "native";
+    private long latencyMillis;
+    private final Map<String, String> settings = new HashMap<>();
+
+    static LoadScenario parse(String spec) {
+        LoadScenario scenario = new LoadScenario();
+        for (String pair : spec.trim().split("\\s+")) {
+            int equals = pair.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Expected key=value in scenario: " + pair);
+            }
+            String key = pair.substring(0, equals);
+            String value = pair.substring(equals + 1);
+            switch (key) {
+            case "name":
+                scenario.name = value;
+                break;
+            case "files":
+                scenario.files = Integer.parseInt(value);
+                break;
+            case "sizes":
+                scenario.sizes = value;
+                break;
+            case "shape":
+                scenario.shape = value;
+                break;
+            case "concurrency":
+                scenario.concurrency = Integer.parseInt(value);
+                break;
+            case "mode":
+                scenario.mode = value;
+                break;
+            case "transport":
+                scenario.transport = value;
+                break;
+            case "latency":
+                scenario.latencyMillis = Long.parseLong(value);
+                break;
+            default:
+                if (!key.startsWith("set.")) {
+                    throw new IllegalArgumentException("Unknown scenario key: " + key);
+                }
+                scenario.settings.put(key.substring("set.".length()), value);
+            }
+        }
+        // Fail on a malformed spec before any file is written
+        scenario.drawSizes(new Random(0));
+        scenario.layout();
+        return scenario;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getConcurrency() {
+        return concurrency;
+    }
+
+    boolean isDirectoryMode() {
+        return "directory".equals(mode);
+    }
+
+    String getTransport() {
+        return transport;
+    }
+
+    long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    Map<String, String> getSettings() {
+        return settings;
+    }
+
+    /**
+     * @param random The source of randomness, seeded so that every run of a scenario writes the same files
+     * @return The size of every file in bytes
+     */
+    long[] drawSizes(Random random) {
+        List<Double> weights = new ArrayList<>();
+        List<long[]> ranges = new ArrayList<>();
+        for (String part : sizes.split(",")) {
+            int percent = part.indexOf('%');
+            weights.add(percent < 0 ? 1 : Double.parseDouble(part.substring(0, percent)));
+            String range = part.substring(percent + 1);
+            int dash = range.indexOf('-');
+            ranges.add(dash < 0 ? new long[] { parseSize(range), parseSize(range) }
+                    : new long[] { parseSize(range.substring(0, dash)), parseSize(range.substring(dash + 1)) });
+        }
+        double totalWeight = weights.stream().mapToDouble(Double::doubleValue).sum();
+        long[] drawn = new long[files];
+        for (int i = 0; i < files; i++) {
+            double pick = random.nextDouble() * totalWeight;
+            int index = 0;
+            while (index < weights.size() - 1 && pick >= weights.get(index)) {
+                pick -= weights.get(index);
+                index++;
+            }
+            long[] range = ranges.get(index);
+            // Log-uniform, so that a wide range is not dominated by its largest sizes
+            double low = Math.log(Math.max(1, range[0]));
+            double high = Math.log(Math.max(1, range[1]));
+            drawn[i] = range[0] == range[1] ? range[0] : Math.round(Math.exp(low + random.nextDouble() * (high - low)));
+        }
+        return drawn;
+    }
+
+    /**
+     * @return The relative path of every file, with forward slashes
+     */
+    List<String> layout() {
+        List<String> directories = new ArrayList<>();
+        directories.add("");
+        if (!"flat".equals(shape)) {
+            String[] dimensions = shape.toLowerCase(Locale.ROOT).split("x");
+            int width = Integer.parseInt(dimensions[0]);
+            int depth = Integer.parseInt(dimensions[1]);
+            for (int level = 0; level < depth; level++) {
+                List<String> deeper = new ArrayList<>();
+                for (String directory : directories) {
+                    for (int i = 0; i < width; i++) {
+                        deeper.add(directory + "d" + i + "/");
+                    }
+                }
+                directories = deeper;
+            }
+        }
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            paths.add(directories.get(i % directories.size()) + "file" + i + ".bin");
+        }
+        return paths;
+    }
+
+    private static long parseSize(String size) {
+        String lower = size.trim().toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+        if (lower.endsWith("k")) {
+            multiplier = 1024;
+        } else if (lower.endsWith("m")) {
+            multiplier = 1024 * 1024;
+        } else if (lower.endsWith("g")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        String digits = multiplier == 1 ? lower : lower.substring(0, lower.length() - 1);
+        return Long.parseLong(digits) * multiplier;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + files + " files of " + sizes + ", " + shape + ", " + concurrency + " at once, " + mode + ", " + transport
+                + (latencyMillis > 0 ? ", " + latencyMillis + " ms latency" : "") + (settings.isEmpty() ? "" : ", " + settings) + ")";
+    }
+}
@@ -0,0 +1,355 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Drives S3CmdProvision with generated files against a local stub S3 server, and reports the throughput, latency percentiles,
+ * s3cmd processes and requests of every scenario, each the median of a few runs.  The results can be written to a file and
+ * compared with those of an earlier run (for example the previous release), which fails the run if any scenario got slower
+ * than the tolerance allows.
+ * <pre>
+ * mvn -P loadtest test-compile exec:exec
+ * mvn -P loadtest test-compile exec:exec -Dloadtest.args="--scenario 'name=tiny files=2000 sizes=1k' --output results.json"
+ * mvn -P loadtest test-compile exec:exec -Dloadtest.args="--runs 5 --baseline previous.json --tolerance 0.2"
+ * </pre>
+ * See LoadScenario for the scenario spec.  s3cmd scenarios (transport=s3cmd) need --client to point at an s3cmd client.
+ *
+ * @since 18/10/26
+ */
+public final class LoadTest {
+    private static final String BUCKET = "load-test";
+    private static final String[] DEFAULT_SCENARIOS = {
+        "name=small-flat files=500 sizes=1k-64k shape=flat concurrency=8",
+        "name=small-tree files=500 sizes=1k-64k shape=5x2 concurrency=8 mode=directory",
+        "name=mixed files=100 sizes=90%16k,10%4m-16m shape=4x1 concurrency=4",
+        "name=large files=4 sizes=40m concurrency=2 latency=5"
+    };
+    // Latencies this close are noise rather than a regression
+    private static final double LATENCY_SLACK_MILLIS = 5;
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<LoadScenario> scenarios = new ArrayList<>();
+        Path output = null;
+        Path baseline = null;
+        double tolerance = 0.2;
+        int runs = 3;
+        String client = "/usr/bin/s3cmd";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--scenario":
+                scenarios.add(LoadScenario.parse(args[++i]));
+                break;
+            case "--output":
+                output = Paths.get(args[++i]);
+                break;
+            case "--baseline":
+                baseline = Paths.get(args[++i]);
+                break;
+            case "--tolerance":
+                tolerance = Double.parseDouble(args[++i]);
+                break;
+            case "--runs":
+                runs = Integer.parseInt(args[++i]);
+                break;
+            case "--client":
+                client = args[++i];
+                break;
+            default:
+                System.err.println("Usage: LoadTest [--scenario SPEC]... [--runs 3] [--output FILE] [--baseline FILE] [--tolerance 0.2] [--client PATH]");
+                System.exit(2);
+            }
+        }
+        if (scenarios.isEmpty()) {
+            for (String spec : DEFAULT_SCENARIOS) {
+                scenarios.add(LoadScenario.parse(spec));
+            }
+        }
+        List<Result> results = new ArrayList<>();
+        for (LoadScenario scenario : scenarios) {
+            System.out.println("Running " + scenario);
+            results.addAll(median(scenario, client, runs));
+        }
+        System.out.println();
+        System.out.println(String.format("%-16s %-9s %6s %6s %10s %10s %9s %9s %9s %9s", "scenario", "operation", "files", "failed",
+                "MB/s", "files/s", "p50 ms", "p99 ms", "processes", "requests"));
+        for (Result result : results) {
+            System.out.println(result);
+        }
+        if (output != null) {
+            Files.write(output, GSON.toJson(results).getBytes(StandardCharsets.UTF_8));
+        }
+        if (baseline != null) {
+            List<String> regressions = compare(results, load(baseline), tolerance);
+            regressions.forEach(regression -> System.out.println("REGRESSION " + regression));
+            if (!regressions.isEmpty()) {
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Runs a scenario several times, since a single run is noisy (the first one also warms up the JIT)
+     *
+     * @return For each operation, the median of every measurement and the most failures of any run
+     */
+    static List<Result> median(LoadScenario scenario, String client, int runs) throws IOException {
+        List<List<Result>> all = new ArrayList<>();
+        for (int run = 0; run < Math.max(1, runs); run++) {
+            all.add(run(scenario, client));
+        }
+        List<Result> medians = new ArrayList<>();
+        for (int operation = 0; operation < all.get(0).size(); operation++) {
+            int index = operation;
+            List<Result> results = all.stream().map(run -> run.get(index)).collect(Collectors.toList());
+            Result median = new Result();
+            median.scenario = results.get(0).scenario;
+            median.operation = results.get(0).operation;
+            median.files = results.get(0).files;
+            median.failures = results.stream().mapToInt(result -> result.failures).max().orElse(0);
+            median.seconds = median(results, result -> result.seconds);
+            median.megabytesPerSecond = median(results, result -> result.megabytesPerSecond);
+            median.filesPerSecond = median(results, result -> result.filesPerSecond);
+            median.p50Millis = (long)median(results, result -> result.p50Millis);
+            median.p99Millis = (long)median(results, result -> result.p99Millis);
+            median.processes = (long)median(results, result -> result.processes);
+            median.requests = (long)median(results, result -> result.requests);
+            medians.add(median);
+        }
+        return medians;
+    }
+
+    private static double median(List<Result> results, ToDoubleFunction<Result> measurement) {
+        double[] sorted = results.stream().mapToDouble(measurement).sorted().toArray();
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Uploads the files of a scenario and downloads them again, each against a fresh stub server
+     *
+     * @param scenario The scenario
+     * @param client   The s3cmd client, for scenarios with the s3cmd transport
+     * @return The results of the upload and the download
+     */
+    static List<Result> run(LoadScenario scenario, String client) throws IOException {
+        Path directory = Files.createTempDirectory("load-test");
+        try (StubS3Server server = new StubS3Server()) {
+            server.setLatencyMillis(scenario.getLatencyMillis());
+            Path source = directory.resolve("source");
+            Path downloads = directory.resolve("downloads");
+            List<String> paths = scenario.layout();
+            long[] sizes = scenario.drawSizes(new Random(42));
+            Random random = new Random(7);
+            for (int i = 0; i < paths.size(); i++) {
+                Path file = source.resolve(paths.get(i));
+                Files.createDirectories(file.getParent());
+                byte[] content = new byte[(int)sizes[i]];
+                random.nextBytes(content);
+                Files.write(file, content);
+                Files.createDirectories(downloads.resolve(paths.get(i)).getParent());
+            }
+            long totalBytes = Arrays.stream(sizes).sum();
+
+            Map<String, String> config = new HashMap<>();
+            config.put("client", client);
+            config.put("config-file-location", server.writeConfig(directory).toString());
+            config.put("verbosity", "Minimal");
+            config.put("transport", scenario.getTransport());
+            config.put("batch-workers", Integer.toString(scenario.getConcurrency()));
+            config.put("recursive-download-workers", Integer.toString(scenario.getConcurrency()));
+            config.putAll(scenario.getSettings());
+            S3CmdPlugin.S3CmdProvision provision = new S3CmdPlugin.S3CmdProvision();
+            provision.setConfiguration(config);
+
+            String remote = "s3cmd://" + BUCKET + "/" + scenario.getName() + "/";
+            List<Result> results = new ArrayList<>();
+            if (scenario.isDirectoryMode()) {
+                results.add(measure(scenario, "upload", server, paths.size(), totalBytes,
+                        () -> Collections.singletonList(time(() -> provision.uploadTo(remote, source, Optional.empty())))));
+                results.add(measure(scenario, "download", server, paths.size(), totalBytes,
+                        () -> Collections.singletonList(time(() -> provision.downloadFrom(remote + "source/", downloads)))));
+            } else {
+                List<TransferRequest> uploads = new ArrayList<>();
+                List<TransferRequest> downloadRequests = new ArrayList<>();
+                for (String path : paths) {
+                    uploads.add(new TransferRequest(remote + path, source.resolve(path)));
+                    downloadRequests.add(new TransferRequest(remote + path, downloads.resolve(path)));
+                }
+                results.add(measure(scenario, "upload", server, paths.size(), totalBytes, () -> durations(provision.uploadTo(uploads))));
+                results.add(measure(scenario, "download", server, paths.size(), totalBytes,
+                        () -> durations(provision.downloadFrom(downloadRequests))));
+            }
+            return results;
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Runs one operation of a scenario with the plugin output silenced
+     *
+     * @param transfers Runs the transfers, returning the duration in milliseconds of each one, negative if it failed
+     */
+    private static Result measure(LoadScenario scenario, String operation, StubS3Server server, int files, long bytes,
+            Transfers transfers) {
+        TransferMetrics metrics = TransferMetrics.getInstance();
+        long processes = metrics.getProcessCount();
+        int requests = server.getRequestCount();
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        long start = System.nanoTime();
+        List<Long> durations;
+        try {
+            durations = transfers.run();
+        } finally {
+            System.setOut(originalOut);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        List<Long> latencies = durations.stream().filter(duration -> duration >= 0).sorted().collect(Collectors.toList());
+        Result result = new Result();
+        result.scenario = scenario.getName();
+        result.operation = operation;
+        result.files = files;
+        result.failures = durations.size() - latencies.size();
+        result.seconds = seconds;
+        result.megabytesPerSecond = bytes / 1024.0 / 1024.0 / seconds;
+        result.filesPerSecond = files / seconds;
+        result.p50Millis = percentile(latencies, 0.5);
+        result.p99Millis = percentile(latencies, 0.99);
+        result.processes = metrics.getProcessCount() - processes;
+        result.requests = server.getRequestCount() - requests;
+        return result;
+    }
+
+    private static List<Long> durations(List<TransferResult> results) {
+        return results.stream().map(result -> result.isSuccess() ? result.getDurationMillis() : -1L).collect(Collectors.toList());
+    }
+
+    private static long time(Transfer transfer) {
+        long start = System.nanoTime();
+        boolean success;
+        try {
+            success = transfer.run();
+        } catch (RuntimeException e) {
+            success = false;
+        }
+        return success ? (System.nanoTime() - start) / 1000000 : -1;
+    }
+
+    /**
+     * @return The nearest-rank percentile, 0 if there are no values
+     */
+    static long percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int)Math.ceil(fraction * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size(), rank) - 1));
+    }
+
+    /**
+     * @return A description of every scenario and operation that is slower than in the baseline, beyond the tolerance
+     */
+    static List<String> compare(List<Result> results, List<Result> baseline, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        for (Result result : results) {
+            for (Result before : baseline) {
+                if (!before.scenario.equals(result.scenario) || !before.operation.equals(result.operation)) {
+                    continue;
+                }
+                String name = result.scenario + " " + result.operation;
+                if (result.failures > before.failures) {
+                    regressions.add(name + ": " + result.failures + " failures, was " + before.failures);
+                }
+                if (result.megabytesPerSecond < before.megabytesPerSecond * (1 - tolerance)) {
+                    regressions.add(String.format("%s: %.1f MB/s, was %.1f MB/s", name, result.megabytesPerSecond, before.megabytesPerSecond));
+                }
+                if (result.p99Millis > before.p99Millis * (1 + tolerance) + LATENCY_SLACK_MILLIS) {
+                    regressions.add(name + ": p99 " + result.p99Millis + " ms, was " + before.p99Millis + " ms");
+                }
+                if (result.processes > before.processes * (1 + tolerance)) {
+                    regressions.add(name + ": " + result.processes + " s3cmd processes, was " + before.processes);
+                }
+            }
+        }
+        return regressions;
+    }
+
+    private static List<Result> load(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return Arrays.asList(GSON.fromJson(reader, Result[].class));
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private interface Transfer {
+        boolean run();
+    }
+
+    private interface Transfers {
+        List<Long> run();
+    }
+
+    /**
+     * The measurements of one operation of one scenario, as written to the results file
+     */
+    static final class Result {
+        private String scenario;
+        private String operation;
+        private int files;
+        private int failures;
+        private double seconds;
+        private double megabytesPerSecond;
+        private double filesPerSecond;
+        private long p50Millis;
+        private long p99Millis;
+        private long processes;
+        private long requests;
+
+        @Override
+        public String toString() {
+            return String.format("%-16s %-9s %6d %6d %10.1f %10.1f %9d %9d %9d %9d", scenario, operation, files, failures, megabytesPerSecond,
+                    filesPerSecond, p50Millis, p99Millis, processes, requests);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package io.dockstore.provision;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a batch of transfers on a bounded pool of workers.
+ * The largest transfers are started first so that the batch does not end with one big file running on its own,
+ * and no more than a fixed number of transfers run against the same bucket at once.
+ *
+ * @since 18/10/26
+ */
+class BatchScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchScheduler.class);
+
+    private final int workers;
+    private final int perBucketLimit;
+
+    /**
+     * @param workers        The maximum number of transfers running at once
+     * @param perBucketLimit The maximum number of transfers running against a single bucket at once
+     */
+    BatchScheduler(int workers, int perBucketLimit) {
+        this.workers = Math.max(1, workers);
+        this.perBucketLimit = Math.max(1, perBucketLimit);
+    }
+
+    /**
+     * Transfers every request and waits for all of them to finish
+     *
+     * @param requests The files to transfer
+     * @param sizes    The size of each request in bytes, used to start the largest first (negative if unknown)
+     * @param transfer Transfers a single request, returning whether it succeeded
+     * @return One result per request, in the same order as the requests
+     */
+    List<TransferResult> run(List<TransferRequest> requests, ToLongFunction<TransferRequest> sizes, Predicate<TransferRequest> transfer) {
+        List<Job> pending = new LinkedList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            TransferRequest request = requests.get(i);
+            pending.add(new Job(i, request, S3CmdPluginHelper.getBucketName(request.getRemotePath()), sizes.applyAsLong(request)));
+        }
+        // Stable sort, so equally sized (or unknown) files keep their order
+        pending.sort(Comparator.comparingLong((Job job) -> job.size).reversed());
+        TransferResult[] results = new TransferResult[requests.size()];
+        Map<String, Integer> activePerBucket = new HashMap<>();
+        Object lock = new Object();
+        int workerCount = Math.min(workers, Math.max(1, requests.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3cmd-batch-%d").build());
+        for (int i = 0; i < workerCount; i++) {
+            executor.execute(() -> {
+                while (true) {
+                    Job job;
+                    synchronized (lock) {
+                        job = next(pending, activePerBucket, lock);
+                        if (job == null) {
+                            return;
+                        }
+                    }
+                    try {
+                        results[job.index] = execute(job.request, transfer);
+                    } finally {
+                        synchronized (lock) {
+                            activePerBucket.merge(job.bucket, -1, Integer::sum);
+                            lock.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        List<TransferResult> resultList = new ArrayList<>(results.length);
+        for (TransferResult result : results) {
+            resultList.add(result);
+        }
+        return resultList;
+    }
+
+    /**
+     * Takes the largest pending job whose bucket is below its limit, waiting if every remaining job is blocked on its bucket
+     *
+     * @return The next job or null if there are none left
+     */
+    private Job next(List<Job> pending, Map<String, Integer> activePerBucket, Object lock) {
+        while (!pending.isEmpty()) {
+            Iterator<Job> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                Job job = iterator.next();
+                if (activePerBucket.getOrDefault(job.bucket, 0) < perBucketLimit) {
+                    iterator.remove();
+                    activePerBucket.merge(job.bucket, 1, Integer::sum);
+                    return job;
+                }
+            }
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static TransferResult execute(TransferRequest request, Predicate<TransferRequest> transfer) {
+        long start = System.nanoTime();
+        try {
+            boolean success = transfer.test(request);
+            return new TransferResult(request, success, null, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (RuntimeException e) {
+            LOG.error("Could not transfer " + request + ". " + e.getMessage());
+            return new TransferResult(request, false, e, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private static final class Job {
+        private final int index;
+        private final TransferRequest request;
+        private final String bucket;
+        private final long size;
+
+        private Job(int index, TransferRequest request, String bucket, long size) {
+            this.index = index;
+            this.request = request;
+            this.bucket = bucket;
+            this.size = size;
+        }
+    }
+}
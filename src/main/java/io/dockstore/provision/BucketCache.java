@@ -0,0 +1,127 @@
+package io.dockstore.provision;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide cache of buckets known to exist, shared by every S3CmdProvision instance.
+ * Entries are keyed by the s3cmd config file (which identifies the endpoint and credentials) and the bucket name,
+ * and expire after a TTL so that buckets deleted out from under us are eventually noticed.
+ * Concurrent callers asking about the same unknown bucket are coalesced so that the bucket is only checked/created once.
+ *
+ * @since 18/10/26
+ */
+final class BucketCache {
+    static final long DEFAULT_TTL_SECONDS = 600;
+    private static final BucketCache INSTANCE = new BucketCache(System::nanoTime);
+
+    private final ConcurrentMap<String, Long> knownBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final LongSupplier nanoClock;
+
+    BucketCache(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
+
+    static BucketCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Makes sure the bucket exists, only calling out to the verifier when the bucket is not already known
+     *
+     * @param endpoint   The endpoint the bucket lives on (the s3cmd config file location)
+     * @param bucket     The bucket name (ex. s3://bucket)
+     * @param ttlSeconds How long a positive answer is remembered for, 0 disables caching
+     * @param verifier   Checks (and creates if necessary) the bucket, returning true if it exists afterwards
+     * @return True if the bucket exists, false otherwise
+     */
+    boolean ensureBucket(String endpoint, String bucket, long ttlSeconds, BooleanSupplier verifier) {
+        String key = key(endpoint, bucket);
+        if (isKnown(key)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        CompletableFuture<Boolean> mine = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            misses.incrementAndGet();
+            return await(existing);
+        }
+        try {
+            // Another caller may have verified the bucket between the check above and putIfAbsent
+            if (isKnown(key)) {
+                hits.incrementAndGet();
+                mine.complete(true);
+                return true;
+            }
+            misses.incrementAndGet();
+            boolean exists = verifier.getAsBoolean();
+            if (exists && ttlSeconds > 0) {
+                knownBuckets.put(key, nanoClock.getAsLong() + TimeUnit.SECONDS.toNanos(ttlSeconds));
+            }
+            mine.complete(exists);
+            return exists;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private boolean isKnown(String key) {
+        Long expiry = knownBuckets.get(key);
+        return expiry != null && expiry - nanoClock.getAsLong() > 0;
+    }
+
+    /**
+     * Forgets a bucket, for example after an upload to it failed
+     *
+     * @param endpoint The endpoint the bucket lives on
+     * @param bucket   The bucket name (ex. s3://bucket)
+     */
+    void invalidate(String endpoint, String bucket) {
+        knownBuckets.remove(key(endpoint, bucket));
+    }
+
+    void clear() {
+        knownBuckets.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    private static String key(String endpoint, String bucket) {
+        return endpoint + '\n' + bucket;
+    }
+
+    private static boolean await(CompletableFuture<Boolean> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
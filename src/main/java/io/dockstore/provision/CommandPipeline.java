@@ -0,0 +1,124 @@
+package io.dockstore.provision;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Groups operations submitted by concurrent callers into batches, so that one s3cmd process can do the work of many.
+ * The first caller of a group waits up to the linger time for others to join (less if the batch fills up), then runs the
+ * whole batch on its own thread while the others wait for the result.  No threads of its own are needed.
+ * A batch command only has one exit code, so when a batch fails every operation in it runs again on its own, on its caller's
+ * thread, and each caller gets the exit code of its own operation.
+ *
+ * @param <T> The operations
+ * @since 18/10/26
+ */
+class CommandPipeline<T> {
+    private final long lingerNanos;
+    private final int maxBatchSize;
+    private final Map<String, Batch<T>> open = new HashMap<>();
+
+    /**
+     * @param lingerMillis How long the first operation of a batch waits for others
+     * @param maxBatchSize The most operations in one batch
+     */
+    CommandPipeline(long lingerMillis, int maxBatchSize) {
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, lingerMillis));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Adds an operation to the open batch of its group and waits for the batch to run
+     *
+     * @param group         Operations of the same group can run in the same command (ex. the same s3cmd verb and destination directory)
+     * @param operation     The operation
+     * @param batchCommand  Runs a batch of more than one operation, returning the exit code.  The one of the first operation of
+     *                      the batch is the one that runs.
+     * @param singleCommand Runs a single operation, returning the exit code
+     * @return The exit code of the operation
+     */
+    int submit(String group, T operation, ToIntFunction<List<T>> batchCommand, ToIntFunction<T> singleCommand) {
+        Batch<T> batch;
+        boolean leader;
+        synchronized (this) {
+            batch = open.get(group);
+            leader = batch == null;
+            if (leader) {
+                batch = new Batch<>();
+                open.put(group, batch);
+            }
+            batch.operations.add(operation);
+            if (batch.operations.size() >= maxBatchSize) {
+                open.remove(group, batch);
+                notifyAll();
+            }
+        }
+        if (leader) {
+            // An interrupt while lingering is only passed on once the batch ran, the other operations in it are not cancelled
+            boolean interrupted = linger(group, batch);
+            try {
+                batch.exitCode.complete(batch.operations.size() == 1 ? singleCommand.applyAsInt(operation)
+                        : batchCommand.applyAsInt(batch.operations));
+            } catch (RuntimeException e) {
+                batch.exitCode.completeExceptionally(e);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        int exitCode = await(batch);
+        if (exitCode != 0 && batch.operations.size() > 1) {
+            return singleCommand.applyAsInt(operation);
+        }
+        return exitCode;
+    }
+
+    /**
+     * Waits until the batch is full or the linger time is up, then closes it so that later operations start a new one
+     *
+     * @return Whether the wait was interrupted
+     */
+    private synchronized boolean linger(String group, Batch<T> batch) {
+        long deadline = System.nanoTime() + lingerNanos;
+        long remaining = lingerNanos;
+        try {
+            while (open.get(group) == batch && remaining > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+            return false;
+        } catch (InterruptedException e) {
+            // Run what there is
+            return true;
+        } finally {
+            open.remove(group, batch);
+        }
+    }
+
+    private static int await(Batch<?> batch) {
+        try {
+            return batch.exitCode.get();
+        } catch (InterruptedException e) {
+            // The batch still runs the operation, but the caller does not wait for it
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static final class Batch<T> {
+        private final List<T> operations = new ArrayList<>();
+        private final CompletableFuture<Integer> exitCode = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,55 @@
+package io.dockstore.provision;
+
+import java.io.PrintStream;
+
+/**
+ * Renders s3cmd output on the console, redrawing progress updates in place with carriage returns
+ *
+ * @since 18/10/26
+ */
+public class ConsoleProgressListener implements ProgressListener {
+    private static final String[] RATE_UNITS = { "B/s", "kB/s", "MB/s", "GB/s", "TB/s" };
+
+    private final PrintStream out;
+    private boolean progressShown = false;
+
+    public ConsoleProgressListener(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void onMessage(String line) {
+        endProgressLine();
+        out.println(line);
+    }
+
+    @Override
+    public void onProgress(ProgressEvent event) {
+        out.print("\r" + render(event));
+        progressShown = true;
+    }
+
+    @Override
+    public void onFinished() {
+        endProgressLine();
+        out.flush();
+    }
+
+    private void endProgressLine() {
+        if (progressShown) {
+            out.println();
+            progressShown = false;
+        }
+    }
+
+    static String render(ProgressEvent event) {
+        double rate = event.getBytesPerSecond();
+        int unit = 0;
+        while (rate >= 1024 && unit < RATE_UNITS.length - 1) {
+            rate /= 1024;
+            unit++;
+        }
+        return String.format("%12d of %d  %3d%% in %4ds  %8.2f %s%s", event.getBytesDone(), event.getBytesTotal(), event.getPercent(),
+                event.getElapsedSeconds(), rate, RATE_UNITS[unit], event.isDone() ? "  done" : "");
+    }
+}
@@ -0,0 +1,169 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiPredicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads every object of a listed directory with a pool of workers instead of a single 's3cmd get -r'.
+ * The objects are sorted by size and split into halves of roughly equal bytes; workers that run out of work steal
+ * the largest halves still queued, so one huge object does not hold up the rest of the directory.
+ *
+ * @since 18/10/26
+ */
+class DirectoryDownloader {
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryDownloader.class);
+
+    private final int workers;
+
+    /**
+     * @param workers The number of objects downloaded at once
+     */
+    DirectoryDownloader(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Downloads the objects into the same relative paths under the destination, like 's3cmd get -r' does
+     *
+     * @param directoryUrl The directory url ending with a slash (ex. s3://bucket/dir/)
+     * @param objects      The objects listed under the directory
+     * @param destination  The local directory
+     * @param transfer     Downloads a single object to the given file, returning whether it succeeded
+     * @return True if every object was downloaded
+     * @throws IOException If the local directories could not be created
+     */
+    boolean download(String directoryUrl, List<RemoteObject> objects, Path destination, BiPredicate<RemoteObject, Path> transfer)
+            throws IOException {
+        List<RemoteObject> sorted = new ArrayList<>();
+        Set<Path> directories = new LinkedHashSet<>();
+        directories.add(destination);
+        for (RemoteObject remoteObject : objects) {
+            String relative = remoteObject.getUrl().startsWith(directoryUrl) ? remoteObject.getUrl().substring(directoryUrl.length()) : "";
+            // Skip the zero byte "directory" placeholders some tools create
+            if (!relative.isEmpty() && !relative.endsWith("/")) {
+                sorted.add(remoteObject);
+                directories.add(destination.resolve(relative).getParent());
+            }
+        }
+        // Creating the tree up front keeps the workers from racing each other on shared parents
+        for (Path directory : directories) {
+            Files.createDirectories(directory);
+        }
+        sorted.sort(Comparator.comparingLong(RemoteObject::getSize).reversed());
+        long[] cumulativeWeight = new long[sorted.size() + 1];
+        for (int i = 0; i < sorted.size(); i++) {
+            // Weighing every object at least one byte keeps empty files from collapsing the split
+            cumulativeWeight[i + 1] = cumulativeWeight[i] + Math.max(0, sorted.get(i).getSize()) + 1;
+        }
+        if (sorted.isEmpty()) {
+            return true;
+        }
+        LOG.info("Downloading " + sorted.size() + " objects (" + (cumulativeWeight[sorted.size()] - sorted.size()) + " bytes) from "
+                + directoryUrl + " using " + Math.min(workers, sorted.size()) + " workers");
+        AtomicReference<RuntimeException> firstError = new AtomicReference<>();
+        ForkJoinPool pool = new ForkJoinPool(Math.min(workers, sorted.size()), DirectoryDownloader::newWorker, null, false);
+        try {
+            // Unlike invoke, waiting on the submitted task can be interrupted, which stops the workers and their processes
+            boolean success = pool.submit(
+                    new Split(sorted, cumulativeWeight, 0, sorted.size(), destination, directoryUrl, transfer, firstError)).get();
+            if (firstError.get() != null) {
+                throw firstError.get();
+            }
+            return success;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static ForkJoinWorkerThread newWorker(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("s3cmd-fanout-" + thread.getPoolIndex());
+        return thread;
+    }
+
+    /**
+     * Downloads the objects in [start, end), splitting them by weight while there is more than one
+     */
+    private static final class Split extends RecursiveTask<Boolean> {
+        private final List<RemoteObject> objects;
+        private final long[] cumulativeWeight;
+        private final int start;
+        private final int end;
+        private final Path destination;
+        private final String directoryUrl;
+        private final BiPredicate<RemoteObject, Path> transfer;
+        private final AtomicReference<RuntimeException> firstError;
+
+        private Split(List<RemoteObject> objects, long[] cumulativeWeight, int start, int end, Path destination, String directoryUrl,
+                BiPredicate<RemoteObject, Path> transfer, AtomicReference<RuntimeException> firstError) {
+            this.objects = objects;
+            this.cumulativeWeight = cumulativeWeight;
+            this.start = start;
+            this.end = end;
+            this.destination = destination;
+            this.directoryUrl = directoryUrl;
+            this.transfer = transfer;
+            this.firstError = firstError;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (end - start == 1) {
+                return transferOne(objects.get(start));
+            }
+            int middle = split();
+            Split second = new Split(objects, cumulativeWeight, middle, end, destination, directoryUrl, transfer, firstError);
+            // The forked half sits at the bottom of this worker's queue, where idle workers steal from
+            second.fork();
+            boolean firstSuccess = new Split(objects, cumulativeWeight, start, middle, destination, directoryUrl, transfer, firstError)
+                    .compute();
+            return second.join() && firstSuccess;
+        }
+
+        /**
+         * @return The index that splits [start, end) into two non-empty halves of about the same weight
+         */
+        private int split() {
+            long half = (cumulativeWeight[start] + cumulativeWeight[end]) / 2;
+            int middle = start + 1;
+            while (middle < end - 1 && cumulativeWeight[middle] < half) {
+                middle++;
+            }
+            return middle;
+        }
+
+        private boolean transferOne(RemoteObject remoteObject) {
+            Path target = destination.resolve(remoteObject.getUrl().substring(directoryUrl.length()));
+            try {
+                return transfer.test(remoteObject, target);
+            } catch (RuntimeException e) {
+                LOG.error("Could not download " + remoteObject.getUrl() + ". " + e.getMessage());
+                firstError.compareAndSet(null, e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The size, modification time and MD5 of every file in a directory, as it was when the directory was last uploaded.
+ * Hashes are only recomputed for files whose size or modification time changed since the previous manifest.
+ *
+ * @since 18/10/26
+ */
+class DirectoryManifest {
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryManifest.class);
+    private static final Gson GSON = new Gson();
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    // Relative paths use forward slashes so that they map straight onto object keys
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    Map<String, Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @param file The manifest file
+     * @return The manifest, empty if the file does not exist or cannot be read
+     */
+    static DirectoryManifest load(Path file) {
+        DirectoryManifest manifest = new DirectoryManifest();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Entries stored = GSON.fromJson(reader, Entries.class);
+            if (stored != null && stored.files != null) {
+                manifest.entries.putAll(stored.files);
+            }
+        } catch (NoSuchFileException e) {
+            LOG.debug("No upload manifest at " + file);
+        } catch (IOException | JsonParseException e) {
+            LOG.error("Ignoring unreadable upload manifest " + file + ". " + e.getMessage());
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest, replacing the file atomically.  Every writer has its own temporary file, since launchers uploading
+     * the same directory to the same destination save the same manifest.
+     *
+     * @param file The manifest file
+     */
+    void save(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temporary = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        Entries stored = new Entries();
+        stored.files = entries;
+        try {
+            try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                GSON.toJson(stored, writer);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Describes the current contents of a directory
+     *
+     * @param directory The local directory
+     * @param previous  The manifest of the previous upload, its hashes are reused for unchanged files
+     * @param threads   The number of files hashed at once
+     * @return The manifest of the directory as it is now
+     */
+    static DirectoryManifest scan(Path directory, DirectoryManifest previous, int threads) throws IOException {
+        DirectoryManifest manifest = new DirectoryManifest();
+        List<String> names = new ArrayList<>();
+        List<Future<Entry>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3cmd-hash-%d").build());
+        try {
+            for (Path file : NativeS3Client.listFiles(directory)) {
+                String name = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                long size = Files.size(file);
+                long lastModified = Files.getLastModifiedTime(file).toMillis();
+                Entry known = previous.entries.get(name);
+                names.add(name);
+                if (known != null && known.size == size && known.lastModified == lastModified) {
+                    futures.add(null);
+                    manifest.entries.put(name, known);
+                } else {
+                    futures.add(executor.submit(() -> new Entry(size, lastModified, md5(file))));
+                }
+            }
+            for (int i = 0; i < names.size(); i++) {
+                if (futures.get(i) != null) {
+                    manifest.entries.put(names.get(i), futures.get(i).get());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing " + directory, e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return manifest;
+    }
+
+    /**
+     * The manifest name identifies the local directory, the endpoint and the remote directory it is uploaded to
+     *
+     * @param directory       The local directory
+     * @param endpoint        The s3cmd config file location, since the same url can point at different endpoints
+     * @param remoteDirectory The remote directory (ex. s3://bucket/dir/)
+     * @return The manifest file name
+     */
+    static String getManifestName(Path directory, String endpoint, String remoteDirectory) {
+        String identity = directory.toAbsolutePath().normalize() + "\n" + endpoint + "\n" + remoteDirectory;
+        return SigV4Signer.hex(SigV4Signer.sha256(identity.getBytes(StandardCharsets.UTF_8))) + ".json";
+    }
+
+    static String md5(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return SigV4Signer.hex(digest.digest());
+    }
+
+    /**
+     * What a file looked like when it was hashed
+     */
+    static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String md5;
+
+        Entry(long size, long lastModified, String md5) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getMd5() {
+            return md5;
+        }
+
+        /**
+         * @param other Another entry for the same file
+         * @return True if both entries have the same content
+         */
+        boolean sameContent(Entry other) {
+            return other != null && size == other.size && md5 != null && md5.equals(other.md5);
+        }
+    }
+
+    /**
+     * The layout of the manifest file
+     */
+    private static final class Entries {
+        private Map<String, Entry> files;
+    }
+}
@@ -0,0 +1,122 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide record of where each downloaded file came from, shared by every S3CmdProvision instance.
+ * Workflows often pass inputs straight through to outputs, and an output that is still the file that was downloaded
+ * can be copied inside S3 instead of being uploaded again.
+ * Files are keyed by their real path, since inputs are usually symlinked into the working directory, and an entry only
+ * matches while the file keeps the size and modification time it had when the download finished.
+ *
+ * @since 18/10/26
+ */
+final class DownloadProvenance {
+    private static final Logger LOG = LoggerFactory.getLogger(DownloadProvenance.class);
+    private static final DownloadProvenance INSTANCE = new DownloadProvenance();
+
+    private final ConcurrentMap<Path, Origin> origins = new ConcurrentHashMap<>();
+
+    DownloadProvenance() {
+    }
+
+    static DownloadProvenance getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Remembers that a file was just downloaded from an object
+     *
+     * @param endpoint  The endpoint the object lives on (the s3cmd config file location)
+     * @param file      The downloaded file
+     * @param objectUrl The object url (ex. s3://bucket/dir/object)
+     * @param etag      The ETag of the object, or null if it is not known
+     */
+    void record(String endpoint, Path file, String objectUrl, String etag) {
+        try {
+            Path realPath = file.toRealPath();
+            BasicFileAttributes attributes = Files.readAttributes(realPath, BasicFileAttributes.class);
+            origins.put(realPath, new Origin(endpoint, objectUrl, etag, attributes.size(), attributes.lastModifiedTime().toMillis()));
+        } catch (IOException e) {
+            LOG.debug("Could not record where " + file + " was downloaded from. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Finds the object a file was downloaded from, as long as the file has not changed since
+     *
+     * @param endpoint The endpoint the upload goes to, only objects on the same endpoint can be copied
+     * @param file     The file about to be uploaded
+     * @return The object the file is a copy of, if any
+     */
+    Optional<Origin> lookup(String endpoint, Path file) {
+        Path realPath;
+        BasicFileAttributes attributes;
+        try {
+            realPath = file.toRealPath();
+            attributes = Files.readAttributes(realPath, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+        Origin origin = origins.get(realPath);
+        if (origin == null || !origin.endpoint.equals(endpoint)) {
+            return Optional.empty();
+        }
+        if (origin.size != attributes.size() || origin.lastModifiedMillis != attributes.lastModifiedTime().toMillis()) {
+            LOG.debug(file + " changed since it was downloaded from " + origin.url);
+            origins.remove(realPath, origin);
+            return Optional.empty();
+        }
+        return Optional.of(origin);
+    }
+
+    /**
+     * Forgets every file, for tests
+     */
+    void clear() {
+        origins.clear();
+    }
+
+    /**
+     * The object a file was downloaded from
+     */
+    static final class Origin {
+        private final String endpoint;
+        private final String url;
+        private final String etag;
+        private final long size;
+        private final long lastModifiedMillis;
+
+        private Origin(String endpoint, String url, String etag, long size, long lastModifiedMillis) {
+            this.endpoint = endpoint;
+            this.url = url;
+            this.etag = etag;
+            this.size = size;
+            this.lastModifiedMillis = lastModifiedMillis;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return The ETag of the object when it was downloaded, or null if it was not known
+         */
+        String getEtag() {
+            return etag;
+        }
+
+        long getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package io.dockstore.provision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the MD5 and the S3 ETag of content.  Objects uploaded in one request have the MD5 as their ETag, multipart
+ * uploads have the MD5 of the concatenated part MD5s followed by "-" and the part count.
+ * Streamed content is hashed as it passes through {@link #update}, files already on disk are hashed part by part in parallel
+ * through memory-mapped reads with {@link #computeEtag}.
+ *
+ * @since 18/10/26
+ */
+class EtagDigest {
+    private static final Logger LOG = LoggerFactory.getLogger(EtagDigest.class);
+    // Parts can be up to 5 GB, more than a single mapping can hold
+    private static final long MAX_MAPPING_SIZE = 1024L * 1024 * 1024;
+
+    private final long partSize;
+    private final boolean partSizeKnown;
+    private final MessageDigest whole = newMd5();
+    private final ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+    private MessageDigest part = newMd5();
+    private long partBytes;
+    private long totalBytes;
+    private int partCount;
+
+    /**
+     * @param partSize The multipart part size in bytes, content up to this size is treated as a single part upload
+     */
+    EtagDigest(long partSize) {
+        this(partSize, true);
+    }
+
+    private EtagDigest(long partSize, boolean partSizeKnown) {
+        this.partSize = partSize;
+        this.partSizeKnown = partSizeKnown;
+    }
+
+    /**
+     * @param size The size of the object in bytes
+     * @param etag The ETag of the object
+     * @return A digest with the part size worked out from the ETag (see {@link #getPartSize}), which other tools may not have used
+     */
+    static EtagDigest forEtag(long size, String etag) {
+        return new EtagDigest(getPartSize(size, etag), false);
+    }
+
+    void update(byte[] bytes, int offset, int length) {
+        whole.update(bytes, offset, length);
+        totalBytes += length;
+        while (length > 0) {
+            int count = (int)Math.min(length, partSize - partBytes);
+            part.update(bytes, offset, count);
+            partBytes += count;
+            offset += count;
+            length -= count;
+            if (partBytes == partSize) {
+                finishPart();
+            }
+        }
+    }
+
+    private void finishPart() {
+        byte[] digest = part.digest();
+        partDigests.write(digest, 0, digest.length);
+        partCount++;
+        partBytes = 0;
+    }
+
+    /**
+     * @return The MD5 of everything passed to update, can only be called once
+     */
+    String getMd5() {
+        return SigV4Signer.hex(whole.digest());
+    }
+
+    /**
+     * @return The ETag S3 gives the content when it is uploaded with the part size, can only be called once
+     */
+    String getEtag() {
+        if (partBytes > 0) {
+            finishPart();
+        }
+        if (totalBytes <= partSize) {
+            return getMd5();
+        }
+        return combine(partDigests.toByteArray(), partCount);
+    }
+
+    private static String combine(byte[] partDigests, int partCount) {
+        return SigV4Signer.hex(newMd5().digest(partDigests)) + "-" + partCount;
+    }
+
+    /**
+     * Computes the ETag of a file with its parts hashed in parallel
+     *
+     * @param file     The local file
+     * @param partSize The multipart part size in bytes, files up to this size are treated as a single part upload
+     * @param threads  The number of parts hashed at once
+     * @return The ETag
+     */
+    static String computeEtag(Path file, long partSize, int threads) throws IOException {
+        return computeEtag(file, partSize, threads, Files.size(file) > partSize);
+    }
+
+    /**
+     * @param multipart Whether the file was uploaded as a multipart upload, which S3 also allows for a single part
+     */
+    private static String computeEtag(Path file, long partSize, int threads, boolean multipart) throws IOException {
+        long size = Files.size(file);
+        int partCount = getPartCount(size, partSize);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, partCount)),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3cmd-etag-%d").build());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<Future<byte[]>> parts = new ArrayList<>();
+            for (int i = 0; i < partCount; i++) {
+                long start = i * partSize;
+                long length = Math.min(partSize, size - start);
+                parts.add(executor.submit(() -> hashRange(channel, start, length)));
+            }
+            ByteArrayOutputStream digests = new ByteArrayOutputStream();
+            for (Future<byte[]> digest : parts) {
+                byte[] bytes = digest.get();
+                digests.write(bytes, 0, bytes.length);
+            }
+            if (!multipart) {
+                return SigV4Signer.hex(digests.toByteArray());
+            }
+            return combine(digests.toByteArray(), partCount);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing " + file, e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] hashRange(FileChannel channel, long start, long length) throws IOException {
+        MessageDigest digest = newMd5();
+        for (long offset = 0; offset < length; offset += MAX_MAPPING_SIZE) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(MAX_MAPPING_SIZE, length - offset));
+            digest.update(buffer);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @param size The size of the object in bytes
+     * @param etag The ETag of the object
+     * @return The part size of a multipart ETag from an upload by this plugin (see S3CmdPluginHelper.getChunkSizeForPartCount),
+     * otherwise the getChunkSize one
+     */
+    static long getPartSize(long size, String etag) {
+        int dash = etag == null ? -1 : etag.lastIndexOf('-');
+        if (dash >= 0) {
+            try {
+                return S3CmdPluginHelper.getChunkSizeForPartCount(size, Long.parseLong(etag.substring(dash + 1)));
+            } catch (NumberFormatException e) {
+                LOG.debug("Unexpected ETag " + etag);
+            }
+        }
+        return S3CmdPluginHelper.getChunkSizeInBytes(size);
+    }
+
+    static int getPartCount(long size, long partSize) {
+        return size <= partSize ? 1 : (int)((size + partSize - 1) / partSize);
+    }
+
+    /**
+     * Checks a local file against the ETag of the remote object.  The part size is worked out from the number of parts in the ETag,
+     * which only gives the part size this plugin would have used: other tools (ex. aws s3 cp with 8 MB parts) can give the same part count
+     * with another part size, so a multipart ETag that does not match is only logged, like one that cannot be reproduced at all.
+     *
+     * @param url        The remote object (ex. s3://bucket/dir/object), for the error message
+     * @param file       The local file
+     * @param remoteEtag The ETag (or MD5 sum reported by s3cmd) of the remote object
+     * @param threads    The number of parts hashed at once
+     * @return True if the file was verified, false if the ETag could not be reproduced
+     * @throws IntegrityVerificationException if the file does not match the remote object
+     */
+    static boolean verify(String url, Path file, String remoteEtag, int threads) throws IOException {
+        return verify(url, file, remoteEtag, 0, threads);
+    }
+
+    /**
+     * Checks a local file against the ETag of the remote object, see {@link #verify(String, Path, String, int)}
+     *
+     * @param url        The remote object (ex. s3://bucket/dir/object), for the error message
+     * @param file       The local file
+     * @param remoteEtag The ETag (or MD5 sum reported by s3cmd) of the remote object
+     * @param partSize   The part size the object was uploaded with (ex. by this plugin), or 0 if it is not known
+     * @param threads    The number of parts hashed at once
+     * @return True if the file was verified, false if the ETag could not be reproduced
+     * @throws IntegrityVerificationException if the file does not match the remote object
+     */
+    static boolean verify(String url, Path file, String remoteEtag, long partSize, int threads) throws IOException {
+        long start = System.nanoTime();
+        long size = Files.size(file);
+        boolean partSizeKnown = partSize > 0;
+        String actual = computeComparableEtag(file, remoteEtag, partSizeKnown ? partSize : getPartSize(size, remoteEtag), partSizeKnown, threads);
+        if (actual == null) {
+            LOG.warn("Cannot verify " + url + ", it was uploaded with a different part size (ETag " + remoteEtag + ")");
+            return false;
+        }
+        boolean matched = actual.equalsIgnoreCase(remoteEtag);
+        if (!matched && !partSizeKnown && remoteEtag.contains("-")) {
+            LOG.warn("Cannot verify " + url + ", it may have been uploaded with a different part size (ETag " + remoteEtag + ")");
+            return false;
+        }
+        TransferMetrics.getInstance().recordVerification(System.nanoTime() - start, size, matched);
+        if (!matched) {
+            throw new IntegrityVerificationException(url, remoteEtag, actual);
+        }
+        LOG.debug("Verified " + url + " (ETag " + remoteEtag + ")");
+        return true;
+    }
+
+    /**
+     * Checks whether a local file has the content of a remote object, without recording a verification
+     *
+     * @param file       The local file
+     * @param remoteEtag The ETag (or MD5 sum reported by s3cmd) of the remote object
+     * @param threads    The number of parts hashed at once
+     * @return True if the file matches, false if it does not or the ETag could not be reproduced
+     */
+    static boolean matches(Path file, String remoteEtag, int threads) throws IOException {
+        String actual = computeComparableEtag(file, remoteEtag, getPartSize(Files.size(file), remoteEtag), false, threads);
+        return actual != null && actual.equalsIgnoreCase(remoteEtag);
+    }
+
+    /**
+     * Computes the ETag of a local file the same way as the remote ETag
+     *
+     * @param partSizeKnown Whether the part size is the one of the upload, rather than one worked out from the ETag
+     * @return The ETag, or null if the remote ETag is from a multipart upload with a part size this plugin does not use
+     */
+    private static String computeComparableEtag(Path file, String remoteEtag, long partSize, boolean partSizeKnown, int threads)
+            throws IOException {
+        long size = Files.size(file);
+        if (remoteEtag.contains("-")) {
+            if (!partSizeKnown && !remoteEtag.endsWith("-" + getPartCount(size, partSize))) {
+                return null;
+            }
+            return computeEtag(file, partSize, threads, true);
+        }
+        // A plain MD5, which s3cmd also reports for its own multipart uploads
+        return computeEtag(file, Math.max(1, size), 1);
+    }
+
+    /**
+     * Checks streamed content against the ETag of the remote object, see {@link #verify(String, Path, String, int)}
+     *
+     * @param url        The remote object (ex. s3://bucket/dir/object), for the error message
+     * @param remoteEtag The ETag of the remote object
+     * @return True if the content was verified, false if the ETag could not be reproduced
+     * @throws IntegrityVerificationException if the content does not match the remote object
+     */
+    boolean verify(String url, String remoteEtag) {
+        String actual;
+        if (!remoteEtag.contains("-")) {
+            actual = getMd5();
+        } else {
+            if (partBytes > 0 || partCount == 0) {
+                finishPart();
+            }
+            if (!partSizeKnown && !remoteEtag.endsWith("-" + partCount)) {
+                LOG.warn("Cannot verify " + url + ", it was uploaded with a different part size (ETag " + remoteEtag + ")");
+                return false;
+            }
+            actual = combine(partDigests.toByteArray(), partCount);
+        }
+        boolean matched = actual.equalsIgnoreCase(remoteEtag);
+        if (!matched && !partSizeKnown && remoteEtag.contains("-")) {
+            LOG.warn("Cannot verify " + url + ", it may have been uploaded with a different part size (ETag " + remoteEtag + ")");
+            return false;
+        }
+        // The hashing time is part of the transfer
+        TransferMetrics.getInstance().recordVerification(0, totalBytes, matched);
+        if (!matched) {
+            throw new IntegrityVerificationException(url, remoteEtag, actual);
+        }
+        LOG.debug("Verified " + url + " (ETag " + remoteEtag + ")");
+        return true;
+    }
+
+    static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
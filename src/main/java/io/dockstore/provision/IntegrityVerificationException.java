@@ -0,0 +1,37 @@
+package io.dockstore.provision;
+
+/**
+ * Thrown when the content of a transferred file does not match the ETag of the remote object,
+ * as opposed to the transfer itself failing
+ *
+ * @since 18/10/26
+ */
+public class IntegrityVerificationException extends RuntimeException {
+    private final String url;
+    private final String expectedEtag;
+    private final String actualEtag;
+
+    /**
+     * @param url          The remote object (ex. s3://bucket/dir/object)
+     * @param expectedEtag The ETag reported for the remote object
+     * @param actualEtag   The ETag computed from the local file
+     */
+    public IntegrityVerificationException(String url, String expectedEtag, String actualEtag) {
+        super("Integrity check failed for " + url + ": remote ETag " + expectedEtag + " but local content has " + actualEtag);
+        this.url = url;
+        this.expectedEtag = expectedEtag;
+        this.actualEtag = actualEtag;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getExpectedEtag() {
+        return expectedEtag;
+    }
+
+    public String getActualEtag() {
+        return actualEtag;
+    }
+}
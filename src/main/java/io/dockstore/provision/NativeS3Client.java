@@ -0,0 +1,688 @@
+package io.dockstore.provision;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * A minimal S3 client that talks to the endpoint in an s3cmd configuration file directly from the JVM.
+ * Requests are signed with SigV4 and sent with HttpURLConnection, which keeps connections alive and pools them
+ * as long as every response body is read to the end and closed.
+ *
+ * @since 18/10/26
+ */
+class NativeS3Client {
+    private static final Logger LOG = LoggerFactory.getLogger(NativeS3Client.class);
+    private static final int TIMEOUT_MILLIS = 300 * 1000;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // Not in HttpURLConnection
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+    private static final long MAX_COPY_SIZE_IN_BYTES = 5L * 1024 * 1024 * 1024;
+
+    private final S3Config s3Config;
+    private final SigV4Signer signer;
+    private volatile boolean verifyIntegrity;
+    private volatile boolean resumeTransfers;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private volatile TokenBucket bandwidth = new TokenBucket(0);
+
+    NativeS3Client(S3Config s3Config) {
+        this.s3Config = s3Config;
+        this.signer = new SigV4Signer(s3Config.getAccessKey(), s3Config.getSecretKey(), s3Config.getSessionToken(), s3Config.getRegion());
+    }
+
+    /**
+     * @param verifyIntegrity Whether downloads are checked against the ETag of the object while they are streamed
+     */
+    void setVerifyIntegrity(boolean verifyIntegrity) {
+        this.verifyIntegrity = verifyIntegrity;
+    }
+
+    /**
+     * @param resumeTransfers Whether interrupted downloads and multipart uploads leave a journal behind to be resumed from
+     */
+    void setResumeTransfers(boolean resumeTransfers) {
+        this.resumeTransfers = resumeTransfers;
+    }
+
+    /**
+     * @param retryPolicy How failed requests are retried.  Every part of a multipart upload is retried on its own.
+     */
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @param bandwidth Limits the rate objects are read and written at
+     */
+    void setBandwidth(TokenBucket bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * @param bucket The bucket name (without s3://)
+     * @return True if the bucket exists and is accessible
+     */
+    boolean headBucket(String bucket) throws IOException {
+        return retryPolicy.call("HEAD " + bucket, () -> headBucketOnce(bucket));
+    }
+
+    private boolean headBucketOnce(String bucket) throws IOException {
+        HttpURLConnection connection = open("HEAD", bucket, null, Collections.emptyMap(), new TreeMap<>(), SigV4Signer.EMPTY_PAYLOAD_HASH);
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+            return false;
+        }
+        if (status >= 300) {
+            throw new S3Exception(status, null, "HEAD " + bucket);
+        }
+        return true;
+    }
+
+    void createBucket(String bucket) throws IOException {
+        byte[] body = new byte[0];
+        if (!"us-east-1".equals(s3Config.getRegion())) {
+            body = ("<CreateBucketConfiguration><LocationConstraint>" + s3Config.getRegion()
+                    + "</LocationConstraint></CreateBucketConfiguration>").getBytes(StandardCharsets.UTF_8);
+        }
+        send("PUT", bucket, null, Collections.emptyMap(), new TreeMap<>(), body);
+    }
+
+    /**
+     * @param bucket The bucket name (without s3://)
+     * @param key    The object key
+     * @return The object metadata, or null if the object does not exist
+     */
+    RemoteObject headObject(String bucket, String key) throws IOException {
+        return retryPolicy.call("HEAD " + bucket + "/" + key, () -> headObjectOnce(bucket, key));
+    }
+
+    private RemoteObject headObjectOnce(String bucket, String key) throws IOException {
+        HttpURLConnection connection = open("HEAD", bucket, key, Collections.emptyMap(), new TreeMap<>(), SigV4Signer.EMPTY_PAYLOAD_HASH);
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+            return null;
+        }
+        if (status >= 300) {
+            throw new S3Exception(status, null, "HEAD " + bucket + "/" + key);
+        }
+        return new RemoteObject("s3://" + bucket + "/" + key, connection.getContentLengthLong(), stripQuotes(connection.getHeaderField("ETag")));
+    }
+
+    /**
+     * Lists every object under a prefix, following continuation tokens
+     *
+     * @param bucket The bucket name (without s3://)
+     * @param prefix The key prefix (ex. dir/)
+     * @return The objects under the prefix
+     */
+    List<RemoteObject> listObjects(String bucket, String prefix) throws IOException {
+        return listObjects(bucket, prefix, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Lists the objects under a prefix, following continuation tokens until there are enough
+     *
+     * @param bucket The bucket name (without s3://)
+     * @param prefix The key prefix (ex. dir/)
+     * @param limit  No more pages are requested once there are this many objects
+     * @return The objects under the prefix, at least the limit (or all of them if there are fewer)
+     */
+    List<RemoteObject> listObjects(String bucket, String prefix, int limit) throws IOException {
+        List<RemoteObject> objects = new ArrayList<>();
+        String continuationToken = null;
+        do {
+            Map<String, String> query = new LinkedHashMap<>();
+            query.put("list-type", "2");
+            query.put("prefix", prefix);
+            if (continuationToken != null) {
+                query.put("continuation-token", continuationToken);
+            }
+            Document document = parseXml(send("GET", bucket, null, query, new TreeMap<>(), null));
+            NodeList contents = document.getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++) {
+                Element element = (Element)contents.item(i);
+                objects.add(new RemoteObject("s3://" + bucket + "/" + text(element, "Key"), Long.parseLong(text(element, "Size")),
+                        stripQuotes(text(element, "ETag"))));
+            }
+            continuationToken = "true".equals(text(document.getDocumentElement(), "IsTruncated"))
+                    ? text(document.getDocumentElement(), "NextContinuationToken") : null;
+        } while (continuationToken != null && objects.size() < limit);
+        return objects;
+    }
+
+    /**
+     * Streams an object into a local file.  The file is written next to the destination and moved into place once complete.
+     * When integrity verification is on, the content is hashed on its way to disk and a mismatch leaves no file behind.
+     * When resuming is on, an interrupted download keeps its partial file and journal, and the next attempt only
+     * requests the rest of the object, provided its ETag has not changed.
+     *
+     * @param bucket      The bucket name (without s3://)
+     * @param key         The object key
+     * @param destination The local file
+     */
+    void getObject(String bucket, String key, Path destination) throws IOException {
+        Path parent = destination.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        // With resuming on, a retry continues from the partial file the failed attempt left behind
+        retryPolicy.call("GET " + bucket + "/" + key, () -> {
+            getObjectOnce(bucket, key, destination);
+            return null;
+        });
+    }
+
+    private void getObjectOnce(String bucket, String key, Path destination) throws IOException {
+        String url = "s3://" + bucket + "/" + key;
+        Path partial = destination.resolveSibling(destination.getFileName() + ".part");
+        TransferJournal journal = resumeTransfers ? TransferJournal.load(partial) : null;
+        long offset = 0;
+        SortedMap<String, String> headers = new TreeMap<>();
+        if (journal != null && url.equals(journal.getUrl()) && journal.getEtag() != null && Files.exists(partial)) {
+            offset = Files.size(partial);
+            // If-Match makes S3 refuse the range if the object was replaced since the partial file was written
+            headers.put("range", "bytes=" + offset + "-");
+            headers.put("if-match", "\"" + journal.getEtag() + "\"");
+        }
+        HttpURLConnection connection = open("GET", bucket, key, Collections.emptyMap(), headers, SigV4Signer.EMPTY_PAYLOAD_HASH);
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_PRECON_FAILED || status == RANGE_NOT_SATISFIABLE) {
+            // The object changed since the partial file was written
+            try {
+                checkResponse(connection);
+            } catch (S3Exception e) {
+                LOG.debug(e.getMessage());
+            }
+            LOG.info("Restarting the download of " + url + ", it changed since the last attempt");
+            journal.delete();
+            Files.deleteIfExists(partial);
+            getObjectOnce(bucket, key, destination);
+            return;
+        }
+        checkResponse(connection);
+        boolean append = status == HttpURLConnection.HTTP_PARTIAL;
+        String etag = stripQuotes(connection.getHeaderField("ETag"));
+        long size = append ? offset + connection.getContentLengthLong() : connection.getContentLengthLong();
+        if (resumeTransfers && !append && etag != null) {
+            journal = TransferJournal.create(partial, url, etag, size, 0, 0);
+        }
+        EtagDigest digest = verifyIntegrity && etag != null ? EtagDigest.forEtag(size, etag) : null;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        if (append && digest != null) {
+            // Hash what the earlier attempt wrote so that the whole object is verified
+            try (InputStream existing = Files.newInputStream(partial)) {
+                int read;
+                while ((read = existing.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+        }
+        OpenOption[] options = append ? new OpenOption[] { StandardOpenOption.WRITE, StandardOpenOption.APPEND }
+                : new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING };
+        try (InputStream in = connection.getInputStream(); OutputStream out = Files.newOutputStream(partial, options)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                checkInterrupted(url);
+                bandwidth.acquire(read);
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+        if (digest != null) {
+            try {
+                digest.verify(url, etag);
+            } catch (IntegrityVerificationException e) {
+                Files.deleteIfExists(partial);
+                if (journal != null) {
+                    journal.delete();
+                }
+                throw e;
+            }
+        }
+        Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING);
+        if (journal != null) {
+            journal.delete();
+        }
+    }
+
+    /**
+     * Uploads a local file, using a multipart upload if it is larger than one part
+     *
+     * @param bucket   The bucket name (without s3://)
+     * @param key      The object key
+     * @param source   The local file
+     * @param partSize The multipart part size in bytes
+     * @return The ETag of the new object
+     */
+    String putObject(String bucket, String key, Path source, long partSize) throws IOException {
+        long size = Files.size(source);
+        if (size <= partSize) {
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                return uploadBody(bucket, key, Collections.emptyMap(), channel, 0, size);
+            }
+        }
+        TransferJournal journal = resumeTransfers ? openUploadJournal(bucket, key, source, size, partSize) : null;
+        String uploadId = journal == null ? null : journal.getUploadId();
+        if (uploadId == null) {
+            uploadId = initiateMultipartUpload(bucket, key);
+            if (journal != null) {
+                journal.setUploadId(uploadId);
+            }
+        }
+        List<String> etags = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            for (long offset = 0; offset < size; offset += partSize) {
+                int partNumber = etags.size() + 1;
+                checkInterrupted("s3://" + bucket + "/" + key);
+                String etag = journal == null ? null : journal.getPartEtag(partNumber);
+                if (etag == null) {
+                    etag = uploadPart(bucket, key, uploadId, partNumber, channel, offset, Math.min(partSize, size - offset));
+                    if (journal != null) {
+                        journal.partDone(partNumber, etag);
+                    }
+                }
+                etags.add(etag);
+            }
+            String etag = completeMultipartUpload(bucket, key, uploadId, etags);
+            if (journal != null) {
+                journal.delete();
+            }
+            return etag;
+        } catch (S3Exception e) {
+            if (journal != null && e.getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND && "NoSuchUpload".equals(e.getErrorCode())) {
+                // The upload expired or was aborted elsewhere, start over
+                LOG.info("Multipart upload " + uploadId + " no longer exists, restarting the upload of " + source);
+                journal.delete();
+                return putObject(bucket, key, source, partSize);
+            }
+            if (journal == null) {
+                abortMultipartUpload(bucket, key, uploadId);
+            }
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            // With a journal the parts are kept so that the next attempt can resume
+            if (journal == null) {
+                abortMultipartUpload(bucket, key, uploadId);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Continues the journal of an earlier attempt to upload the same, unchanged file to the same object,
+     * aborting the multipart upload of an outdated journal
+     */
+    private TransferJournal openUploadJournal(String bucket, String key, Path source, long size, long partSize) throws IOException {
+        String url = "s3://" + bucket + "/" + key;
+        long lastModified = Files.getLastModifiedTime(source).toMillis();
+        TransferJournal previous = TransferJournal.load(source);
+        if (previous != null && !previous.matches(url, null, size, partSize, lastModified) && previous.getUploadId() != null
+                && previous.getUrl() != null) {
+            abortMultipartUpload(S3CmdPluginHelper.getBucketName(previous.getUrl()), S3CmdPluginHelper.getObjectKey(previous.getUrl()),
+                    previous.getUploadId());
+        }
+        return TransferJournal.open(source, url, null, size, partSize, lastModified);
+    }
+
+    String initiateMultipartUpload(String bucket, String key) throws IOException {
+        Document document = parseXml(send("POST", bucket, key, Collections.singletonMap("uploads", ""), new TreeMap<>(), new byte[0]));
+        return text(document.getDocumentElement(), "UploadId");
+    }
+
+    String uploadPart(String bucket, String key, String uploadId, int partNumber, FileChannel channel, long offset, long length)
+            throws IOException {
+        Map<String, String> query = new LinkedHashMap<>();
+        query.put("partNumber", Integer.toString(partNumber));
+        query.put("uploadId", uploadId);
+        return uploadBody(bucket, key, query, channel, offset, length);
+    }
+
+    String completeMultipartUpload(String bucket, String key, String uploadId, List<String> etags) throws IOException {
+        StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            body.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>\"").append(etags.get(i)).append("\"</ETag></Part>");
+        }
+        body.append("</CompleteMultipartUpload>");
+        byte[] response = send("POST", bucket, key, Collections.singletonMap("uploadId", uploadId), new TreeMap<>(),
+                body.toString().getBytes(StandardCharsets.UTF_8));
+        return stripQuotes(text(parseResult(response).getDocumentElement(), "ETag"));
+    }
+
+    /**
+     * Copies an object inside S3 without transferring its content, part by part for objects over the CopyObject size limit
+     *
+     * @param sourceBucket The bucket of the source object (without s3://)
+     * @param sourceKey    The key of the source object
+     * @param sourceEtag   The ETag the source object must still have, or null
+     * @param bucket       The destination bucket (without s3://)
+     * @param key          The destination key
+     * @param size         The size of the source object in bytes
+     * @return The ETag of the copy
+     */
+    String copyObject(String sourceBucket, String sourceKey, String sourceEtag, String bucket, String key, long size) throws IOException {
+        return copyObject(sourceBucket, sourceKey, sourceEtag, bucket, key, size, MAX_COPY_SIZE_IN_BYTES, S3CmdPluginHelper.getChunkSizeInBytes(size));
+    }
+
+    /**
+     * @param maxCopySize The largest object copied with a single request
+     * @param partSize    The part size of larger objects
+     */
+    String copyObject(String sourceBucket, String sourceKey, String sourceEtag, String bucket, String key, long size, long maxCopySize,
+            long partSize) throws IOException {
+        if (size <= maxCopySize) {
+            byte[] response = send("PUT", bucket, key, Collections.emptyMap(), copyHeaders(sourceBucket, sourceKey, sourceEtag), new byte[0]);
+            return stripQuotes(text(parseResult(response).getDocumentElement(), "ETag"));
+        }
+        String uploadId = initiateMultipartUpload(bucket, key);
+        try {
+            List<String> etags = new ArrayList<>();
+            for (long offset = 0; offset < size; offset += partSize) {
+                checkInterrupted("s3://" + bucket + "/" + key);
+                Map<String, String> query = new LinkedHashMap<>();
+                query.put("partNumber", Integer.toString(etags.size() + 1));
+                query.put("uploadId", uploadId);
+                SortedMap<String, String> headers = copyHeaders(sourceBucket, sourceKey, sourceEtag);
+                headers.put("x-amz-copy-source-range", "bytes=" + offset + "-" + (Math.min(size, offset + partSize) - 1));
+                byte[] response = send("PUT", bucket, key, query, headers, new byte[0]);
+                etags.add(stripQuotes(text(parseResult(response).getDocumentElement(), "ETag")));
+            }
+            return completeMultipartUpload(bucket, key, uploadId, etags);
+        } catch (IOException | RuntimeException e) {
+            abortMultipartUpload(bucket, key, uploadId);
+            throw e;
+        }
+    }
+
+    private static SortedMap<String, String> copyHeaders(String sourceBucket, String sourceKey, String sourceEtag) {
+        SortedMap<String, String> headers = new TreeMap<>();
+        headers.put("x-amz-copy-source", SigV4Signer.encodePath("/" + sourceBucket + "/" + sourceKey));
+        if (sourceEtag != null) {
+            // The copy fails with 412 if the source changed since it was checked
+            headers.put("x-amz-copy-source-if-match", "\"" + sourceEtag + "\"");
+        }
+        return headers;
+    }
+
+    void abortMultipartUpload(String bucket, String key, String uploadId) {
+        try {
+            send("DELETE", bucket, key, Collections.singletonMap("uploadId", uploadId), new TreeMap<>(), null);
+        } catch (IOException e) {
+            LOG.error("Could not abort multipart upload " + uploadId + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates a url that can be fetched with plain HTTP GET requests (including byte ranges)
+     *
+     * @param bucket        The bucket name (without s3://)
+     * @param key           The object key
+     * @param expirySeconds How long the url is valid for
+     * @return The presigned url
+     */
+    URL presign(String bucket, String key, int expirySeconds) throws IOException {
+        String host = s3Config.getHost(bucket);
+        String path = path(bucket, key);
+        return new URL(s3Config.getScheme() + "://" + host + SigV4Signer.encodePath(path) + "?"
+                + signer.presignQuery(host, path, expirySeconds, Instant.now()));
+    }
+
+    /**
+     * Uploads a part of a streamed upload
+     *
+     * @param slices The content of the part, each buffer from its position to its limit.  The buffers are not modified.
+     * @return The ETag of the part
+     */
+    String uploadPart(String bucket, String key, String uploadId, int partNumber, List<ByteBuffer> slices) throws IOException {
+        Map<String, String> query = new LinkedHashMap<>();
+        query.put("partNumber", Integer.toString(partNumber));
+        query.put("uploadId", uploadId);
+        return uploadBody(bucket, key, query, slices);
+    }
+
+    /**
+     * Uploads a whole object from memory
+     *
+     * @param slices The content of the object, each buffer from its position to its limit.  The buffers are not modified.
+     * @return The ETag of the new object
+     */
+    String putObject(String bucket, String key, List<ByteBuffer> slices) throws IOException {
+        return uploadBody(bucket, key, Collections.emptyMap(), slices);
+    }
+
+    private String uploadBody(String bucket, String key, Map<String, String> query, List<ByteBuffer> slices) throws IOException {
+        long length = 0;
+        for (ByteBuffer slice : slices) {
+            length += slice.remaining();
+        }
+        return uploadBody(bucket, key, query, length, out -> {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (ByteBuffer slice : slices) {
+                // Every attempt reads the slices from the start
+                ByteBuffer view = slice.duplicate();
+                while (view.hasRemaining()) {
+                    int read = Math.min(buffer.length, view.remaining());
+                    view.get(buffer, 0, read);
+                    bandwidth.acquire(read);
+                    out.write(buffer, 0, read);
+                }
+            }
+        });
+    }
+
+    private String uploadBody(String bucket, String key, Map<String, String> query, FileChannel channel, long offset, long length)
+            throws IOException {
+        return uploadBody(bucket, key, query, length, out -> {
+            long position = offset;
+            long end = offset + length;
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int)Math.min(BUFFER_SIZE, end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File ended before " + end + " bytes were read");
+                }
+                bandwidth.acquire(read);
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+        });
+    }
+
+    /**
+     * Writes the body of an upload, from the start on every attempt
+     */
+    private interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private String uploadBody(String bucket, String key, Map<String, String> query, long length, Body body) throws IOException {
+        String description = "PUT " + bucket + "/" + key + (query.containsKey("partNumber") ? " part " + query.get("partNumber") : "");
+        return retryPolicy.call(description, () -> uploadBodyOnce(bucket, key, query, length, body));
+    }
+
+    private String uploadBodyOnce(String bucket, String key, Map<String, String> query, long length, Body body) throws IOException {
+        HttpURLConnection connection = open("PUT", bucket, key, query, new TreeMap<>(), SigV4Signer.UNSIGNED_PAYLOAD);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(length);
+        try (OutputStream out = connection.getOutputStream()) {
+            body.writeTo(out);
+        }
+        checkResponse(connection);
+        drain(connection);
+        return stripQuotes(connection.getHeaderField("ETag"));
+    }
+
+    /**
+     * Sends a request with an in-memory body and returns the response body
+     */
+    private byte[] send(String method, String bucket, String key, Map<String, String> query, SortedMap<String, String> headers, byte[] body)
+            throws IOException {
+        return retryPolicy.call(method + " " + bucket + (key == null ? "" : "/" + key), () -> sendOnce(method, bucket, key, query, headers, body));
+    }
+
+    private byte[] sendOnce(String method, String bucket, String key, Map<String, String> query, SortedMap<String, String> headers,
+            byte[] body) throws IOException {
+        String payloadHash = body == null ? SigV4Signer.EMPTY_PAYLOAD_HASH : SigV4Signer.hex(SigV4Signer.sha256(body));
+        // Signing adds to the headers, so every attempt starts from a copy
+        HttpURLConnection connection = open(method, bucket, key, query, new TreeMap<>(headers), payloadHash);
+        if (body != null) {
+            connection.setDoOutput(true);
+            if (body.length > 0) {
+                connection.setFixedLengthStreamingMode(body.length);
+            }
+            // An empty body is buffered instead, which still sends Content-Length: 0 but lets a stale keep-alive connection be retried
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        checkResponse(connection);
+        try (InputStream in = connection.getInputStream()) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private HttpURLConnection open(String method, String bucket, String key, Map<String, String> query, SortedMap<String, String> headers,
+            String payloadHash) throws IOException {
+        String host = s3Config.getHost(bucket);
+        String path = path(bucket, key);
+        signer.sign(method, host, path, query, headers, payloadHash, Instant.now());
+        String queryString = query.isEmpty() ? "" : "?" + SigV4Signer.canonicalQuery(query);
+        URL url = new URL(s3Config.getScheme() + "://" + host + SigV4Signer.encodePath(path) + queryString);
+        LOG.debug(method + " " + url);
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setInstanceFollowRedirects(false);
+        headers.forEach(connection::setRequestProperty);
+        return connection;
+    }
+
+    private String path(String bucket, String key) {
+        String objectPath = key == null ? "" : key;
+        return s3Config.isVirtualHosted(bucket) ? "/" + objectPath : "/" + bucket + "/" + objectPath;
+    }
+
+    /**
+     * HTTP connections cannot be interrupted, so cancelled transfers stop at the next buffer or part instead
+     */
+    private static void checkInterrupted(String url) throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted while transferring " + url);
+        }
+    }
+
+    private static void checkResponse(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        if (status < 300) {
+            return;
+        }
+        String errorCode = null;
+        String message = null;
+        InputStream errorStream = connection.getErrorStream();
+        if (errorStream != null) {
+            try (InputStream in = errorStream) {
+                byte[] body = ByteStreams.toByteArray(in);
+                if (body.length > 0) {
+                    Element error = parseXml(body).getDocumentElement();
+                    errorCode = text(error, "Code");
+                    message = text(error, "Message");
+                }
+            } catch (IOException e) {
+                LOG.debug("Could not parse error response. " + e.getMessage());
+            }
+        }
+        throw new S3Exception(status, errorCode, message);
+    }
+
+    private static void drain(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            ByteStreams.exhaust(in);
+        }
+    }
+
+    static Document parseXml(byte[] body) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(body));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Could not parse response: " + new String(body, StandardCharsets.UTF_8), e);
+        }
+    }
+
+    /**
+     * Parses the result of a request that S3 can fail with a 200 status and an Error document (ex. completions and copies)
+     */
+    private static Document parseResult(byte[] response) throws IOException {
+        Document document = parseXml(response);
+        if ("Error".equals(document.getDocumentElement().getTagName())) {
+            throw new S3Exception(HttpURLConnection.HTTP_INTERNAL_ERROR, text(document.getDocumentElement(), "Code"),
+                    text(document.getDocumentElement(), "Message"));
+        }
+        return document;
+    }
+
+    private static String text(Element element, String tagName) {
+        NodeList nodes = element.getElementsByTagName(tagName);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    static String stripQuotes(String etag) {
+        if (etag != null && etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+            return etag.substring(1, etag.length() - 1);
+        }
+        return etag;
+    }
+
+    /**
+     * Lists the regular files under a local directory
+     *
+     * @param directory The local directory
+     * @return The files, sorted by path
+     */
+    static List<Path> listFiles(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+}
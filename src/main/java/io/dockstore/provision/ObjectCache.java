@@ -0,0 +1,220 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An on-disk cache of downloaded objects that can be shared by several launchers (and JVMs) on the same machine.
+ * Entries are keyed by bucket/key, ETag and size so a changed object is never served from the cache.
+ * A hit is hardlinked into the destination (or copied if the destination is on another file system),
+ * and the least recently used entries are evicted once the cache grows past its size limit.  When an entry was last used is
+ * kept on a marker file next to it rather than on the entry itself, whose inode every hardlinked destination shares, and the marker
+ * is evicted with the entry.
+ * File locks keep concurrent launchers from downloading the same entry twice or evicting an entry while it is being linked.
+ * Entries share a fixed number of lock files (by the start of their name), which are never deleted so that a launcher waiting on one
+ * cannot end up holding the lock of a file that is no longer there.
+ *
+ * @since 18/10/26
+ */
+class ObjectCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ObjectCache.class);
+    // FileLocks are held by the whole JVM, so threads in the same JVM also need an in-process lock (one per lock file, so bounded)
+    private static final ConcurrentMap<Path, ReentrantLock> LOCAL_LOCKS = new ConcurrentHashMap<>();
+    // 16^3 lock files, so that unrelated downloads rarely wait on each other
+    private static final int LOCK_NAME_LENGTH = 3;
+
+    private final Path objectsDirectory;
+    private final Path usedDirectory;
+    private final Path locksDirectory;
+    private final Path temporaryDirectory;
+    private final Path cacheLock;
+    private final long maxSizeInBytes;
+
+    /**
+     * Downloads an object into a file
+     */
+    interface Downloader {
+        /**
+         * @param file Where to download the object to
+         * @return True if the download was successful
+         */
+        boolean download(Path file);
+    }
+
+    /**
+     * @param directory      The cache directory
+     * @param maxSizeInBytes The size the cache is trimmed back to after adding an entry
+     */
+    ObjectCache(Path directory, long maxSizeInBytes) throws IOException {
+        this.objectsDirectory = Files.createDirectories(directory.resolve("objects"));
+        this.usedDirectory = Files.createDirectories(directory.resolve("used"));
+        this.locksDirectory = Files.createDirectories(directory.resolve("locks"));
+        this.temporaryDirectory = Files.createDirectories(directory.resolve("tmp"));
+        this.cacheLock = directory.resolve("cache.lock");
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    /**
+     * Places the object at the destination, from the cache if possible and otherwise by downloading it into the cache first
+     *
+     * @param remoteObject The object, its ETag and size identify the cache entry
+     * @param destination  The destination file
+     * @param downloader   Downloads the object on a cache miss
+     * @return True if the object is at the destination
+     */
+    boolean fetch(RemoteObject remoteObject, Path destination, Downloader downloader) throws IOException {
+        String entryName = getEntryName(remoteObject);
+        Path entry = objectsDirectory.resolve(entryName);
+        return withLock(getLockFile(entry), () -> {
+            if (withLock(cacheLock, () -> Files.exists(entry) && link(entry, destination))) {
+                LOG.info("Using cached copy of " + remoteObject.getUrl());
+                return true;
+            }
+            Path temporary = temporaryDirectory.resolve(entryName + "." + UUID.randomUUID());
+            try {
+                if (!downloader.download(temporary)) {
+                    return false;
+                }
+                if (Files.size(temporary) != remoteObject.getSize()) {
+                    LOG.error("Downloaded " + Files.size(temporary) + " bytes of " + remoteObject.getUrl() + " but expected " + remoteObject.getSize());
+                    return false;
+                }
+                // Cached copies are shared through hardlinks, so nobody should write to them
+                temporary.toFile().setWritable(false, false);
+                return withLock(cacheLock, () -> {
+                    Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    boolean linked = link(entry, destination);
+                    evict(entry);
+                    return linked;
+                });
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        });
+    }
+
+    static String getEntryName(RemoteObject remoteObject) {
+        String identity = remoteObject.getBucket() + "/" + remoteObject.getKey() + "\n" + remoteObject.getEtag() + "\n" + remoteObject.getSize();
+        return SigV4Signer.hex(SigV4Signer.sha256(identity.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Marks the entry as recently used and puts it at the destination.  The destination is read-only if it is a hardlink,
+     * since it is the cached copy itself, and writable if it is a copy.
+     */
+    private boolean link(Path entry, Path destination) throws IOException {
+        // Touching the entry would change the modification time of every destination linked to it
+        Path used = getUsedFile(entry);
+        try {
+            Files.setLastModifiedTime(used, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            Files.createFile(used);
+        }
+        Path parent = destination.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.deleteIfExists(destination);
+        try {
+            Files.createLink(destination, entry);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Different file system or no hardlink support
+            LOG.debug("Could not hardlink " + entry + ", copying instead. " + e.getMessage());
+            Files.copy(entry, destination, StandardCopyOption.REPLACE_EXISTING);
+            destination.toFile().setWritable(true);
+        }
+        return true;
+    }
+
+    private Path getLockFile(Path entry) {
+        return locksDirectory.resolve(entry.getFileName().toString().substring(0, LOCK_NAME_LENGTH) + ".lock");
+    }
+
+    private Path getUsedFile(Path entry) {
+        return usedDirectory.resolve(entry.getFileName());
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in its size limit.  Must be called with the cache lock held.
+     *
+     * @param keep An entry that must not be evicted
+     */
+    private void evict(Path keep) throws IOException {
+        List<Path> entries;
+        try (Stream<Path> paths = Files.list(objectsDirectory)) {
+            entries = paths.collect(Collectors.toList());
+        }
+        List<Entry> sorted = new ArrayList<>();
+        long total = 0;
+        for (Path path : entries) {
+            Path used = getUsedFile(path);
+            // Entries added before recency moved to the markers only have their own time
+            long lastUsed = Files.getLastModifiedTime(Files.exists(used) ? used : path).toMillis();
+            Entry entry = new Entry(path, Files.size(path), lastUsed);
+            sorted.add(entry);
+            total += entry.size;
+        }
+        sorted.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+        for (Entry entry : sorted) {
+            if (total <= maxSizeInBytes) {
+                break;
+            }
+            if (!entry.path.equals(keep)) {
+                LOG.debug("Evicting " + entry.path + " from the object cache");
+                Files.deleteIfExists(entry.path);
+                Files.deleteIfExists(getUsedFile(entry.path));
+                total -= entry.size;
+            }
+        }
+    }
+
+    private interface LockedAction<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Runs the action while holding both an in-process lock and an exclusive file lock on the lock file
+     */
+    private static <T> T withLock(Path lockFile, LockedAction<T> action) throws IOException {
+        ReentrantLock localLock = LOCAL_LOCKS.computeIfAbsent(lockFile.toAbsolutePath(), path -> new ReentrantLock());
+        localLock.lock();
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock ignored = channel.lock()) {
+            return action.run();
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    private static final class Entry {
+        private final Path path;
+        private final long size;
+        private final long lastUsed;
+
+        private Entry(Path path, long size, long lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
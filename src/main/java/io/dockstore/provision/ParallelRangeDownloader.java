@@ -0,0 +1,186 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads a single object by splitting it into byte ranges that are fetched by several workers at once.
+ * Every worker writes its range straight into a preallocated destination file with positional writes
+ * so there is no reassembly step at the end.
+ *
+ * @since 18/10/26
+ */
+class ParallelRangeDownloader {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelRangeDownloader.class);
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int TIMEOUT_MILLIS = 300 * 1000;
+
+    private final long partSize;
+    private final int concurrency;
+    private final RetryPolicy retryPolicy;
+    private final TokenBucket bandwidth;
+
+    /**
+     * @param partSize    Size of each byte range in bytes
+     * @param concurrency Number of ranges fetched at once
+     */
+    ParallelRangeDownloader(long partSize, int concurrency) {
+        this(partSize, concurrency, RetryPolicy.NONE);
+    }
+
+    /**
+     * @param partSize    Size of each byte range in bytes
+     * @param concurrency Number of ranges fetched at once
+     * @param retryPolicy How failed ranges are retried, on their own
+     */
+    ParallelRangeDownloader(long partSize, int concurrency, RetryPolicy retryPolicy) {
+        this(partSize, concurrency, retryPolicy, new TokenBucket(0));
+    }
+
+    /**
+     * @param partSize    Size of each byte range in bytes
+     * @param concurrency Number of ranges fetched at once
+     * @param retryPolicy How failed ranges are retried, on their own
+     * @param bandwidth   Limits the rate of all of the ranges together
+     */
+    ParallelRangeDownloader(long partSize, int concurrency, RetryPolicy retryPolicy, TokenBucket bandwidth) {
+        if (partSize <= 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("Part size and concurrency must be positive");
+        }
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.retryPolicy = retryPolicy;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Downloads the object at the (presigned) url into the destination file
+     *
+     * @param url         A url that can be read with plain HTTP GET requests (ex. from s3cmd signurl)
+     * @param size        The size of the object in bytes
+     * @param destination The destination file, replaced if it already exists
+     * @throws IOException If any of the ranges could not be downloaded
+     */
+    void download(URL url, long size, Path destination) throws IOException {
+        download(url, size, destination, null);
+    }
+
+    /**
+     * Downloads the object at the (presigned) url into the destination file, skipping the ranges the journal says are done
+     *
+     * @param url         A url that can be read with plain HTTP GET requests (ex. from s3cmd signurl)
+     * @param size        The size of the object in bytes
+     * @param destination The destination file, kept if the journal has ranges in it
+     * @param journal     Records every finished range, may be null
+     * @throws IOException If any of the ranges could not be downloaded
+     */
+    void download(URL url, long size, Path destination, TransferJournal journal) throws IOException {
+        Path parent = destination.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        int parts = getPartCount(size);
+        LOG.info("Downloading " + size + " bytes in " + parts + " parts using " + Math.min(parts, concurrency) + " connections");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parts, concurrency)),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3cmd-range-%d").build());
+        try (RandomAccessFile file = new RandomAccessFile(destination.toFile(), "rw")) {
+            file.setLength(size);
+            FileChannel channel = file.getChannel();
+            List<Future<?>> futures = new ArrayList<>(parts);
+            for (int part = 0; part < parts; part++) {
+                int partNumber = part + 1;
+                if (journal != null && journal.isPartDone(partNumber)) {
+                    continue;
+                }
+                long start = part * partSize;
+                long end = Math.min(size, start + partSize) - 1;
+                futures.add(executor.submit(() -> {
+                    retryPolicy.call("range " + start + "-" + end + " of " + destination.getFileName(), () -> {
+                        downloadRange(url, start, end, channel, bandwidth);
+                        return null;
+                    });
+                    if (journal != null) {
+                        // The range must be on disk before the journal says it is
+                        channel.force(false);
+                        journal.partDone(partNumber, "");
+                    }
+                    return null;
+                }));
+            }
+            awaitAll(futures);
+            channel.force(false);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    int getPartCount(long size) {
+        return (int)Math.max(1, (size + partSize - 1) / partSize);
+    }
+
+    /**
+     * Fetches the inclusive byte range [start, end] and writes it at the same offset in the channel
+     */
+    static void downloadRange(URL url, long start, long end, FileChannel channel, TokenBucket bandwidth) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL && !(responseCode == HttpURLConnection.HTTP_OK && start == 0)) {
+            connection.disconnect();
+            throw new S3Exception(responseCode, null, "Unexpected response for range " + start + "-" + end);
+        }
+        long expected = end - start + 1;
+        long position = start;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        // Reading the whole body (rather than disconnecting) lets the connection go back to the keep-alive pool
+        try (InputStream in = connection.getInputStream()) {
+            int read;
+            while (position <= end && (read = in.read(buffer, 0, (int)Math.min(buffer.length, end - position + 1))) != -1) {
+                bandwidth.acquire(read);
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+            }
+        }
+        if (position - start != expected) {
+            throw new IOException("Range " + start + "-" + end + " ended after " + (position - start) + " of " + expected + " bytes");
+        }
+    }
+
+    private static void awaitAll(List<Future<?>> futures) throws IOException {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide index of the objects under the prefixes the plugin has listed, shared by every S3CmdProvision instance.
+ * A prefix is listed once (recursively, with sizes and ETags) and then answers whether an object exists, its size and ETag,
+ * and which objects are in a directory, until the listing is older than the TTL.  The plugin's own uploads are added to
+ * the listings that cover them.
+ * <p>
+ * Objects written by anyone else after a listing are only noticed once it expires, so the index only hints at which objects
+ * exist and which urls are directories.  Sizes and ETags that decide what is cached, verified or preallocated are read
+ * from the server, and an object missing from the index may still exist.
+ * Only listing a directory fills the index, looking up an object or a directory never lists anything.  Listings stop after
+ * max-objects objects, and are then not kept, only remembered as too large so that they are not listed again (the smaller
+ * directories under them are still listed and kept).
+ * <p>
+ * Entries are keyed by the s3cmd config file (which identifies the endpoint) and the bucket name.  If an index directory
+ * is configured, each bucket is also kept in a file there so that later launches (and other launchers) start from it.
+ *
+ * @since 18/10/26
+ */
+final class PrefixIndex {
+    static final int DEFAULT_MAX_OBJECTS = 10000;
+    // Uploads only rewrite the file this often, the next listing writes whatever is left
+    static final long SAVE_INTERVAL_MILLIS = 1000;
+    private static final Logger LOG = LoggerFactory.getLogger(PrefixIndex.class);
+    private static final Gson GSON = new Gson();
+    private static final PrefixIndex IN_MEMORY = new PrefixIndex(null, System::currentTimeMillis);
+    private static final ConcurrentMap<Path, PrefixIndex> INSTANCES = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    // Wall clock time, since listing times are shared with other launchers through the files
+    private final LongSupplier clock;
+    private final Map<String, BucketIndex> buckets = new HashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    PrefixIndex(Path directory, LongSupplier clock) {
+        this.directory = directory;
+        this.clock = clock;
+    }
+
+    /**
+     * Lists a directory for the index
+     */
+    interface Lister {
+        /**
+         * @param directoryUrl The directory url ending with a slash (ex. s3://bucket/dir/)
+         * @param limit        The listing may stop once it has this many objects
+         * @return The objects under the directory and its subdirectories, empty if they could not be listed
+         */
+        Optional<List<RemoteObject>> list(String directoryUrl, int limit);
+    }
+
+    /**
+     * @param directory The directory shared with other launchers, or null to keep the index in memory only
+     * @return The index of the directory, shared by every S3CmdProvision in the process
+     */
+    static PrefixIndex getInstance(Path directory) {
+        return directory == null ? IN_MEMORY
+                : INSTANCES.computeIfAbsent(directory.toAbsolutePath().normalize(), path -> new PrefixIndex(path, System::currentTimeMillis));
+    }
+
+    /**
+     * Lists the objects under a directory, from the index if a listing covers it
+     *
+     * @param endpoint     The endpoint (the s3cmd config file location)
+     * @param directoryUrl The directory url ending with a slash (ex. s3://bucket/dir/)
+     * @param ttlSeconds   How long a listing is used for
+     * @param maxObjects   The most objects a listing may have to be kept
+     * @param lister       Lists the directory if no listing covers it yet
+     * @return The objects under the directory, including its subdirectories, or empty if the directory could not be indexed
+     */
+    Optional<List<RemoteObject>> list(String endpoint, String directoryUrl, long ttlSeconds, int maxObjects,
+            Lister lister) {
+        String bucket = S3CmdPluginHelper.getBucketName(directoryUrl);
+        String prefix = S3CmdPluginHelper.getObjectKey(directoryUrl);
+        if (!ensureListed(endpoint, directoryUrl, ttlSeconds, maxObjects, lister)) {
+            return Optional.empty();
+        }
+        synchronized (this) {
+            BucketIndex index = bucket(endpoint, bucket);
+            List<RemoteObject> objects = new ArrayList<>();
+            for (Map.Entry<String, Entry> entry : members(index, prefix).entrySet()) {
+                objects.add(entry.getValue().toRemoteObject(bucket, entry.getKey()));
+            }
+            return Optional.of(objects);
+        }
+    }
+
+    /**
+     * Looks up an object in the listings the index already has.  Nothing is listed for it: the directory of a single object
+     * may be as large as the whole bucket, and one 'info' is cheaper.
+     *
+     * @param endpoint   The endpoint (the s3cmd config file location)
+     * @param objectUrl  The object url (ex. s3://bucket/dir/object)
+     * @param ttlSeconds How long a listing is used for
+     * @return The object, or empty if it is not in the index (which does not mean it does not exist)
+     */
+    Optional<RemoteObject> lookup(String endpoint, String objectUrl, long ttlSeconds) {
+        String bucket = S3CmdPluginHelper.getBucketName(objectUrl);
+        String key = S3CmdPluginHelper.getObjectKey(objectUrl);
+        if (!isCovered(endpoint, bucket, key, ttlSeconds)) {
+            return Optional.empty();
+        }
+        synchronized (this) {
+            Entry entry = bucket(endpoint, bucket).objects.get(key);
+            return entry == null ? Optional.empty() : Optional.of(entry.toRemoteObject(bucket, key));
+        }
+    }
+
+    /**
+     * Tells whether a url without a trailing slash names a directory: there is no object with its key, but there are objects
+     * under its key followed by a slash.  Like lookup, this only uses the listings the index already has.
+     *
+     * @param endpoint   The endpoint (the s3cmd config file location)
+     * @param url        The url (ex. s3://bucket/dir/name)
+     * @param ttlSeconds How long a listing is used for
+     * @return Whether the url is a directory, or empty if the index cannot tell
+     */
+    Optional<Boolean> isDirectory(String endpoint, String url, long ttlSeconds) {
+        String bucket = S3CmdPluginHelper.getBucketName(url);
+        String key = S3CmdPluginHelper.getObjectKey(url);
+        if (key.isEmpty() || !isCovered(endpoint, bucket, key, ttlSeconds)) {
+            return Optional.empty();
+        }
+        synchronized (this) {
+            BucketIndex index = bucket(endpoint, bucket);
+            return Optional.of(!index.objects.containsKey(key) && !members(index, key + "/").isEmpty());
+        }
+    }
+
+    /**
+     * Adds an object the plugin has just written to the listings that cover it
+     *
+     * @param endpoint     The endpoint (the s3cmd config file location)
+     * @param remoteObject The object, its ETag may be null if it is not known
+     */
+    synchronized void record(String endpoint, RemoteObject remoteObject) {
+        BucketIndex index = bucket(endpoint, remoteObject.getBucket());
+        String key = remoteObject.getKey();
+        Listing listing = covering(index, key, Long.MAX_VALUE);
+        if (listing != null && listing.complete) {
+            index.objects.put(key, new Entry(remoteObject.getSize(), remoteObject.getEtag()));
+            if (clock.getAsLong() - index.savedAt >= SAVE_INTERVAL_MILLIS) {
+                save(endpoint, remoteObject.getBucket(), index);
+            }
+        }
+    }
+
+    /**
+     * Forgets the listings that cover or lie under a url, for writes whose objects are not known one by one
+     * (ex. an 's3cmd put -r')
+     *
+     * @param endpoint The endpoint (the s3cmd config file location)
+     * @param url      The url written to (ex. s3://bucket/dir/)
+     */
+    synchronized void invalidate(String endpoint, String url) {
+        String bucket = S3CmdPluginHelper.getBucketName(url);
+        String key = S3CmdPluginHelper.getObjectKey(url);
+        BucketIndex index = bucket(endpoint, bucket);
+        if (index.listings.keySet().removeIf(prefix -> key.startsWith(prefix) || prefix.startsWith(key))) {
+            prune(index);
+            save(endpoint, bucket, index);
+        }
+    }
+
+    synchronized void clear() {
+        buckets.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    private boolean isCovered(String endpoint, String bucket, String key, long ttlSeconds) {
+        Listing listing = getListing(endpoint, bucket, key, TimeUnit.SECONDS.toMillis(ttlSeconds));
+        (listing != null && listing.complete ? hits : misses).incrementAndGet();
+        return listing != null && listing.complete;
+    }
+
+    /**
+     * Makes sure a fresh listing covers the directory, listing it if none does.
+     * Concurrent callers missing the same directory are coalesced so that it is only listed once.
+     *
+     * @return Whether the directory is covered by a listing that was kept
+     */
+    private boolean ensureListed(String endpoint, String directoryUrl, long ttlSeconds, int maxObjects,
+            Lister lister) {
+        String bucket = S3CmdPluginHelper.getBucketName(directoryUrl);
+        String prefix = S3CmdPluginHelper.getObjectKey(directoryUrl);
+        long maxAgeMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        Listing listing = getListing(endpoint, bucket, prefix, maxAgeMillis);
+        if (listing != null) {
+            hits.incrementAndGet();
+            return listing.complete;
+        }
+        misses.incrementAndGet();
+        String flightKey = endpoint + '\n' + directoryUrl;
+        CompletableFuture<Void> mine = new CompletableFuture<>();
+        CompletableFuture<Void> existing = inFlight.putIfAbsent(flightKey, mine);
+        if (existing != null) {
+            await(existing);
+            listing = getListing(endpoint, bucket, prefix, maxAgeMillis);
+            return listing != null && listing.complete;
+        }
+        try {
+            // One more than the limit is enough to tell that the listing is too large to keep
+            Optional<List<RemoteObject>> objects = lister.list(directoryUrl, (int)Math.min(Integer.MAX_VALUE, maxObjects + 1L));
+            boolean complete = objects.isPresent() && fill(endpoint, bucket, prefix, objects.get(), maxObjects, maxAgeMillis);
+            mine.complete(null);
+            return complete;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(flightKey, mine);
+        }
+    }
+
+    /**
+     * @return The fresh listing covering the prefix, reading the file again first if there is none in memory
+     */
+    private synchronized Listing getListing(String endpoint, String bucket, String prefix, long maxAgeMillis) {
+        Listing listing = covering(bucket(endpoint, bucket), prefix, maxAgeMillis);
+        if (listing == null && directory != null) {
+            // Another launcher may have listed it since
+            buckets.put(endpoint + '\n' + bucket, load(getFile(endpoint, bucket)));
+            listing = covering(bucket(endpoint, bucket), prefix, maxAgeMillis);
+        }
+        return listing;
+    }
+
+    /**
+     * Replaces what the index knows under a prefix with a complete listing of it, and drops the expired listings
+     *
+     * @return Whether the listing was kept, false if it has too many objects
+     */
+    private synchronized boolean fill(String endpoint, String bucket, String prefix, List<RemoteObject> objects, int maxObjects,
+            long maxAgeMillis) {
+        BucketIndex index = bucket(endpoint, bucket);
+        long now = clock.getAsLong();
+        index.listings.values().removeIf(listing -> now - listing.listedAt >= maxAgeMillis);
+        // The new listing supersedes the ones under it
+        index.listings.keySet().removeIf(listed -> listed.startsWith(prefix));
+        boolean complete = objects.size() <= maxObjects;
+        index.listings.put(prefix, new Listing(now, complete));
+        prune(index);
+        members(index, prefix).clear();
+        if (complete) {
+            for (RemoteObject remoteObject : objects) {
+                index.objects.put(remoteObject.getKey(), new Entry(remoteObject.getSize(), remoteObject.getEtag()));
+            }
+        } else {
+            LOG.info("Not indexing the " + objects.size() + " objects under s3://" + bucket + "/" + prefix + ", more than " + maxObjects);
+        }
+        save(endpoint, bucket, index);
+        return complete;
+    }
+
+    /**
+     * Drops the objects no complete listing covers any more
+     */
+    private void prune(BucketIndex index) {
+        Iterator<String> keys = index.objects.keySet().iterator();
+        while (keys.hasNext()) {
+            Listing listing = covering(index, keys.next(), Long.MAX_VALUE);
+            if (listing == null || !listing.complete) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * A listing with too many objects only covers its own prefix, the directories under it may be small enough to index
+     *
+     * @return The newest complete listing younger than the maximum age whose prefix the key starts with, otherwise the
+     * incomplete listing of the key itself, or null if there is neither
+     */
+    private Listing covering(BucketIndex index, String key, long maxAgeMillis) {
+        long now = clock.getAsLong();
+        Listing newest = null;
+        for (Map.Entry<String, Listing> listing : index.listings.entrySet()) {
+            Listing candidate = listing.getValue();
+            boolean applies = key.startsWith(listing.getKey()) && now - candidate.listedAt < maxAgeMillis
+                    && (candidate.complete || key.equals(listing.getKey()));
+            if (applies && (newest == null || candidate.complete && !newest.complete
+                    || candidate.complete == newest.complete && candidate.listedAt > newest.listedAt)) {
+                newest = candidate;
+            }
+        }
+        return newest;
+    }
+
+    private static SortedMap<String, Entry> members(BucketIndex index, String prefix) {
+        return index.objects.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private BucketIndex bucket(String endpoint, String bucket) {
+        return buckets.computeIfAbsent(endpoint + '\n' + bucket, key -> directory == null ? new BucketIndex() : load(getFile(endpoint, bucket)));
+    }
+
+    /**
+     * @param url An object or directory url (ex. s3://bucket/dir/object)
+     * @return The url of the directory it is in (ex. s3://bucket/dir/)
+     */
+    private static String getParent(String url) {
+        String trimmed = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        return trimmed.substring(0, Math.max(trimmed.lastIndexOf('/'), "s3://".length() + S3CmdPluginHelper.getBucketName(url).length()) + 1);
+    }
+
+    private Path getFile(String endpoint, String bucket) {
+        String identity = endpoint + '\n' + bucket;
+        return directory.resolve(SigV4Signer.hex(SigV4Signer.sha256(identity.getBytes(StandardCharsets.UTF_8))) + ".json");
+    }
+
+    private static BucketIndex load(Path file) {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            BucketIndex loaded = GSON.fromJson(reader, BucketIndex.class);
+            return loaded == null || loaded.listings == null || loaded.objects == null ? new BucketIndex() : loaded;
+        } catch (NoSuchFileException e) {
+            return new BucketIndex();
+        } catch (IOException | JsonParseException e) {
+            LOG.warn("Ignoring unreadable prefix index " + file + ". " + e.getMessage());
+            return new BucketIndex();
+        }
+    }
+
+    /**
+     * Replaces the file of the bucket atomically, like the transfer history, so that other launchers never read a partial file
+     */
+    private void save(String endpoint, String bucket, BucketIndex index) {
+        index.savedAt = clock.getAsLong();
+        if (directory == null) {
+            return;
+        }
+        Path file = getFile(endpoint, bucket);
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            Files.write(temporary, GSON.toJson(index).getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Could not write prefix index " + file + ". " + e.getMessage());
+        }
+    }
+
+    private static void await(CompletableFuture<Void> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * What the index knows about one bucket
+     */
+    private static final class BucketIndex {
+        // Listed prefix (ex. dir/, or empty for the whole bucket) to when it was listed
+        private Map<String, Listing> listings = new HashMap<>();
+        // Object key to object, for the objects under the complete listings
+        private TreeMap<String, Entry> objects = new TreeMap<>();
+        private transient long savedAt;
+    }
+
+    private static final class Listing {
+        private long listedAt;
+        // False if the prefix had too many objects to keep
+        private boolean complete;
+
+        private Listing(long listedAt, boolean complete) {
+            this.listedAt = listedAt;
+            this.complete = complete;
+        }
+    }
+
+    private static final class Entry {
+        private long size;
+        private String etag;
+
+        private Entry(long size, String etag) {
+            this.size = size;
+            this.etag = etag;
+        }
+
+        private RemoteObject toRemoteObject(String bucket, String key) {
+            return new RemoteObject("s3://" + bucket + "/" + key, size, etag);
+        }
+    }
+}
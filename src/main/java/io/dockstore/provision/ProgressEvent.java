@@ -0,0 +1,77 @@
+package io.dockstore.provision;
+
+/**
+ * A progress update for a running transfer, parsed from s3cmd's progress meter
+ *
+ * @since 18/10/26
+ */
+public class ProgressEvent {
+    private final long bytesDone;
+    private final long bytesTotal;
+    private final long elapsedSeconds;
+    private final double bytesPerSecond;
+    private final int partNumber;
+    private final int partCount;
+    private final boolean done;
+
+    /**
+     * @param bytesDone      Bytes transferred so far for the current file or part
+     * @param bytesTotal     Total bytes of the current file or part
+     * @param elapsedSeconds Seconds spent on the current file or part
+     * @param bytesPerSecond The current transfer rate
+     * @param partNumber     The multipart part being transferred, 0 if the transfer is not multipart
+     * @param partCount      The number of multipart parts, 0 if the transfer is not multipart
+     * @param done           Whether the current file or part has finished
+     */
+    public ProgressEvent(long bytesDone, long bytesTotal, long elapsedSeconds, double bytesPerSecond, int partNumber, int partCount,
+            boolean done) {
+        this.bytesDone = bytesDone;
+        this.bytesTotal = bytesTotal;
+        this.elapsedSeconds = elapsedSeconds;
+        this.bytesPerSecond = bytesPerSecond;
+        this.partNumber = partNumber;
+        this.partCount = partCount;
+        this.done = done;
+    }
+
+    public long getBytesDone() {
+        return bytesDone;
+    }
+
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    public long getElapsedSeconds() {
+        return elapsedSeconds;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int getPartNumber() {
+        return partNumber;
+    }
+
+    public int getPartCount() {
+        return partCount;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return The percentage of the current file or part that has been transferred
+     */
+    public int getPercent() {
+        return bytesTotal <= 0 ? 100 : (int)(bytesDone * 100 / bytesTotal);
+    }
+
+    @Override
+    public String toString() {
+        return bytesDone + " of " + bytesTotal + (partCount > 0 ? " (part " + partNumber + " of " + partCount + ")" : "") + " at "
+                + (long)bytesPerSecond + " B/s" + (done ? " done" : "");
+    }
+}
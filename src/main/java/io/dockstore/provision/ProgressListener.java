@@ -0,0 +1,28 @@
+package io.dockstore.provision;
+
+/**
+ * Receives the output of a running s3cmd command
+ *
+ * @since 18/10/26
+ */
+public interface ProgressListener {
+    /**
+     * Called for every line of output that is not a progress update (ex. "upload: 'file' -> 's3://bucket/file'  [1 of 1]")
+     *
+     * @param line The line, without the line terminator
+     */
+    void onMessage(String line);
+
+    /**
+     * Called for progress updates, at most once per progress interval except for the final update of a file or part
+     *
+     * @param event The progress update
+     */
+    void onProgress(ProgressEvent event);
+
+    /**
+     * Called once the command has no more output
+     */
+    default void onFinished() {
+    }
+}
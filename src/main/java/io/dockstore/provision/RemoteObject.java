@@ -0,0 +1,54 @@
+package io.dockstore.provision;
+
+/**
+ * Metadata about an object stored in S3 as reported by s3cmd
+ *
+ * @since 18/10/26
+ */
+public class RemoteObject {
+    private final String url;
+    private final long size;
+    private final String etag;
+
+    /**
+     * @param url  The full object url (ex. s3://bucket/dir/object)
+     * @param size The size of the object in bytes
+     * @param etag The ETag/MD5 sum of the object, may be null if s3cmd did not report one
+     */
+    public RemoteObject(String url, long size, String etag) {
+        this.url = url;
+        this.size = size;
+        this.etag = etag;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return The bucket name (ex. bucket)
+     */
+    public String getBucket() {
+        return S3CmdPluginHelper.getBucketName(url);
+    }
+
+    /**
+     * @return The object key (ex. dir/object)
+     */
+    public String getKey() {
+        return S3CmdPluginHelper.getObjectKey(url);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    @Override
+    public String toString() {
+        return url + " (" + size + " bytes, etag " + etag + ")";
+    }
+}
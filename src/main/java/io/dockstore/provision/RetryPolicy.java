@@ -0,0 +1,182 @@
+package io.dockstore.provision;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystemException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntUnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries the smallest unit of work available (a range, a part, a request or a whole s3cmd process) on transient failures,
+ * with exponential backoff and full jitter: the n-th retry waits a random time between 0 and min(max delay, base delay * 2^(n-1)).
+ *
+ * @since 18/10/26
+ */
+class RetryPolicy {
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 30 * 1000;
+    // EX_SERVERERROR, EX_SERVICE, EX_IOERR, EX_TEMPFAIL and EX_CONNECTIONREFUSED from https://github.com/s3tools/s3cmd/blob/master/S3/ExitCodes.py
+    static final String DEFAULT_RETRYABLE_EXIT_CODES = "11,15,74,75,111";
+    static final String DEFAULT_RETRYABLE_STATUS_CODES = "429,500,502,503,504";
+    static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, Collections.emptySet(), Collections.emptySet());
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Set<Integer> retryableExitCodes;
+    private final Set<Integer> retryableStatusCodes;
+    private final Sleeper sleeper;
+    private final DoubleSupplier random;
+
+    /**
+     * Waits between attempts
+     */
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    /**
+     * A single attempt at some work
+     */
+    interface Attempt<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * @param maxAttempts          The number of attempts including the first one
+     * @param baseDelayMillis      The longest wait before the first retry
+     * @param maxDelayMillis       The longest wait before any retry
+     * @param retryableExitCodes   The s3cmd exit codes worth another attempt
+     * @param retryableStatusCodes The HTTP status codes worth another attempt
+     */
+    RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, Set<Integer> retryableExitCodes, Set<Integer> retryableStatusCodes) {
+        this(maxAttempts, baseDelayMillis, maxDelayMillis, retryableExitCodes, retryableStatusCodes, Thread::sleep,
+                () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, Set<Integer> retryableExitCodes, Set<Integer> retryableStatusCodes,
+            Sleeper sleeper, DoubleSupplier random) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = Math.max(0, baseDelayMillis);
+        this.maxDelayMillis = Math.max(0, maxDelayMillis);
+        this.retryableExitCodes = retryableExitCodes;
+        this.retryableStatusCodes = retryableStatusCodes;
+        this.sleeper = sleeper;
+        this.random = random;
+    }
+
+    /**
+     * @param codes A comma separated list of codes (ex. "500,503")
+     * @return The codes, ignoring anything that is not a number
+     */
+    static Set<Integer> parseCodes(String codes) {
+        Set<Integer> parsed = new HashSet<>();
+        for (String code : codes.split(",")) {
+            if (code.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                parsed.add(Integer.parseInt(code.trim()));
+            } catch (NumberFormatException e) {
+                LOG.error("Ignoring invalid code " + code);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Runs the work until it succeeds, fails with an error that is not transient, or runs out of attempts
+     *
+     * @param description What is being attempted, for the logs (ex. "range 0-1023 of s3://bucket/object")
+     * @param attempt     The work
+     * @return The result of the successful attempt
+     * @throws IOException The error of the last attempt
+     */
+    <T> T call(String description, Attempt<T> attempt) throws IOException {
+        for (int attemptNumber = 1;; attemptNumber++) {
+            try {
+                return attempt.run();
+            } catch (IOException e) {
+                // An interrupt means the transfer was cancelled, and also surfaces as errors like ClosedByInterruptException
+                if (Thread.currentThread().isInterrupted() || !isRetryable(e) || !shouldRetry(description, attemptNumber, e.getMessage())) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs an s3cmd command until it exits with a code that is not transient, or runs out of attempts
+     *
+     * @param description What is being attempted, for the logs
+     * @param attempt     Runs the command, given the attempt number (starting from 1), and returns its exit code
+     * @return The exit code of the last attempt
+     */
+    int callCommand(String description, IntUnaryOperator attempt) {
+        for (int attemptNumber = 1;; attemptNumber++) {
+            int exitCode = attempt.applyAsInt(attemptNumber);
+            try {
+                if (exitCode == 0 || !retryableExitCodes.contains(exitCode) || !shouldRetry(description, attemptNumber,
+                        "exit code " + exitCode)) {
+                    return exitCode;
+                }
+            } catch (InterruptedIOException e) {
+                LOG.error("Interrupted while waiting to retry " + description);
+                return exitCode;
+            }
+        }
+    }
+
+    boolean isRetryable(IOException e) {
+        if (e instanceof S3Exception) {
+            return retryableStatusCodes.contains(((S3Exception)e).getStatusCode());
+        }
+        // Local file problems will not go away by trying again, network problems might
+        return !(e instanceof FileSystemException || e instanceof FileNotFoundException || e instanceof InterruptedIOException);
+    }
+
+    /**
+     * Waits before the next attempt if there is one left
+     *
+     * @return True if there should be another attempt
+     */
+    private boolean shouldRetry(String description, int attemptNumber, String reason) throws InterruptedIOException {
+        if (attemptNumber >= maxAttempts) {
+            if (maxAttempts > 1) {
+                LOG.error("Giving up on " + description + " after " + attemptNumber + " attempts: " + reason);
+                TransferMetrics.getInstance().recordRetriesExhausted();
+            }
+            return false;
+        }
+        long delay = getDelayMillis(attemptNumber);
+        LOG.warn("Attempt " + attemptNumber + " of " + maxAttempts + " at " + description + " failed (" + reason + "), retrying in " + delay
+                + " ms");
+        TransferMetrics.getInstance().recordRetry();
+        try {
+            sleeper.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry " + description);
+        }
+        return true;
+    }
+
+    /**
+     * @param attemptNumber The attempt that just failed, starting from 1
+     * @return How long to wait before the next attempt
+     */
+    long getDelayMillis(int attemptNumber) {
+        double ceiling = Math.min(maxDelayMillis, baseDelayMillis * Math.pow(2, attemptNumber - 1));
+        return (long)(random.getAsDouble() * ceiling);
+    }
+}
@@ -15,18 +15,35 @@
  */
 package io.dockstore.provision;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 
 import com.google.common.collect.Lists;
+import com.google.common.io.CountingInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,9 +52,6 @@ import ro.fortsoft.pf4j.Plugin;
 import ro.fortsoft.pf4j.PluginWrapper;
 import ro.fortsoft.pf4j.RuntimeMode;
 
-import static io.dockstore.provision.S3CmdPluginHelper.getChunkSize;
-import static io.dockstore.provision.S3CmdPluginHelper.nextLinesRequireCarriageReturn;
-
 /**
  * @author gluu
  */
@@ -67,13 +81,106 @@ public class S3CmdPlugin extends Plugin {
         private static final String CLIENT_LOCATION = "client";
         private static final String CONFIG_FILE_LOCATION = "config-file-location";
         private static final String VERBOSITY = "verbosity";
+        private static final String BUCKET_CACHE_TTL = "bucket-cache-ttl";
+        private static final String DOWNLOAD_CONCURRENCY = "download-concurrency";
+        private static final String DOWNLOAD_PART_SIZE = "download-part-size-mb";
+        private static final String PARALLEL_DOWNLOAD_THRESHOLD = "parallel-download-threshold-mb";
+        private static final String TRANSPORT = "transport";
+        private static final String BATCH_WORKERS = "batch-workers";
+        private static final String BATCH_BUCKET_CONCURRENCY = "batch-bucket-concurrency";
+        private static final int DEFAULT_BATCH_WORKERS = 4;
+        private static final String CACHE_DIRECTORY = "cache-directory";
+        private static final String CACHE_MAX_SIZE = "cache-max-size-mb";
+        private static final long DEFAULT_CACHE_MAX_SIZE = 100 * 1024;
+        private static final String PROGRESS_INTERVAL = "progress-interval-ms";
+        private static final String METRICS_FILE = "metrics-file";
+        private static final String UPLOAD_MANIFEST_DIRECTORY = "upload-manifest-directory";
+        private static final String VERIFY_INTEGRITY = "verify-integrity";
+        private static final String RESUME_TRANSFERS = "resume-transfers";
+        private static final String SERVER_SIDE_COPY = "server-side-copy";
+        private static final String ADAPTIVE_CHUNK_SIZE = "adaptive-chunk-size";
+        private static final String TRANSFER_HISTORY_FILE = "transfer-history-file";
+        private static final String RECURSIVE_DOWNLOAD_WORKERS = "recursive-download-workers";
+        private static final String MAX_CONCURRENT_TRANSFERS = "max-concurrent-transfers";
+        private static final String MAX_BANDWIDTH = "max-bandwidth-mb-per-second";
+        private static final String TRANSFER_PRIORITY = "transfer-priority";
+        private static final String GOVERNOR_DIRECTORY = "governor-directory";
+        private static final String RETRY_MAX_ATTEMPTS = "retry-max-attempts";
+        private static final String RETRY_BASE_DELAY = "retry-base-delay-ms";
+        private static final String RETRY_MAX_DELAY = "retry-max-delay-ms";
+        private static final String RETRY_EXIT_CODES = "retry-exit-codes";
+        private static final String RETRY_STATUS_CODES = "retry-status-codes";
+        private static final String PIPELINE_LINGER = "pipeline-linger-ms";
+        private static final String PIPELINE_MAX_BATCH = "pipeline-max-batch";
+        private static final String PIPELINE_MAX_OBJECT_SIZE = "pipeline-max-object-size-mb";
+        private static final long DEFAULT_PIPELINE_LINGER = 20;
+        private static final int DEFAULT_PIPELINE_MAX_BATCH = 50;
+        private static final long DEFAULT_PIPELINE_MAX_OBJECT_SIZE = 8;
+        private static final String PREFIX_INDEX_TTL = "prefix-index-ttl";
+        private static final String PREFIX_INDEX_MAX_OBJECTS = "prefix-index-max-objects";
+        private static final String PREFIX_INDEX_DIRECTORY = "prefix-index-directory";
+        private static final String STREAMING_MEMORY = "streaming-memory-mb";
+        // Two parts of the 5 MB S3 minimum
+        private static final long MIN_STREAMING_MEMORY = 10;
+        private static final String DEFAULT_TRANSPORT = "s3cmd";
+        private static final String NATIVE_TRANSPORT = "native";
+        private static final long DEFAULT_DOWNLOAD_PART_SIZE = 64;
+        private static final long DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD = 256;
+        private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+        private static final int STDIN_BUFFER_SIZE = 64 * 1024;
+        // Presigned urls only need to live as long as the download takes
+        private static final int SIGNED_URL_EXPIRY_SECONDS = 24 * 60 * 60;
         private static final String DEFAULT_CLIENT = "/usr/bin/s3cmd";
         private static final String DEFAULT_CONFIGURATION = System.getProperty("user.home") + "/.s3cfg";
         private static final String DEFAULT_VERBOSITY = "normal";
         private VerbosityEnum verbosity;
         private String client;
         private String configLocation;
+        private long bucketCacheTtl = BucketCache.DEFAULT_TTL_SECONDS;
+        private int downloadConcurrency = 1;
+        private int recursiveDownloadWorkers = 1;
+        private long downloadPartSize = DEFAULT_DOWNLOAD_PART_SIZE * BYTES_PER_MEGABYTE;
+        private long parallelDownloadThreshold = DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD * BYTES_PER_MEGABYTE;
+        private int batchWorkers = DEFAULT_BATCH_WORKERS;
+        private int batchBucketConcurrency = DEFAULT_BATCH_WORKERS;
         private Map<String, String> config;
+        // The settings setConfigAndClient last applied, so that it only resolves them again when they change
+        private Map<String, String> appliedConfig;
+        private CommandPipeline<PipelinedTransfer> pipeline;
+        private long pipelineMaxObjectSize = DEFAULT_PIPELINE_MAX_OBJECT_SIZE * BYTES_PER_MEGABYTE;
+        // 0 when the prefix index is off
+        private long prefixIndexTtl;
+        private int prefixIndexMaxObjects = PrefixIndex.DEFAULT_MAX_OBJECTS;
+        private long streamingMemory = StreamingUploader.DEFAULT_MEMORY_BUDGET;
+        private PrefixIndex prefixIndex = PrefixIndex.getInstance(null);
+        private NativeS3Client nativeClient;
+        private String nativeClientConfigLocation;
+        private ObjectCache objectCache;
+        private long progressInterval = S3CmdProgressParser.DEFAULT_INTERVAL_MILLIS;
+        private Path metricsFile;
+        private Path uploadManifestDirectory;
+        private boolean verifyIntegrity;
+        private boolean resumeTransfers;
+        private boolean serverSideCopy;
+        private boolean adaptiveChunkSize = true;
+        private TransferHistory transferHistory = TransferHistory.getInstance(null);
+        private RetryPolicy retryPolicy = RetryPolicy.NONE;
+        private TransferGovernor governor;
+        private int transferPriority;
+        private final TransferMetrics metrics = TransferMetrics.getInstance();
+        private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<>();
+        // Shows the output in dockstore --debug mode only
+        private static final ProgressListener DEBUG_LOG_LISTENER = new ProgressListener() {
+            @Override
+            public void onMessage(String line) {
+                LOG.debug(line);
+            }
+
+            @Override
+            public void onProgress(ProgressEvent event) {
+                LOG.debug(event.toString());
+            }
+        };
 
         // Similar to https://github.com/qos-ch/slf4j/blob/0b1e6d38cfabd4b7ed335aec1aa6b2ae0c770f08/slf4j-simple/src/main/java/org/slf4j/simple/SimpleLoggerConfiguration.java#L145
         public void setVerbosity(String verbosity) {
@@ -106,6 +213,20 @@ public class S3CmdPlugin extends Plugin {
             this.config = map;
         }
 
+        /**
+         * Registers a listener for the output and progress of every s3cmd put/get/mb run by this instance.
+         * The output is still rendered on the console as well.
+         *
+         * @param listener The listener, called from the thread reading the s3cmd output
+         */
+        public void addProgressListener(ProgressListener listener) {
+            progressListeners.add(listener);
+        }
+
+        public void removeProgressListener(ProgressListener listener) {
+            progressListeners.remove(listener);
+        }
+
         public Set<String> schemesHandled() {
             return new HashSet<>(Lists.newArrayList("s3cmd"));
         }
@@ -119,6 +240,166 @@ public class S3CmdPlugin extends Plugin {
          */
         public boolean downloadFrom(String sourcePath, Path destination) {
             setConfigAndClient();
+            return download(sourcePath, destination);
+        }
+
+        /**
+         * Downloads many files at once.  The files are spread over batch-workers workers, with at most
+         * batch-bucket-concurrency of them reading from the same bucket, and the largest files are started first.
+         *
+         * @param requests The remote sources (ex. s3cmd://bucket/dir/object) and local destinations
+         * @return One result per request, in the same order as the requests
+         */
+        public List<TransferResult> downloadFrom(List<TransferRequest> requests) {
+            setConfigAndClient();
+            Map<String, RemoteObject> objects = getRemoteObjects(requests);
+            return new BatchScheduler(batchWorkers, batchBucketConcurrency).run(requests, request -> {
+                String url = request.getRemotePath().replaceFirst("s3cmd", "s3");
+                // Directory sources are usually the longest transfers
+                if (url.endsWith("/")) {
+                    return Long.MAX_VALUE;
+                }
+                return objects.containsKey(url) ? objects.get(url).getSize() : -1L;
+            }, request -> download(request.getRemotePath(), request.getLocalPath(),
+                    objects.get(request.getRemotePath().replaceFirst("s3cmd", "s3"))));
+        }
+
+        /**
+         * Uploads many files at once, scheduled the same way as a batch download
+         *
+         * @param requests The remote destinations (ex. s3cmd://bucket/dir/object) and local sources
+         * @return One result per request, in the same order as the requests
+         */
+        public List<TransferResult> uploadTo(List<TransferRequest> requests) {
+            setConfigAndClient();
+            return new BatchScheduler(batchWorkers, batchBucketConcurrency).run(requests, request -> getLocalSize(request.getLocalPath()),
+                    request -> upload(request.getRemotePath(), request.getLocalPath()));
+        }
+
+        /**
+         * Looks up the remote sources of a batch with one listing per directory rather than one call per file
+         *
+         * @param requests The batch
+         * @return The listed objects by s3:// url, without directory sources
+         */
+        private Map<String, RemoteObject> getRemoteObjects(List<TransferRequest> requests) {
+            Map<String, RemoteObject> objects = new HashMap<>();
+            Set<String> parents = new HashSet<>();
+            for (TransferRequest request : requests) {
+                String url = request.getRemotePath().replaceFirst("s3cmd", "s3");
+                if (!url.endsWith("/")) {
+                    parents.add(url.substring(0, url.lastIndexOf('/') + 1));
+                }
+            }
+            for (String parent : parents) {
+                for (RemoteObject remoteObject : getIndexedObjects(parent).orElseGet(() -> listObjects(parent, false))) {
+                    objects.putIfAbsent(remoteObject.getUrl(), remoteObject);
+                }
+            }
+            return objects;
+        }
+
+        /**
+         * Lists a directory through the prefix index, which only lists it if no earlier listing covers it.
+         * The index may be out of date, so its objects come without their ETag: the object cache, resumed downloads and
+         * verification then get the current one from the server, and parallel downloads the current size.
+         *
+         * @param directoryUrl The directory url ending with a slash (ex. s3://bucket/dir/)
+         * @return The objects under the directory and its subdirectories, empty if the prefix index is off or cannot hold them
+         */
+        private Optional<List<RemoteObject>> getIndexedObjects(String directoryUrl) {
+            if (prefixIndexTtl <= 0) {
+                return Optional.empty();
+            }
+            return prefixIndex.list(configLocation, directoryUrl, prefixIndexTtl, prefixIndexMaxObjects, (url, limit) -> tryListObjects(url, true, limit))
+                    .map(objects -> objects.stream().map(object -> new RemoteObject(object.getUrl(), object.getSize(), null))
+                            .collect(Collectors.toList()));
+        }
+
+        /**
+         * Lists the objects under a directory
+         *
+         * @param directoryUrl The directory url ending with a slash (ex. s3://bucket/dir/)
+         * @param recursive    Whether to include the objects in subdirectories, along with their MD5 sums
+         * @return The objects, empty if they could not be listed
+         */
+        private List<RemoteObject> listObjects(String directoryUrl, boolean recursive) {
+            return tryListObjects(directoryUrl, recursive, Integer.MAX_VALUE).orElseGet(ArrayList::new);
+        }
+
+        /**
+         * Lists the objects under a directory
+         *
+         * @param directoryUrl The directory url ending with a slash (ex. s3://bucket/dir/)
+         * @param recursive    Whether to include the objects in subdirectories, along with their MD5 sums
+         * @param limit        The native transport stops listing once it has this many objects, s3cmd always lists them all
+         * @return The objects, or empty if they could not be listed (as opposed to an empty directory)
+         */
+        private Optional<List<RemoteObject>> tryListObjects(String directoryUrl, boolean recursive, int limit) {
+            if (nativeClient != null) {
+                String prefix = S3CmdPluginHelper.getObjectKey(directoryUrl);
+                try {
+                    List<RemoteObject> objects = new ArrayList<>();
+                    for (RemoteObject remoteObject : nativeClient.listObjects(S3CmdPluginHelper.getBucketName(directoryUrl), prefix, limit)) {
+                        if (recursive || remoteObject.getKey().indexOf('/', prefix.length()) < 0) {
+                            objects.add(remoteObject);
+                        }
+                    }
+                    return Optional.of(objects);
+                } catch (IOException e) {
+                    LOG.error("Could not list " + directoryUrl + ". " + e.getMessage());
+                    return Optional.empty();
+                }
+            }
+            List<String> output = new ArrayList<>();
+            String command = client + " -c " + configLocation + " ls " + (recursive ? "-r --list-md5 " : "") + directoryUrl;
+            if (executeConsoleCommand(command, false, output) != 0) {
+                return Optional.empty();
+            }
+            return Optional.of(S3CmdPluginHelper.parseListing(output));
+        }
+
+        private static long getLocalSize(Path path) {
+            try {
+                if (Files.isDirectory(path)) {
+                    long total = 0;
+                    for (Path file : NativeS3Client.listFiles(path)) {
+                        total += Files.size(file);
+                    }
+                    return total;
+                }
+                return Files.size(path);
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Downloads without re-reading the configuration, recording the time taken and bytes received
+         */
+        private boolean download(String sourcePath, Path destination) {
+            return download(sourcePath, destination, null);
+        }
+
+        /**
+         * Downloads without re-reading the configuration, recording the time taken and bytes received
+         *
+         * @param knownObject The object metadata if the source is an object that has already been looked up, otherwise null
+         */
+        private boolean download(String sourcePath, Path destination, RemoteObject knownObject) {
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                success = performDownload(sourcePath, destination, knownObject);
+                return success;
+            } finally {
+                long bytes = success ? getLocalSize(getTargetFile(sourcePath, destination)) : 0;
+                metrics.recordDownload(System.nanoTime() - start, Math.max(0, bytes), success);
+                writeMetricsSummary();
+            }
+        }
+
+        private boolean performDownload(String sourcePath, Path destination, RemoteObject knownObject) {
             // ambiguous how to reference s3cmd files, rip off these kinds of headers
             sourcePath = sourcePath.replaceFirst("s3cmd", "s3");
 
@@ -127,177 +408,1510 @@ public class S3CmdPlugin extends Plugin {
             // If the source end with a slash, source could be either a file or a directory
             // It can technically be either, but we're recursively getting the source files as if it's a directory because there's no side effect
             // If the destination does not end with a slash, source must be a file
+            // The prefix index can tell a directory named without the slash from an object, without asking the server again
+            if (!sourcePath.endsWith("/") && knownObject == null && prefixIndexTtl > 0
+                    && prefixIndex.isDirectory(configLocation, sourcePath, prefixIndexTtl).orElse(false)) {
+                LOG.info(sourcePath + " is a directory, downloading it as " + sourcePath + "/");
+                sourcePath += "/";
+            }
             if (sourcePath.endsWith("/")) {
                 recursive = "-r ";
+            } else {
+                return downloadCachedObject(sourcePath, destination, knownObject);
             }
-            String command = client + " -c " + configLocation + " get " + recursive + sourcePath + " " + destination + " --force";
-            int exitCode = executeConsoleCommand(command, true);
-            return checkExitCode(exitCode);
+            if (recursiveDownloadWorkers > 1) {
+                Optional<Boolean> fanOutResult = fanOutDownload(sourcePath, destination);
+                if (fanOutResult.isPresent()) {
+                    return fanOutResult.get();
+                }
+            }
+            String directoryUrl = sourcePath;
+            String recursiveSource = recursive + sourcePath;
+            return governed("download of " + directoryUrl, () -> {
+                if (nativeClient != null) {
+                    return checkExitCode(nativeGet(directoryUrl, destination));
+                }
+                String command = client + " -c " + configLocation + " get " + recursiveSource + " " + destination + " --force"
+                        + getLimitRateOption();
+                int exitCode = executeConsoleCommand(command, true);
+                return checkExitCode(exitCode);
+            });
         }
 
-        // This function checks the exit code and decides what to return
-        // See https://github.com/s3tools/s3cmd/blob/master/S3/ExitCodes.py for exit code description
-        private boolean checkExitCode(int exitCode) {
-            switch (exitCode) {
-            case 0: {
-                return true;
+        /**
+         * Lists a directory once and downloads its objects with recursive-download-workers workers
+         *
+         * @param sourcePath  The directory url ending with a slash (ex. s3://bucket/dir/)
+         * @param destination The local directory
+         * @return Whether the download was successful, or empty if the directory could not be listed
+         */
+        private Optional<Boolean> fanOutDownload(String sourcePath, Path destination) {
+            List<RemoteObject> objects = getIndexedObjects(sourcePath).orElseGet(() -> listObjects(sourcePath, true));
+            if (objects.isEmpty()) {
+                LOG.info("Could not list " + sourcePath + ", falling back to a single recursive download");
+                return Optional.empty();
             }
-            case 65:
-            case 71:
-            case 74:
-            case 75: {
-                return false;
+            try {
+                return Optional.of(new DirectoryDownloader(recursiveDownloadWorkers).download(sourcePath, objects, destination,
+                        (remoteObject, target) -> downloadCachedObject(remoteObject.getUrl(), target, remoteObject)));
+            } catch (IOException e) {
+                LOG.error("Could not create the directories under " + destination + ". " + e.getMessage());
+                return Optional.of(false);
             }
-            default: {
-                throw new RuntimeException("Process exited with exit code" + exitCode);
+        }
+
+        /**
+         * Downloads a single object through the object cache if there is one
+         *
+         * @param sourcePath   The object url (ex. s3://bucket/dir/object)
+         * @param destination  The destination where the file is supposed to be (includes filename)
+         * @param knownObject  The object metadata if it has already been looked up, otherwise null
+         * @return Whether download was successful or not
+         */
+        private boolean downloadCachedObject(String sourcePath, Path destination, RemoteObject knownObject) {
+            if (objectCache != null) {
+                RemoteObject remoteObject = knownObject == null || knownObject.getEtag() == null ? getObjectInfo(sourcePath) : knownObject;
+                if (remoteObject != null && remoteObject.getEtag() != null) {
+                    try {
+                        boolean fetched = objectCache.fetch(remoteObject, getTargetFile(sourcePath, destination),
+                                file -> downloadObject(sourcePath, file, remoteObject));
+                        recordProvenance(sourcePath, destination, fetched, remoteObject);
+                        return fetched;
+                    } catch (IOException e) {
+                        LOG.error("Could not use the object cache for " + sourcePath + ". " + e.getMessage());
+                    }
+                }
             }
+            RemoteObject remoteObject = knownObject;
+            if (serverSideCopy && (remoteObject == null || remoteObject.getEtag() == null)) {
+                // Looked up before the download, so that an object changed in between is never taken for the downloaded file
+                RemoteObject current = getObjectInfo(sourcePath);
+                remoteObject = current == null ? knownObject : current;
             }
+            boolean downloaded = downloadObject(sourcePath, destination, remoteObject);
+            recordProvenance(sourcePath, destination, downloaded, remoteObject);
+            return downloaded;
         }
 
         /**
-         * This sets the s3cmd client and s3 config file based on the dockstore config file and defaults
+         * Remembers where a downloaded file came from, so that uploading it unchanged can be a server-side copy instead
+         *
+         * @param objectUrl    The object url (ex. s3://bucket/dir/object)
+         * @param destination  The destination file or directory
+         * @param success      Whether the download was successful
+         * @param remoteObject The object metadata if it has already been looked up, otherwise null
          */
-        private void setConfigAndClient() {
-            if (config == null) {
-                LOG.error("You are missing a dockstore config file");
-            } else {
-                setConfigLocation(config.getOrDefault(CONFIG_FILE_LOCATION, DEFAULT_CONFIGURATION));
-                setClient(config.getOrDefault(CLIENT_LOCATION, DEFAULT_CLIENT));
-                setVerbosity(config.getOrDefault(VERBOSITY, DEFAULT_VERBOSITY));
+        private void recordProvenance(String objectUrl, Path destination, boolean success, RemoteObject remoteObject) {
+            if (success && serverSideCopy) {
+                DownloadProvenance.getInstance().record(configLocation, getTargetFile(objectUrl, destination), objectUrl,
+                        remoteObject == null ? null : remoteObject.getEtag());
             }
         }
 
         /**
-         * Uploads the local source file and places at the remote destination
+         * Downloads a single object
          *
-         * @param destPath   The remote destination (ex. s3cmd://bucket/dir/object)
-         * @param sourceFile The local source file (ex. file.txt)
-         * @param metadata   Metadata: currently not used
-         * @return Returns true on successful upload, false otherwise
+         * @param sourcePath   The object url (ex. s3://bucket/dir/object)
+         * @param destination  The destination where the file is supposed to be (includes filename)
+         * @param remoteObject The object metadata if it has already been looked up, otherwise null
+         * @return Whether download was successful or not
          */
-        public boolean uploadTo(String destPath, Path sourceFile, Optional<String> metadata) {
-            setConfigAndClient();
-            long sizeInBytes;
+        private boolean downloadObject(String sourcePath, Path destination, RemoteObject remoteObject) {
+            return governed("download of " + sourcePath, () -> performDownloadObject(sourcePath, destination, remoteObject));
+        }
+
+        private boolean performDownloadObject(String sourcePath, Path destination, RemoteObject remoteObject) {
+            if (downloadConcurrency > 1) {
+                Optional<Boolean> parallelResult = parallelDownload(sourcePath, destination, remoteObject);
+                if (parallelResult.isPresent()) {
+                    if (parallelResult.get()) {
+                        verifyDownload(sourcePath, getTargetFile(sourcePath, destination), remoteObject);
+                    }
+                    return parallelResult.get();
+                }
+            }
+            if (nativeClient != null) {
+                // The native client verifies while streaming
+                return checkExitCode(nativeGet(sourcePath, destination));
+            }
+            Path target = getTargetFile(sourcePath, destination);
+            if (isPipelined(remoteObject)) {
+                boolean success = checkExitCode(pipelinedGet(sourcePath, target));
+                if (success) {
+                    verifyDownload(sourcePath, target, remoteObject);
+                }
+                return success;
+            }
+            TransferJournal journal = null;
+            String overwrite = " --force";
+            if (resumeTransfers) {
+                // The ETag tells whether a partial file left by an earlier attempt belongs to the current version of the object
+                remoteObject = remoteObject == null || remoteObject.getEtag() == null ? getObjectInfo(sourcePath) : remoteObject;
+                if (remoteObject != null && remoteObject.getEtag() != null) {
+                    journal = TransferJournal.open(target, sourcePath, remoteObject.getEtag(), remoteObject.getSize(), 0, 0);
+                    if (journal != null && journal.isResumed() && Files.exists(target)) {
+                        overwrite = " --continue";
+                    }
+                }
+            }
+            String command = client + " -c " + configLocation + " get " + sourcePath + " " + destination + getLimitRateOption();
+            // A retry only continues the partial file if the journal says it belongs to the same version of the object
+            String retryCommand = command + (journal != null ? " --continue" : " --force");
+            int exitCode = executeConsoleCommand(command + overwrite, retryCommand, true, null);
+            boolean success = checkExitCode(exitCode);
+            if (success) {
+                if (journal != null) {
+                    journal.delete();
+                }
+                verifyDownload(sourcePath, target, remoteObject);
+            }
+            return success;
+        }
+
+        /**
+         * @param remoteObject The object metadata if it has already been looked up, otherwise null
+         * @return Whether the transfer of the object can share an s3cmd process with others
+         */
+        private boolean isPipelined(RemoteObject remoteObject) {
+            return remoteObject != null && isPipelined(remoteObject.getSize());
+        }
+
+        /**
+         * @param sizeInBytes The size of the object or file, negative if it is not known
+         * @return Whether the transfer of the object or file can share an s3cmd process with others
+         */
+        private boolean isPipelined(long sizeInBytes) {
+            return pipeline != null && nativeClient == null && sizeInBytes >= 0 && sizeInBytes <= pipelineMaxObjectSize;
+        }
+
+        /**
+         * Downloads a small object with 's3cmd get', in the same process as the other small objects downloaded to the same
+         * directory at about the same time.  s3cmd names the files of a batch after their objects, so a file with another name
+         * is downloaded on its own.
+         *
+         * @param objectUrl The object url (ex. s3://bucket/dir/object)
+         * @param target    The local file
+         * @return The exit code of the download
+         */
+        private int pipelinedGet(String objectUrl, Path target) {
+            PipelinedTransfer transfer = new PipelinedTransfer(objectUrl, target.toAbsolutePath());
+            Path directory = transfer.localFile.getParent();
+            if (directory == null || !objectUrl.endsWith("/" + target.getFileName())) {
+                return getAlone(transfer);
+            }
             try {
-                sizeInBytes = Files.size(sourceFile);
+                Files.createDirectories(directory);
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                LOG.debug("Could not create " + directory + ". " + e.getMessage());
+                return getAlone(transfer);
             }
-            String recursive = "";
+            return pipeline.submit("get " + directory, transfer, transfers -> {
+                StringBuilder command = new StringBuilder(client + " -c " + configLocation + " get");
+                for (PipelinedTransfer each : transfers) {
+                    command.append(' ').append(each.objectUrl);
+                }
+                command.append(' ').append(directory.toString().replace(" ", "%32")).append("/ --force").append(getLimitRateOption());
+                return executeConsoleCommand(command.toString(), true);
+            }, this::getAlone);
+        }
 
-            // If the destination end with a slash, source could be either a file or a directory
-            // It can technically be either, but we're recursively putting the source file as if it's a directory because there's no side effect
-            // If the destination does not end with a slash, source must be a file
-            if (destPath.endsWith("/")) {
-                recursive = "-r ";
+        private int getAlone(PipelinedTransfer transfer) {
+            return executeConsoleCommand(client + " -c " + configLocation + " get " + transfer.objectUrl + " "
+                    + transfer.localFile.toString().replace(" ", "%32") + " --force" + getLimitRateOption(), true);
+        }
+
+        /**
+         * Uploads a small file with 's3cmd put', in the same process as the other small files uploaded to the same remote
+         * directory at about the same time.  s3cmd names the objects of a batch after their files, so an object with another
+         * name is uploaded on its own.
+         *
+         * @param objectUrl  The object url (ex. s3://bucket/dir/object)
+         * @param sourceFile The local file
+         * @return The exit code of the upload
+         */
+        private int pipelinedPut(String objectUrl, Path sourceFile) {
+            PipelinedTransfer transfer = new PipelinedTransfer(objectUrl, sourceFile);
+            if (!objectUrl.endsWith("/" + sourceFile.getFileName())) {
+                return putAlone(transfer);
             }
+            String directoryUrl = objectUrl.substring(0, objectUrl.lastIndexOf('/') + 1);
+            return pipeline.submit("put " + directoryUrl, transfer, transfers -> {
+                StringBuilder command = new StringBuilder(client + " -c " + configLocation + " put");
+                for (PipelinedTransfer each : transfers) {
+                    command.append(' ').append(each.localFile.toString().replace(" ", "%32"));
+                }
+                command.append(' ').append(directoryUrl).append(getLimitRateOption());
+                return executeConsoleCommand(command.toString(), true);
+            }, this::putAlone);
+        }
 
-            String modifiedChunkSize = getChunkSize(sizeInBytes);
-            destPath = destPath.replace("s3cmd://", "s3://");
-            String trimmedPath = destPath.replace("s3://", "");
-            List<String> splitPathList = Lists.newArrayList(trimmedPath.split("/"));
-            String bucketName = splitPathList.remove(0);
-            String fullBucketName = "s3://" + bucketName;
-            if (checkBucket(fullBucketName)) {
-                LOG.info("Bucket exists");
-            } else {
-                if (!createBucket(fullBucketName)) {
-                    // New s3cmd apparently returns an error if bucket exists
-                    LOG.info("Could not create bucket");
+        private int putAlone(PipelinedTransfer transfer) {
+            return executeConsoleCommand(client + " -c " + configLocation + " put " + transfer.localFile.toString().replace(" ", "%32") + " "
+                    + transfer.objectUrl + getLimitRateOption(), true);
+        }
+
+        /**
+         * Checks a downloaded file against the ETag of the remote object when verify-integrity is on, and deletes it if it does not match
+         *
+         * @param objectUrl    The object url (ex. s3://bucket/dir/object)
+         * @param file         The downloaded file
+         * @param remoteObject The object metadata if it has already been looked up, otherwise null
+         */
+        private void verifyDownload(String objectUrl, Path file, RemoteObject remoteObject) {
+            try {
+                verify(objectUrl, file, remoteObject == null ? null : remoteObject.getEtag(), 0);
+            } catch (IntegrityVerificationException e) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException deleteException) {
+                    LOG.error("Could not delete " + file + ". " + deleteException.getMessage());
                 }
+                throw e;
             }
-            String command = client + " -c " + configLocation + " put " + recursive + sourceFile.toString().replace(" ", "%32") + " " + destPath
-                    + modifiedChunkSize;
-            int exitCode = executeConsoleCommand(command, true);
-            return checkExitCode(exitCode);
         }
 
         /**
-         * Check if the bucket exists
+         * Checks a local file against the ETag of the remote object when verify-integrity is on
          *
-         * @param bucket The actual bucket name (ex. s3://bucket)
-         * @return True if bucket exists, false if bucket doesn't exist
+         * @param objectUrl  The object url (ex. s3://bucket/dir/object)
+         * @param file       The local file
+         * @param remoteEtag The ETag of the object if it is already known, otherwise it is looked up
+         * @param partSize   The part size the plugin uploaded the object with, or 0 if it is not known
          */
-        private boolean checkBucket(String bucket) {
-            String command = client + " -c " + configLocation + " info " + bucket;
-            int exitCode = executeConsoleCommand(command, true);
-            return exitCode == 0;
+        private void verify(String objectUrl, Path file, String remoteEtag, long partSize) {
+            if (!verifyIntegrity) {
+                return;
+            }
+            if (remoteEtag == null) {
+                RemoteObject remoteObject = getObjectInfo(objectUrl);
+                remoteEtag = remoteObject == null ? null : remoteObject.getEtag();
+            }
+            if (remoteEtag == null) {
+                LOG.warn("Cannot verify " + objectUrl + ", its ETag is unknown");
+                return;
+            }
+            try {
+                EtagDigest.verify(objectUrl, file, remoteEtag, partSize, Runtime.getRuntime().availableProcessors());
+            } catch (IOException e) {
+                LOG.error("Could not verify " + objectUrl + ". " + e.getMessage());
+                throw new RuntimeException(e);
+            }
         }
 
         /**
-         * Creates the bucket
+         * s3cmd places the object inside the destination if the destination is an existing directory
          *
-         * @param bucket The name of the bucket that needs to be created
-         * @return True if bucket successfully created, false if it wasn't successfully created
+         * @param objectUrl   The object url (ex. s3://bucket/dir/object)
+         * @param destination The destination file or directory
+         * @return The destination file
          */
-        private boolean createBucket(String bucket) {
-            String command = client + " -c " + configLocation + " mb " + bucket;
-            int exitCode = executeConsoleCommand(command, verbosity.getLevel() >= VerbosityEnum.NORMAL.getLevel());
-            return exitCode == 0;
+        private static Path getTargetFile(String objectUrl, Path destination) {
+            return Files.isDirectory(destination) ? destination.resolve(objectUrl.substring(objectUrl.lastIndexOf('/') + 1)) : destination;
         }
 
         /**
-         * Executes the string command given
+         * Downloads with the native transport, following the same file/directory rules as 's3cmd get'
          *
-         * @param command The command to execute
-         * @return True if command was successfully execute without error, false otherwise.
+         * @param sourcePath  The object url or directory url ending with a slash (ex. s3://bucket/dir/)
+         * @param destination The destination file or directory
+         * @return The s3cmd exit code equivalent to the outcome
          */
-        private int executeConsoleCommand(String command, boolean printStdout) {
-            // Show command in dockstore --debug mode
-            LOG.debug("Executing command: " + command);
-            String[] split = command.split(" ");
-            for (int i = 0; i < split.length; i++) {
-                split[i] = split[i].replace("%32", " ");
-            }
-            ProcessBuilder builder = new ProcessBuilder(split);
-            builder.redirectErrorStream(true);
-            final Process p;
+        private int nativeGet(String sourcePath, Path destination) {
+            String bucket = S3CmdPluginHelper.getBucketName(sourcePath);
+            String key = S3CmdPluginHelper.getObjectKey(sourcePath);
             try {
-                p = builder.start();
-                final Thread ioThread = new Thread(() -> {
-                    try {
-                        final BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                        String line;
-                        boolean carriage = false;
-                        while ((line = reader.readLine()) != null) {
-                            if (printStdout) {
-                                // The line prior to the carriage return will start with "download" or "upload", must isolate from others
-                                if (carriage == false) {
-                                    // 's3cmd info' will only display in dockstore --debug mode
-                                    if (command.contains("info")) {
-                                        LOG.debug(line);
-                                    } else {
-                                        System.out.println(line);
-                                    }
-                                    carriage = nextLinesRequireCarriageReturn(line);
-                                } else {
-                                    System.out.print("\r" + line);
-                                }
-                            }
-                        }
-                        // For some reason file provisioning download does not output a newline, but upload does
-                        if (command.contains("get")) {
-                            System.out.println();
+                if (key.isEmpty() || key.endsWith("/")) {
+                    for (RemoteObject remoteObject : nativeClient.listObjects(bucket, key)) {
+                        String relative = remoteObject.getKey().substring(key.length());
+                        // Skip the zero byte "directory" placeholders some tools create
+                        if (!relative.isEmpty() && !relative.endsWith("/")) {
+                            nativeClient.getObject(bucket, remoteObject.getKey(), destination.resolve(relative));
                         }
-                        reader.close();
-                    } catch (IOException e) {
-                        LOG.error("Could not read input stream from process. " + e.getMessage());
-                        throw new RuntimeException(e);
                     }
-                });
-                ioThread.start();
-                try {
-                    return p.waitFor();
-                } catch (InterruptedException e) {
-                    LOG.error("Process interrupted. " + e.getMessage());
-                    throw new RuntimeException(e);
+                } else {
+                    Path target = getTargetFile(sourcePath, destination);
+                    nativeClient.getObject(bucket, key, target);
+                    System.out.println("download: '" + sourcePath + "' -> '" + target + "'  done");
                 }
+                return 0;
             } catch (IOException e) {
-                LOG.error("Could not execute command: " + command);
+                LOG.error("Could not download " + sourcePath + ". " + e.getMessage());
+                return toExitCode(e);
+            }
+        }
 
-                throw new RuntimeException(e);
+        /**
+         * Uploads with the native transport, following the same file/directory rules as 's3cmd put'
+         *
+         * @param destPath    The remote destination (ex. s3://bucket/dir/object or s3://bucket/dir/)
+         * @param sourceFile  The local source file or directory
+         * @param concurrency The number of uploads running at the same time, including this one
+         * @return The s3cmd exit code equivalent to the outcome
+         */
+        private int nativePut(String destPath, Path sourceFile, int concurrency) {
+            String bucket = S3CmdPluginHelper.getBucketName(destPath);
+            String key = S3CmdPluginHelper.getObjectKey(destPath);
+            boolean toDirectory = key.isEmpty() || key.endsWith("/");
+            try {
+                if (Files.isDirectory(sourceFile)) {
+                    String prefix = toDirectory ? key + sourceFile.getFileName() + "/" : key + "/";
+                    for (Path file : NativeS3Client.listFiles(sourceFile)) {
+                        String relative = sourceFile.relativize(file).toString().replace(File.separatorChar, '/');
+                        String objectUrl = "s3://" + bucket + "/" + prefix + relative;
+                        long chunkSize = getUploadChunkSize(objectUrl, file, Files.size(file), concurrency);
+                        String etag = nativeClient.putObject(bucket, prefix + relative, file, chunkSize);
+                        indexUpload(objectUrl, Files.size(file), etag);
+                        verify(objectUrl, file, etag, chunkSize);
+                    }
+                } else {
+                    String objectKey = toDirectory ? key + sourceFile.getFileName() : key;
+                    long chunkSize = getUploadChunkSize("s3://" + bucket + "/" + objectKey, sourceFile, Files.size(sourceFile), concurrency);
+                    String etag = nativeClient.putObject(bucket, objectKey, sourceFile, chunkSize);
+                    indexUpload("s3://" + bucket + "/" + objectKey, Files.size(sourceFile), etag);
+                    verify("s3://" + bucket + "/" + objectKey, sourceFile, etag, chunkSize);
+                    System.out.println("upload: '" + sourceFile + "' -> 's3://" + bucket + "/" + objectKey + "'  done");
+                }
+                return 0;
+            } catch (IOException e) {
+                LOG.error("Could not upload " + sourceFile + ". " + e.getMessage());
+                return toExitCode(e);
             }
         }
-    }
-}
 
+        /**
+         * Maps a native transport failure to the exit code s3cmd would have returned for it
+         * See https://github.com/s3tools/s3cmd/blob/master/S3/ExitCodes.py
+         *
+         * @param e The failure
+         * @return The s3cmd exit code
+         */
+        private static int toExitCode(IOException e) {
+            if (!(e instanceof S3Exception)) {
+                // EX_IOERR
+                return 74;
+            }
+            int statusCode = ((S3Exception)e).getStatusCode();
+            switch (statusCode) {
+            case 403:
+                // EX_ACCESSDENIED
+                return 77;
+            case 404:
+                // EX_NOTFOUND
+                return 12;
+            case 409:
+                // EX_CONFLICT
+                return 13;
+            case 412:
+                // EX_PRECONDITION
+                return 14;
+            default:
+                // EX_SERVERERROR or EX_GENERAL
+                return statusCode >= 500 ? 11 : 1;
+            }
+        }
+
+        /**
+         * Downloads a large object with several byte-range requests at once
+         *
+         * @param sourcePath   The object url (ex. s3://bucket/dir/object)
+         * @param destination  The destination where the file is supposed to be (includes filename)
+         * @param knownObject  The object metadata if it has already been looked up, otherwise null
+         * @return Whether the download was successful, or empty if the object should be downloaded with a single 's3cmd get'
+         */
+        private Optional<Boolean> parallelDownload(String sourcePath, Path destination, RemoteObject knownObject) {
+            // A size without an ETag may come from the prefix index and be out of date, so it is checked before it is preallocated
+            RemoteObject remoteObject = knownObject == null || knownObject.getEtag() == null ? getObjectInfo(sourcePath) : knownObject;
+            if (remoteObject == null || remoteObject.getSize() < parallelDownloadThreshold) {
+                return Optional.empty();
+            }
+            URL url = signUrl(sourcePath);
+            if (url == null) {
+                LOG.info("Could not sign " + sourcePath + ", falling back to a single stream download");
+                return Optional.empty();
+            }
+            Path target = getTargetFile(sourcePath, destination);
+            TransferJournal journal = resumeTransfers && remoteObject.getEtag() != null
+                    ? openDownloadJournal(target, sourcePath, remoteObject, downloadPartSize) : null;
+            try {
+                new ParallelRangeDownloader(downloadPartSize, downloadConcurrency, retryPolicy,
+                        governor == null ? new TokenBucket(0) : governor.getBandwidth())
+                        .download(url, remoteObject.getSize(), target, journal);
+                if (journal != null) {
+                    journal.delete();
+                }
+                System.out.println("download: '" + sourcePath + "' -> '" + target + "'  " + remoteObject.getSize() + " bytes done");
+                return Optional.of(true);
+            } catch (IOException e) {
+                if (isRejected(e)) {
+                    // ex. an s3cmd signurl url (signature V2) on an endpoint that only accepts signature V4
+                    LOG.info("The presigned url of " + sourcePath + " was rejected, falling back to a single stream download. " + e.getMessage());
+                    discardPartialDownload(target, journal);
+                    return Optional.empty();
+                }
+                LOG.error("Could not download " + sourcePath + ". " + e.getMessage());
+                return Optional.of(false);
+            }
+        }
+
+        /**
+         * @return Whether the server refused a request outright (a 4xx other than throttling), rather than failing to serve it
+         */
+        private static boolean isRejected(IOException e) {
+            if (!(e instanceof S3Exception)) {
+                return false;
+            }
+            int statusCode = ((S3Exception)e).getStatusCode();
+            return statusCode >= 400 && statusCode < 500 && statusCode != 429;
+        }
+
+        private static void discardPartialDownload(Path target, TransferJournal journal) {
+            if (journal != null) {
+                journal.delete();
+            }
+            try {
+                Files.deleteIfExists(target);
+            } catch (IOException e) {
+                LOG.warn("Could not delete " + target + ". " + e.getMessage());
+            }
+        }
+
+        /**
+         * Continues the journal of an earlier download of the same version of the object, as long as its partial file still exists
+         *
+         * @param target       The destination file
+         * @param objectUrl    The object url (ex. s3://bucket/dir/object)
+         * @param remoteObject The current size and ETag of the object
+         * @param partSize     The size of the ranges
+         * @return The journal, or null if it could not be written
+         */
+        private static TransferJournal openDownloadJournal(Path target, String objectUrl, RemoteObject remoteObject, long partSize) {
+            if (!Files.exists(target)) {
+                TransferJournal stale = TransferJournal.load(target);
+                if (stale != null) {
+                    stale.delete();
+                }
+            }
+            return TransferJournal.open(target, objectUrl, remoteObject.getEtag(), remoteObject.getSize(), partSize, 0);
+        }
+
+        /**
+         * Gets the size and ETag of an object
+         *
+         * @param objectUrl The object url (ex. s3://bucket/dir/object)
+         * @return The object metadata or null if it could not be retrieved
+         */
+        private RemoteObject getObjectInfo(String objectUrl) {
+            if (nativeClient != null) {
+                try {
+                    return nativeClient.headObject(S3CmdPluginHelper.getBucketName(objectUrl), S3CmdPluginHelper.getObjectKey(objectUrl));
+                } catch (IOException e) {
+                    LOG.error("Could not get info for " + objectUrl + ". " + e.getMessage());
+                    return null;
+                }
+            }
+            List<String> output = new ArrayList<>();
+            String command = client + " -c " + configLocation + " info " + objectUrl;
+            if (executeConsoleCommand(command, true, output) != 0) {
+                return null;
+            }
+            return S3CmdPluginHelper.parseObjectInfo(objectUrl, output);
+        }
+
+        /**
+         * Presigns an object so that it can be read with plain HTTP requests
+         *
+         * @param objectUrl The object url (ex. s3://bucket/dir/object)
+         * @return The presigned url or null if it could not be signed
+         */
+        private URL signUrl(String objectUrl) {
+            try {
+                if (nativeClient != null) {
+                    return nativeClient.presign(S3CmdPluginHelper.getBucketName(objectUrl), S3CmdPluginHelper.getObjectKey(objectUrl),
+                            SIGNED_URL_EXPIRY_SECONDS);
+                }
+                List<String> output = new ArrayList<>();
+                String command = client + " -c " + configLocation + " signurl " + objectUrl + " +" + SIGNED_URL_EXPIRY_SECONDS;
+                if (executeConsoleCommand(command, false, output) != 0 || output.isEmpty()) {
+                    return null;
+                }
+                return new URL(output.get(output.size() - 1).trim());
+            } catch (IOException e) {
+                LOG.error("Could not sign " + objectUrl + ". " + e.getMessage());
+                return null;
+            }
+        }
+
+        // This function checks the exit code and decides what to return
+        // See https://github.com/s3tools/s3cmd/blob/master/S3/ExitCodes.py for exit code description
+        private boolean checkExitCode(int exitCode) {
+            switch (exitCode) {
+            case 0: {
+                return true;
+            }
+            case 65:
+            case 71:
+            case 74:
+            case 75: {
+                return false;
+            }
+            default: {
+                throw new RuntimeException("Process exited with exit code" + exitCode);
+            }
+            }
+        }
+
+        /**
+         * This sets the s3cmd client and s3 config file based on the dockstore config file and defaults.
+         * Nothing is resolved again until the settings change.
+         */
+        private synchronized void setConfigAndClient() {
+            if (config == null) {
+                LOG.error("You are missing a dockstore config file");
+            } else if (!config.equals(appliedConfig)) {
+                setConfigLocation(config.getOrDefault(CONFIG_FILE_LOCATION, DEFAULT_CONFIGURATION));
+                setClient(config.getOrDefault(CLIENT_LOCATION, DEFAULT_CLIENT));
+                setVerbosity(config.getOrDefault(VERBOSITY, DEFAULT_VERBOSITY));
+                bucketCacheTtl = getLongConfig(BUCKET_CACHE_TTL, BucketCache.DEFAULT_TTL_SECONDS);
+                downloadConcurrency = (int)getLongConfig(DOWNLOAD_CONCURRENCY, 1);
+                downloadPartSize = Math.max(1, getLongConfig(DOWNLOAD_PART_SIZE, DEFAULT_DOWNLOAD_PART_SIZE)) * BYTES_PER_MEGABYTE;
+                parallelDownloadThreshold = getLongConfig(PARALLEL_DOWNLOAD_THRESHOLD, DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD) * BYTES_PER_MEGABYTE;
+                recursiveDownloadWorkers = (int)getLongConfig(RECURSIVE_DOWNLOAD_WORKERS, 1);
+                streamingMemory = Math.max(MIN_STREAMING_MEMORY,
+                        getLongConfig(STREAMING_MEMORY, StreamingUploader.DEFAULT_MEMORY_BUDGET / BYTES_PER_MEGABYTE)) * BYTES_PER_MEGABYTE;
+                setTransport(config.getOrDefault(TRANSPORT, DEFAULT_TRANSPORT));
+                verifyIntegrity = Boolean.parseBoolean(config.getOrDefault(VERIFY_INTEGRITY, "false").trim());
+                resumeTransfers = Boolean.parseBoolean(config.getOrDefault(RESUME_TRANSFERS, "false").trim());
+                serverSideCopy = Boolean.parseBoolean(config.getOrDefault(SERVER_SIDE_COPY, "false").trim());
+                adaptiveChunkSize = Boolean.parseBoolean(config.getOrDefault(ADAPTIVE_CHUNK_SIZE, "true").trim());
+                String historyFile = config.get(TRANSFER_HISTORY_FILE);
+                transferHistory = TransferHistory.getInstance(historyFile == null || historyFile.trim().isEmpty() ? null : Paths.get(historyFile.trim()));
+                retryPolicy = new RetryPolicy((int)getLongConfig(RETRY_MAX_ATTEMPTS, RetryPolicy.DEFAULT_MAX_ATTEMPTS),
+                        getLongConfig(RETRY_BASE_DELAY, RetryPolicy.DEFAULT_BASE_DELAY_MILLIS),
+                        getLongConfig(RETRY_MAX_DELAY, RetryPolicy.DEFAULT_MAX_DELAY_MILLIS),
+                        RetryPolicy.parseCodes(config.getOrDefault(RETRY_EXIT_CODES, RetryPolicy.DEFAULT_RETRYABLE_EXIT_CODES)),
+                        RetryPolicy.parseCodes(config.getOrDefault(RETRY_STATUS_CODES, RetryPolicy.DEFAULT_RETRYABLE_STATUS_CODES)));
+                setGovernor((int)getLongConfig(MAX_CONCURRENT_TRANSFERS, 0), getLongConfig(MAX_BANDWIDTH, 0) * BYTES_PER_MEGABYTE);
+                transferPriority = (int)getLongConfig(TRANSFER_PRIORITY, 0);
+                if (nativeClient != null) {
+                    nativeClient.setVerifyIntegrity(verifyIntegrity);
+                    nativeClient.setResumeTransfers(resumeTransfers);
+                    nativeClient.setRetryPolicy(retryPolicy);
+                    nativeClient.setBandwidth(governor == null ? new TokenBucket(0) : governor.getBandwidth());
+                }
+                batchWorkers = (int)getLongConfig(BATCH_WORKERS, DEFAULT_BATCH_WORKERS);
+                batchBucketConcurrency = (int)getLongConfig(BATCH_BUCKET_CONCURRENCY, batchWorkers);
+                setObjectCache(config.get(CACHE_DIRECTORY), getLongConfig(CACHE_MAX_SIZE, DEFAULT_CACHE_MAX_SIZE) * BYTES_PER_MEGABYTE);
+                progressInterval = getLongConfig(PROGRESS_INTERVAL, S3CmdProgressParser.DEFAULT_INTERVAL_MILLIS);
+                String metricsFileLocation = config.get(METRICS_FILE);
+                metricsFile = metricsFileLocation == null || metricsFileLocation.trim().isEmpty() ? null : Paths.get(metricsFileLocation.trim());
+                String manifestDirectory = config.get(UPLOAD_MANIFEST_DIRECTORY);
+                uploadManifestDirectory = manifestDirectory == null || manifestDirectory.trim().isEmpty() ? null : Paths.get(manifestDirectory.trim());
+                setPipeline(getLongConfig(PIPELINE_LINGER, DEFAULT_PIPELINE_LINGER), (int)getLongConfig(PIPELINE_MAX_BATCH, DEFAULT_PIPELINE_MAX_BATCH));
+                pipelineMaxObjectSize = getLongConfig(PIPELINE_MAX_OBJECT_SIZE, DEFAULT_PIPELINE_MAX_OBJECT_SIZE) * BYTES_PER_MEGABYTE;
+                prefixIndexTtl = getLongConfig(PREFIX_INDEX_TTL, 0);
+                prefixIndexMaxObjects = (int)getLongConfig(PREFIX_INDEX_MAX_OBJECTS, PrefixIndex.DEFAULT_MAX_OBJECTS);
+                String indexDirectory = config.get(PREFIX_INDEX_DIRECTORY);
+                prefixIndex = PrefixIndex.getInstance(indexDirectory == null || indexDirectory.trim().isEmpty() ? null : Paths.get(indexDirectory.trim()));
+                appliedConfig = new HashMap<>(config);
+            }
+        }
+
+        /**
+         * Lets small transfers that run at about the same time share s3cmd processes
+         *
+         * @param lingerMillis How long the first transfer of a batch waits for others, 0 to run every transfer in its own process
+         * @param maxBatchSize The most transfers in one process
+         */
+        private void setPipeline(long lingerMillis, int maxBatchSize) {
+            pipeline = lingerMillis <= 0 || maxBatchSize <= 1 ? null : new CommandPipeline<>(lingerMillis, maxBatchSize);
+        }
+
+        /**
+         * Uses the governor shared by every launcher on the machine if there is a limit
+         *
+         * @param maxConcurrentTransfers The number of transfers running at once on the machine, 0 for no limit
+         * @param maxBytesPerSecond      The bandwidth of all of the transfers on the machine together, 0 for no limit
+         */
+        private void setGovernor(int maxConcurrentTransfers, long maxBytesPerSecond) {
+            if (maxConcurrentTransfers <= 0 && maxBytesPerSecond <= 0) {
+                governor = null;
+                return;
+            }
+            String directory = config.getOrDefault(GOVERNOR_DIRECTORY, TransferGovernor.DEFAULT_DIRECTORY).trim();
+            governor = TransferGovernor.getInstance(Paths.get(directory), maxConcurrentTransfers, maxBytesPerSecond);
+        }
+
+        /**
+         * Runs a transfer once the governor has a slot for it
+         *
+         * @param description What is being transferred, for the logs
+         * @param transfer    The transfer
+         * @return Whether the transfer was successful
+         */
+        private boolean governed(String description, BooleanSupplier transfer) {
+            if (governor == null) {
+                return transfer.getAsBoolean();
+            }
+            TransferGovernor.Permit permit;
+            try {
+                permit = governor.acquire(transferPriority, description);
+            } catch (InterruptedIOException e) {
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                LOG.warn("Could not use the transfer governor, transferring without a slot. " + e.getMessage());
+                return transfer.getAsBoolean();
+            }
+            try {
+                return transfer.getAsBoolean();
+            } finally {
+                permit.close();
+            }
+        }
+
+        /**
+         * @return The s3cmd option that keeps a get or put within its share of the bandwidth, if there is a limit
+         */
+        private String getLimitRateOption() {
+            return governor == null || governor.getProcessRateLimit() <= 0 ? "" : " --limit-rate=" + governor.getProcessRateLimit();
+        }
+
+        /**
+         * Chooses between shelling out to s3cmd and the native in-JVM transport.
+         * The native transport reads the endpoint and credentials from the same s3cmd config file.
+         *
+         * @param transport Either "s3cmd" or "native"
+         */
+        private void setTransport(String transport) {
+            if (!NATIVE_TRANSPORT.equalsIgnoreCase(transport)) {
+                if (!DEFAULT_TRANSPORT.equalsIgnoreCase(transport)) {
+                    LOG.error("Unknown transport setting");
+                }
+                nativeClient = null;
+                return;
+            }
+            // Keep the client (and its connections) unless the s3cmd config file changed
+            if (nativeClient == null || !configLocation.equals(nativeClientConfigLocation)) {
+                try {
+                    nativeClient = new NativeS3Client(S3Config.load(Paths.get(configLocation)));
+                    nativeClientConfigLocation = configLocation;
+                } catch (IOException e) {
+                    LOG.error("Could not read s3cmd config file " + configLocation);
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        /**
+         * Enables the on-disk object cache shared by every launcher using the same directory
+         *
+         * @param directory      The cache directory, null to disable the cache
+         * @param maxSizeInBytes The size the cache is trimmed back to
+         */
+        private void setObjectCache(String directory, long maxSizeInBytes) {
+            if (directory == null || directory.trim().isEmpty()) {
+                objectCache = null;
+                return;
+            }
+            try {
+                objectCache = new ObjectCache(Paths.get(directory.trim()), maxSizeInBytes);
+            } catch (IOException e) {
+                LOG.error("Could not use object cache directory " + directory + ". " + e.getMessage());
+                objectCache = null;
+            }
+        }
+
+        /**
+         * Reads a numeric setting from the dockstore config file
+         *
+         * @param key          The key in the [dockstore-file-s3cmd-plugin] section
+         * @param defaultValue The value to use if the key is missing or malformed
+         * @return The configured value or the default
+         */
+        private long getLongConfig(String key, long defaultValue) {
+            String value = config == null ? null : config.get(key);
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOG.error("Invalid value for " + key + ": " + value);
+                return defaultValue;
+            }
+        }
+
+        /**
+         * Uploads the local source file and places at the remote destination
+         *
+         * @param destPath   The remote destination (ex. s3cmd://bucket/dir/object)
+         * @param sourceFile The local source file (ex. file.txt)
+         * @param metadata   Metadata: currently not used
+         * @return Returns true on successful upload, false otherwise
+         */
+        public boolean uploadTo(String destPath, Path sourceFile, Optional<String> metadata) {
+            setConfigAndClient();
+            return upload(destPath, sourceFile);
+        }
+
+        /**
+         * Uploads a stream of unknown length (ex. the output of another process) without staging it in a local file first
+         *
+         * @param destPath The remote destination object (ex. s3cmd://bucket/dir/object)
+         * @param source   The content, read until it ends.  It is not closed, and if the upload fails before it ends the caller
+         *                 has to close it: a read that is blocked on it cannot be interrupted.
+         * @return Returns true on successful upload, false otherwise
+         */
+        public boolean uploadTo(String destPath, ReadableByteChannel source) {
+            setConfigAndClient();
+            return uploadStream(destPath, Channels.newInputStream(source));
+        }
+
+        /**
+         * Uploads a stream of unknown length (ex. the output of another process) without staging it in a local file first
+         *
+         * @param destPath The remote destination object (ex. s3cmd://bucket/dir/object)
+         * @param source   The content, read until it ends.  It is not closed, and if the upload fails before it ends the caller
+         *                 has to close it: a read that is blocked on it cannot be interrupted.
+         * @return Returns true on successful upload, false otherwise
+         */
+        public boolean uploadTo(String destPath, InputStream source) {
+            setConfigAndClient();
+            return uploadStream(destPath, source);
+        }
+
+        /**
+         * Downloads in the background on the shared transfer executor, so that many transfers can run at once without a thread each
+         *
+         * @param sourcePath  The scheme for s3cmd (ex. s3cmd://bucket/dir/object)
+         * @param destination The destination where the file is supposed to be (includes filename)
+         * @return Completes with whether the download was successful.  Cancelling it kills the s3cmd processes of the download.
+         */
+        public CompletableFuture<Boolean> downloadFromAsync(String sourcePath, Path destination) {
+            setConfigAndClient();
+            return submit(() -> download(sourcePath, destination));
+        }
+
+        /**
+         * Uploads in the background on the shared transfer executor
+         *
+         * @param destPath   The remote destination (ex. s3cmd://bucket/dir/object)
+         * @param sourceFile The local source file (ex. file.txt)
+         * @param metadata   Metadata: currently not used
+         * @return Completes with whether the upload was successful.  Cancelling it kills the s3cmd processes of the upload.
+         */
+        public CompletableFuture<Boolean> uploadToAsync(String destPath, Path sourceFile, Optional<String> metadata) {
+            setConfigAndClient();
+            return submit(() -> upload(destPath, sourceFile));
+        }
+
+        private static CompletableFuture<Boolean> submit(BooleanSupplier transfer) {
+            TransferFuture future = new TransferFuture();
+            future.task = TransferExecutor.getInstance().submit(() -> {
+                if (future.isDone()) {
+                    // Cancelled before it started
+                    return;
+                }
+                try {
+                    future.complete(transfer.getAsBoolean());
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+            return future;
+        }
+
+        /**
+         * Interrupts the transfer when it is cancelled, which kills its s3cmd process.
+         * A plain CompletableFuture only completes itself and leaves the work running.
+         */
+        private static final class TransferFuture extends CompletableFuture<Boolean> {
+            private volatile Future<?> task;
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                Future<?> running = task;
+                if (cancelled && running != null) {
+                    running.cancel(true);
+                }
+                return cancelled;
+            }
+        }
+
+        /**
+         * Uploads without re-reading the configuration, recording the time taken and bytes sent
+         */
+        private boolean upload(String destPath, Path sourceFile) {
+            if (uploadManifestDirectory != null && destPath.endsWith("/") && Files.isDirectory(sourceFile)) {
+                return incrementalUpload(destPath, sourceFile);
+            }
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                success = governed("upload to " + destPath, () -> performUpload(destPath, sourceFile));
+                return success;
+            } finally {
+                metrics.recordUpload(System.nanoTime() - start, success ? Math.max(0, getLocalSize(sourceFile)) : 0, success);
+                writeMetricsSummary();
+            }
+        }
+
+        /**
+         * Uploads a stream, recording the time taken and bytes sent.  A stream cannot be read twice, so it is not retried as a whole
+         * (the native transport still retries each part, which it holds in memory).
+         */
+        private boolean uploadStream(String destPath, InputStream source) {
+            String objectUrl = destPath.replace("s3cmd://", "s3://");
+            if (objectUrl.endsWith("/")) {
+                LOG.error("A stream has no file name, it must be uploaded to an object rather than to " + destPath);
+                return false;
+            }
+            CountingInputStream counted = new CountingInputStream(source);
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                success = governed("upload to " + objectUrl, () -> {
+                    String fullBucketName = "s3://" + S3CmdPluginHelper.getBucketName(objectUrl);
+                    BucketCache bucketCache = ensureBucket(fullBucketName);
+                    int exitCode;
+                    if (nativeClient != null) {
+                        exitCode = nativeStreamPut(objectUrl, Channels.newChannel(counted));
+                    } else {
+                        // s3cmd cannot grow its parts as the stream does, so it uses the largest parts of the native transport throughout
+                        long chunkSize = Math.min(S3CmdPluginHelper.getMaxPartSizeInBytes(),
+                                streamingMemory / 2 / BYTES_PER_MEGABYTE * BYTES_PER_MEGABYTE);
+                        String command = client + " -c " + configLocation + " put - " + objectUrl + S3CmdPluginHelper.getChunkSizeOption(chunkSize)
+                                + getLimitRateOption();
+                        exitCode = executeConsoleCommandOnce(command, true, null, counted);
+                        if (exitCode == 0) {
+                            indexUpload(objectUrl, counted.getCount(), null);
+                        }
+                    }
+                    if (exitCode != 0) {
+                        bucketCache.invalidate(configLocation, fullBucketName);
+                    }
+                    return checkExitCode(exitCode);
+                });
+                return success;
+            } finally {
+                metrics.recordUpload(System.nanoTime() - start, success ? counted.getCount() : 0, success);
+                writeMetricsSummary();
+            }
+        }
+
+        /**
+         * Uploads a stream with the native transport, as a multipart upload of growing parts held in memory
+         *
+         * @param objectUrl The remote destination object (ex. s3://bucket/dir/object)
+         * @param source    The content
+         * @return The s3cmd exit code equivalent to the outcome
+         */
+        private int nativeStreamPut(String objectUrl, ReadableByteChannel source) {
+            try {
+                RemoteObject remoteObject = new StreamingUploader(nativeClient, verifyIntegrity, streamingMemory)
+                        .upload(S3CmdPluginHelper.getBucketName(objectUrl), S3CmdPluginHelper.getObjectKey(objectUrl), source);
+                indexUpload(objectUrl, remoteObject.getSize(), remoteObject.getEtag());
+                System.out.println("upload: '<stdin>' -> '" + objectUrl + "'  " + remoteObject.getSize() + " bytes done");
+                return 0;
+            } catch (IOException e) {
+                LOG.error("Could not upload to " + objectUrl + ". " + e.getMessage());
+                return toExitCode(e);
+            }
+        }
+
+        /**
+         * Uploads only the files of a directory that are new or changed since the last upload, instead of 's3cmd put -r'.
+         * A file is skipped only if its content matches the manifest of the last upload and the remote listing still
+         * has an object of the same size (and the same MD5, when the ETag is a plain MD5).
+         *
+         * @param destPath        The remote destination directory (ex. s3cmd://bucket/dir/)
+         * @param sourceDirectory The local source directory, uploaded as a subdirectory of the destination like 's3cmd put -r'
+         * @return True if every new or changed file was uploaded
+         */
+        private boolean incrementalUpload(String destPath, Path sourceDirectory) {
+            String remoteDirectory = destPath.replaceFirst("s3cmd://", "s3://") + sourceDirectory.getFileName() + "/";
+            Path manifestFile = uploadManifestDirectory.resolve(DirectoryManifest.getManifestName(sourceDirectory, configLocation, remoteDirectory));
+            DirectoryManifest previous = DirectoryManifest.load(manifestFile);
+            DirectoryManifest current;
+            try {
+                current = DirectoryManifest.scan(sourceDirectory, previous, Runtime.getRuntime().availableProcessors());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            Map<String, RemoteObject> remoteObjects = new HashMap<>();
+            for (RemoteObject remoteObject : listObjects(remoteDirectory, true)) {
+                remoteObjects.put(remoteObject.getUrl(), remoteObject);
+            }
+            List<TransferRequest> changed = new ArrayList<>();
+            for (Map.Entry<String, DirectoryManifest.Entry> entry : current.getEntries().entrySet()) {
+                String url = remoteDirectory + entry.getKey();
+                RemoteObject remoteObject = remoteObjects.get(url);
+                boolean uploaded = entry.getValue().sameContent(previous.getEntries().get(entry.getKey()));
+                boolean present = remoteObject != null && remoteObject.getSize() == entry.getValue().getSize()
+                        && (remoteObject.getEtag() == null || remoteObject.getEtag().contains("-") || remoteObject.getEtag()
+                        .equals(entry.getValue().getMd5()));
+                if (!uploaded || !present) {
+                    changed.add(new TransferRequest(url, sourceDirectory.resolve(entry.getKey())));
+                }
+            }
+            LOG.info("Uploading " + changed.size() + " new or changed files of " + current.getEntries().size() + " in " + sourceDirectory);
+            List<TransferResult> results = new BatchScheduler(batchWorkers, batchBucketConcurrency)
+                    .run(changed, request -> getLocalSize(request.getLocalPath()), request -> upload(request.getRemotePath(), request.getLocalPath()));
+            boolean success = true;
+            for (TransferResult result : results) {
+                if (!result.isSuccess()) {
+                    success = false;
+                    // Keep the old entry (or none) so that the file is uploaded again next time
+                    String name = result.getRequest().getRemotePath().substring(remoteDirectory.length());
+                    DirectoryManifest.Entry old = previous.getEntries().get(name);
+                    if (old == null) {
+                        current.getEntries().remove(name);
+                    } else {
+                        current.getEntries().put(name, old);
+                    }
+                }
+            }
+            try {
+                current.save(manifestFile);
+            } catch (IOException e) {
+                LOG.error("Could not save upload manifest " + manifestFile + ". " + e.getMessage());
+            }
+            return success;
+        }
+
+        /**
+         * Writes the metrics summary to the metrics-file, if one is configured
+         */
+        private void writeMetricsSummary() {
+            if (metricsFile != null) {
+                metrics.writeSummary(metricsFile);
+            }
+        }
+
+        private boolean performUpload(String destPath, Path sourceFile) {
+            long sizeInBytes;
+            try {
+                sizeInBytes = Files.size(sourceFile);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            String recursive = "";
+
+            // If the destination end with a slash, source could be either a file or a directory
+            // It can technically be either, but we're recursively putting the source file as if it's a directory because there's no side effect
+            // If the destination does not end with a slash, source must be a file
+            if (destPath.endsWith("/")) {
+                recursive = "-r ";
+            }
+
+            destPath = destPath.replace("s3cmd://", "s3://");
+            String trimmedPath = destPath.replace("s3://", "");
+            List<String> splitPathList = Lists.newArrayList(trimmedPath.split("/"));
+            String bucketName = splitPathList.remove(0);
+            String fullBucketName = "s3://" + bucketName;
+            BucketCache bucketCache = ensureBucket(fullBucketName);
+            boolean directory = Files.isDirectory(sourceFile);
+            String objectUrl = destPath.endsWith("/") ? destPath + sourceFile.getFileName() : destPath;
+            if (serverSideCopy && !directory) {
+                Optional<DownloadProvenance.Origin> origin = DownloadProvenance.getInstance().lookup(configLocation, sourceFile);
+                if (origin.isPresent() && copyFromOrigin(origin.get(), objectUrl, sourceFile)) {
+                    return true;
+                }
+            }
+            int exitCode;
+            // The part size s3cmd uploaded the file with, if it is known
+            long partSize = 0;
+            try (TransferHistory.Upload upload = transferHistory.startUpload(configLocation)) {
+                if (nativeClient != null) {
+                    exitCode = nativePut(destPath, sourceFile, upload.getConcurrency());
+                } else if (!directory && isPipelined(sizeInBytes) && sizeInBytes <= S3CmdPluginHelper.getChunkSizeInBytes(sizeInBytes)) {
+                    // A single part upload has nothing to resume
+                    exitCode = pipelinedPut(objectUrl, sourceFile);
+                } else {
+                    long chunkSize = directory ? S3CmdPluginHelper.getChunkSizeInBytes(sizeInBytes)
+                            : getUploadChunkSize(objectUrl, sourceFile, sizeInBytes, upload.getConcurrency());
+                    partSize = chunkSize;
+                    TransferJournal journal =
+                            resumeTransfers && recursive.isEmpty() ? openPutJournal(destPath, sourceFile, sizeInBytes, chunkSize) : null;
+                    // s3cmd itself checks the size and MD5 of the parts that are already uploaded
+                    String resume = journal != null && journal.isResumed() ? " --continue-put" : "";
+                    String command = client + " -c " + configLocation + " put " + recursive + sourceFile.toString().replace(" ", "%32") + " "
+                            + destPath + S3CmdPluginHelper.getChunkSizeOption(chunkSize) + resume + getLimitRateOption();
+                    // s3cmd itself skips the parts of a failed attempt that are already uploaded, so retries always continue
+                    String retryCommand = recursive.isEmpty() && resume.isEmpty() ? command + " --continue-put" : command;
+                    exitCode = executeConsoleCommand(command, retryCommand, true, null);
+                    if (exitCode == 0 && journal != null) {
+                        journal.delete();
+                    }
+                }
+                if (!directory) {
+                    upload.finished(sizeInBytes, exitCode == 0);
+                }
+            }
+            if (exitCode != 0) {
+                // The bucket may have been deleted since it was cached, check it again next time
+                bucketCache.invalidate(configLocation, fullBucketName);
+            }
+            if (nativeClient == null && prefixIndexTtl > 0) {
+                // s3cmd does not report what it wrote, so a directory is listed again and a file is indexed without its ETag
+                if (directory) {
+                    prefixIndex.invalidate(configLocation, objectUrl);
+                } else if (exitCode == 0) {
+                    indexUpload(objectUrl, sizeInBytes, null);
+                }
+            }
+            boolean success = checkExitCode(exitCode);
+            if (success && nativeClient == null && !directory) {
+                verify(objectUrl, sourceFile, null, partSize);
+            }
+            return success;
+        }
+
+        /**
+         * Picks the chunk size of an upload: the one of an earlier attempt that can still be resumed, otherwise one adapted to
+         * the throughput of recent uploads (if adaptive-chunk-size is on), otherwise the one getChunkSize picks
+         *
+         * @param objectUrl   The remote destination object (ex. s3://bucket/dir/object)
+         * @param file        The local file
+         * @param sizeInBytes The size of the file
+         * @param concurrency The number of uploads running at the same time, including this one
+         * @return The chunk size in bytes
+         */
+        private long getUploadChunkSize(String objectUrl, Path file, long sizeInBytes, int concurrency) {
+            if (resumeTransfers) {
+                TransferJournal previous = TransferJournal.load(file);
+                try {
+                    if (previous != null && previous.matches(objectUrl, null, sizeInBytes, previous.getPartSize(),
+                            Files.getLastModifiedTime(file).toMillis())) {
+                        return previous.getPartSize();
+                    }
+                } catch (IOException e) {
+                    LOG.debug("Could not read " + file + ". " + e.getMessage());
+                }
+            }
+            if (!adaptiveChunkSize) {
+                return S3CmdPluginHelper.getChunkSizeInBytes(sizeInBytes);
+            }
+            double bytesPerSecond = transferHistory.getBytesPerSecond(configLocation, concurrency);
+            double failuresPerSecond = transferHistory.getFailuresPerSecond(configLocation);
+            long chunkSize = S3CmdPluginHelper.getAdaptiveChunkSizeInBytes(sizeInBytes, bytesPerSecond, failuresPerSecond);
+            LOG.debug("Uploading " + objectUrl + " in " + chunkSize + " byte chunks (" + (long)bytesPerSecond + " bytes/s, "
+                    + failuresPerSecond + " failures/s, " + concurrency + " uploads at once)");
+            return chunkSize;
+        }
+
+        /**
+         * Copies the object a file was downloaded from to the upload destination inside S3, instead of uploading the file
+         *
+         * @param origin     Where the file was downloaded from
+         * @param objectUrl  The remote destination object (ex. s3://bucket/dir/object)
+         * @param sourceFile The local file, unchanged since it was downloaded
+         * @return True if the destination has the content of the file, false if the file still has to be uploaded
+         */
+        private boolean copyFromOrigin(DownloadProvenance.Origin origin, String objectUrl, Path sourceFile) {
+            long start = System.nanoTime();
+            boolean copied = false;
+            try {
+                copied = performCopyFromOrigin(origin, objectUrl, sourceFile);
+                return copied;
+            } finally {
+                metrics.recordCopy(System.nanoTime() - start, copied ? origin.getSize() : 0, copied);
+            }
+        }
+
+        private boolean performCopyFromOrigin(DownloadProvenance.Origin origin, String objectUrl, Path sourceFile) {
+            String sourceUrl = origin.getUrl();
+            RemoteObject current = getObjectInfo(sourceUrl);
+            boolean unchanged;
+            try {
+                // Without the ETag from the time of the download, the file itself has to match the object
+                unchanged = current != null && current.getEtag() != null && current.getSize() == origin.getSize() && (origin.getEtag() == null
+                        ? EtagDigest.matches(sourceFile, current.getEtag(), Runtime.getRuntime().availableProcessors())
+                        : origin.getEtag().equals(current.getEtag()));
+            } catch (IOException e) {
+                LOG.warn("Could not compare " + sourceFile + " with " + sourceUrl + ". " + e.getMessage());
+                unchanged = false;
+            }
+            if (!unchanged) {
+                LOG.info(sourceUrl + " changed since " + sourceFile + " was downloaded from it, uploading the file instead");
+                return false;
+            }
+            if (sourceUrl.equals(objectUrl)) {
+                LOG.info(objectUrl + " is where " + sourceFile + " was downloaded from and neither changed, skipping the upload");
+                return true;
+            }
+            String etag = null;
+            if (nativeClient != null) {
+                try {
+                    etag = nativeClient.copyObject(S3CmdPluginHelper.getBucketName(sourceUrl), S3CmdPluginHelper.getObjectKey(sourceUrl),
+                            current.getEtag(), S3CmdPluginHelper.getBucketName(objectUrl), S3CmdPluginHelper.getObjectKey(objectUrl),
+                            current.getSize());
+                } catch (IOException e) {
+                    LOG.warn("Could not copy " + sourceUrl + " to " + objectUrl + ", uploading " + sourceFile + " instead. " + e.getMessage());
+                    return false;
+                }
+                System.out.println("remote copy: '" + sourceUrl + "' -> '" + objectUrl + "'  done");
+            } else {
+                String command = client + " -c " + configLocation + " cp " + sourceUrl + " " + objectUrl;
+                if (executeConsoleCommand(command, true) != 0) {
+                    LOG.warn("Could not copy " + sourceUrl + " to " + objectUrl + ", uploading " + sourceFile + " instead");
+                    return false;
+                }
+            }
+            indexUpload(objectUrl, current.getSize(), etag);
+            // A copy keeps the part size of the source object, which is not known
+            verify(objectUrl, sourceFile, etag, 0);
+            return true;
+        }
+
+        /**
+         * Adds an object the plugin has just written to the prefix index, if it is on
+         *
+         * @param objectUrl   The object url (ex. s3://bucket/dir/object)
+         * @param sizeInBytes The size of the object
+         * @param etag        The ETag of the object, null if it is not known
+         */
+        private void indexUpload(String objectUrl, long sizeInBytes, String etag) {
+            if (prefixIndexTtl > 0) {
+                prefixIndex.record(configLocation, new RemoteObject(objectUrl, sizeInBytes, etag));
+            }
+        }
+
+        /**
+         * Checks that the bucket exists (or creates it), unless the bucket cache already knows it does
+         *
+         * @param fullBucketName The bucket (ex. s3://bucket)
+         * @return The bucket cache, to invalidate the bucket if the upload fails
+         */
+        private BucketCache ensureBucket(String fullBucketName) {
+            BucketCache bucketCache = BucketCache.getInstance();
+            bucketCache.ensureBucket(configLocation, fullBucketName, bucketCacheTtl, () -> {
+                if (checkBucket(fullBucketName)) {
+                    LOG.info("Bucket exists");
+                    return true;
+                }
+                if (!createBucket(fullBucketName)) {
+                    // New s3cmd apparently returns an error if bucket exists
+                    LOG.info("Could not create bucket");
+                    return false;
+                }
+                return true;
+            });
+            LOG.debug("Bucket cache hits: " + bucketCache.getHitCount() + ", misses: " + bucketCache.getMissCount());
+            return bucketCache;
+        }
+
+        /**
+         * Continues the journal of an earlier 's3cmd put' of the same, unchanged file to the same destination
+         *
+         * @return The journal, or null if it could not be written
+         */
+        private static TransferJournal openPutJournal(String destPath, Path sourceFile, long sizeInBytes, long chunkSize) {
+            try {
+                return TransferJournal.open(sourceFile, destPath, null, sizeInBytes, chunkSize,
+                        Files.getLastModifiedTime(sourceFile).toMillis());
+            } catch (IOException e) {
+                LOG.warn("Could not read " + sourceFile + ". " + e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Check if the bucket exists
+         *
+         * @param bucket The actual bucket name (ex. s3://bucket)
+         * @return True if bucket exists, false if bucket doesn't exist
+         */
+        private boolean checkBucket(String bucket) {
+            long start = System.nanoTime();
+            boolean exists = false;
+            try {
+                exists = performCheckBucket(bucket);
+                return exists;
+            } finally {
+                metrics.recordBucketCheck(System.nanoTime() - start, exists);
+            }
+        }
+
+        private boolean performCheckBucket(String bucket) {
+            if (nativeClient != null) {
+                try {
+                    return nativeClient.headBucket(S3CmdPluginHelper.getBucketName(bucket));
+                } catch (IOException e) {
+                    LOG.debug("Could not check bucket " + bucket + ". " + e.getMessage());
+                    return false;
+                }
+            }
+            String command = client + " -c " + configLocation + " info " + bucket;
+            int exitCode = executeConsoleCommand(command, true);
+            return exitCode == 0;
+        }
+
+        /**
+         * Creates the bucket
+         *
+         * @param bucket The name of the bucket that needs to be created
+         * @return True if bucket successfully created, false if it wasn't successfully created
+         */
+        private boolean createBucket(String bucket) {
+            long start = System.nanoTime();
+            boolean created = false;
+            try {
+                created = performCreateBucket(bucket);
+                return created;
+            } finally {
+                metrics.recordBucketCreate(System.nanoTime() - start, created);
+            }
+        }
+
+        private boolean performCreateBucket(String bucket) {
+            if (nativeClient != null) {
+                try {
+                    nativeClient.createBucket(S3CmdPluginHelper.getBucketName(bucket));
+                    return true;
+                } catch (IOException e) {
+                    LOG.info("Could not create bucket " + bucket + ". " + e.getMessage());
+                    return false;
+                }
+            }
+            String command = client + " -c " + configLocation + " mb " + bucket;
+            int exitCode = executeConsoleCommand(command, verbosity.getLevel() >= VerbosityEnum.NORMAL.getLevel());
+            return exitCode == 0;
+        }
+
+        /**
+         * Executes the string command given
+         *
+         * @param command The command to execute
+         * @return True if command was successfully execute without error, false otherwise.
+         */
+        private int executeConsoleCommand(String command, boolean printStdout) {
+            return executeConsoleCommand(command, printStdout, null);
+        }
+
+        /**
+         * Executes the string command given
+         *
+         * @param command     The command to execute
+         * @param printStdout Whether to display the stdout/stderr of the command
+         * @param output      If not null, every stdout/stderr line of the command is added to it
+         * @return The exit code of the command
+         */
+        private int executeConsoleCommand(String command, boolean printStdout, List<String> output) {
+            return executeConsoleCommand(command, command, printStdout, output);
+        }
+
+        /**
+         * Executes the string command given, again on the exit codes the retry policy considers transient
+         *
+         * @param command      The command to execute
+         * @param retryCommand The command to execute on later attempts (ex. with --continue)
+         * @param printStdout  Whether to display the stdout/stderr of the command
+         * @param output       If not null, every stdout/stderr line of the last attempt is added to it
+         * @return The exit code of the last attempt
+         */
+        private int executeConsoleCommand(String command, String retryCommand, boolean printStdout, List<String> output) {
+            String[] split = S3CmdPluginHelper.splitCommand(command);
+            String description = "'s3cmd " + String.join(" ", Arrays.asList(split).subList(Math.min(3, split.length), split.length)) + "'";
+            return retryPolicy.callCommand(description, attempt -> {
+                if (attempt == 1) {
+                    return executeConsoleCommandOnce(command, printStdout, output, null);
+                }
+                if (output != null) {
+                    output.clear();
+                }
+                return executeConsoleCommandOnce(retryCommand, printStdout, output, null);
+            });
+        }
+
+        /**
+         * Executes the string command given once
+         *
+         * @param command     The command to execute
+         * @param printStdout Whether to display the stdout/stderr of the command
+         * @param output      If not null, every stdout/stderr line of the command is added to it
+         * @param stdin       If not null, copied to the stdin of the command (ex. for 's3cmd put -')
+         * @return The exit code of the command
+         */
+        private int executeConsoleCommandOnce(String command, boolean printStdout, List<String> output, InputStream stdin) {
+            // Show command in dockstore --debug mode
+            LOG.debug("Executing command: " + command);
+            String[] split = S3CmdPluginHelper.splitCommand(command);
+            ProcessBuilder builder = new ProcessBuilder(split);
+            builder.redirectErrorStream(true);
+            List<ProgressListener> listeners = new ArrayList<>();
+            if (output != null) {
+                listeners.add(new OutputCollector(output));
+            }
+            if (printStdout) {
+                // 's3cmd info' will only display in dockstore --debug mode
+                if (split.length > 3 && "info".equals(split[3])) {
+                    listeners.add(DEBUG_LOG_LISTENER);
+                } else {
+                    listeners.add(new ConsoleProgressListener(System.out));
+                    listeners.addAll(progressListeners);
+                }
+            }
+            final Process p;
+            try {
+                long start = System.nanoTime();
+                p = builder.start();
+                metrics.recordProcessSpawn(System.nanoTime() - start);
+                Future<?> drain = TransferExecutor.getInstance().submit(() -> {
+                    try (InputStream in = p.getInputStream()) {
+                        new S3CmdProgressParser(broadcast(listeners), progressInterval).parse(in);
+                    } catch (IOException e) {
+                        LOG.error("Could not read input stream from process. " + e.getMessage());
+                        throw new RuntimeException(e);
+                    }
+                });
+                AtomicReference<IOException> sourceFailure = new AtomicReference<>();
+                Future<?> feed = stdin == null ? null : TransferExecutor.getInstance().submit(() -> feed(p, stdin, sourceFailure));
+                try {
+                    int exitCode = p.waitFor();
+                    // Make sure all of the output has been read before anyone looks at it
+                    awaitDrain(drain);
+                    if (feed != null) {
+                        // s3cmd only succeeds once it has read all of stdin, otherwise the feed may be stuck reading the source
+                        if (exitCode == 0) {
+                            awaitDrain(feed);
+                        } else {
+                            feed.cancel(true);
+                        }
+                        if (sourceFailure.get() != null) {
+                            LOG.error("Could not read the stream uploaded by " + split[0] + ". " + sourceFailure.get().getMessage());
+                            // EX_IOERR, whatever s3cmd made of being killed
+                            exitCode = 74;
+                        }
+                    }
+                    metrics.recordCommand(System.nanoTime() - start, exitCode);
+                    return exitCode;
+                } catch (InterruptedException e) {
+                    LOG.error("Process interrupted, stopping " + split[0] + ". " + e.getMessage());
+                    // Killing the process closes its output, so the drain finishes before the interrupt is passed on
+                    TransferExecutor.destroyTree(p);
+                    awaitDrain(drain);
+                    if (feed != null) {
+                        feed.cancel(true);
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            } catch (IOException e) {
+                LOG.error("Could not execute command: " + command);
+
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Copies a stream to the stdin of a process.  If the stream cannot be read, the process is killed before its stdin is closed,
+         * since s3cmd would take the end of its stdin as the end of the stream and store what it has read so far.
+         *
+         * @param p             The process
+         * @param source        The stream
+         * @param sourceFailure Set to the error if the stream could not be read
+         */
+        private static void feed(Process p, InputStream source, AtomicReference<IOException> sourceFailure) {
+            byte[] buffer = new byte[STDIN_BUFFER_SIZE];
+            try (OutputStream in = p.getOutputStream()) {
+                while (true) {
+                    int read;
+                    try {
+                        read = source.read(buffer);
+                    } catch (IOException e) {
+                        sourceFailure.set(e);
+                        TransferExecutor.destroyTree(p);
+                        return;
+                    }
+                    if (read < 0) {
+                        return;
+                    }
+                    in.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                LOG.error("Could not write to the process. " + e.getMessage());
+            }
+        }
+
+        /**
+         * Waits for all of the output of a process to be parsed, without giving up on an interrupt
+         */
+        private static void awaitDrain(Future<?> drain) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        drain.get();
+                        return;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        LOG.error("Could not parse the output of the process. " + e.getCause().getMessage());
+                        return;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Sends everything to each of the listeners
+         */
+        private static ProgressListener broadcast(List<ProgressListener> listeners) {
+            return new ProgressListener() {
+                @Override
+                public void onMessage(String line) {
+                    listeners.forEach(listener -> listener.onMessage(line));
+                }
+
+                @Override
+                public void onProgress(ProgressEvent event) {
+                    listeners.forEach(listener -> listener.onProgress(event));
+                }
+
+                @Override
+                public void onFinished() {
+                    listeners.forEach(ProgressListener::onFinished);
+                }
+            };
+        }
+
+        /**
+         * A small object transfer waiting in the pipeline
+         */
+        private static final class PipelinedTransfer {
+            private final String objectUrl;
+            private final Path localFile;
+
+            private PipelinedTransfer(String objectUrl, Path localFile) {
+                this.objectUrl = objectUrl;
+                this.localFile = localFile;
+            }
+        }
+
+        /**
+         * Keeps the messages of a command so that they can be parsed
+         */
+        private static final class OutputCollector implements ProgressListener {
+            private final List<String> output;
+
+            private OutputCollector(List<String> output) {
+                this.output = output;
+            }
+
+            @Override
+            public void onMessage(String line) {
+                output.add(line);
+            }
+
+            @Override
+            public void onProgress(ProgressEvent event) {
+                // Only the messages are needed
+            }
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package io.dockstore.provision;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author gluu
@@ -10,6 +10,11 @@ import java.util.regex.Pattern;
 public class S3CmdPluginHelper {
     private static final long DEFAULT_CHUNK_SIZE = 15;
     private static final long MAX_PARTS = 10000;
+    private static final long MAX_PART_SIZE_IN_BYTES = 5L * 1024 * 1024 * 1024;
+    // Time each part spends on its request rather than its bytes (connection, signing, response)
+    private static final double PART_OVERHEAD_SECONDS = 0.1;
+    private static final double MAX_OVERHEAD_SHARE = 0.05;
+    private static final double MAX_RETRY_SHARE = 0.05;
 
     /**
      * Calculates the chunk size for uploads and the flag to set it.
@@ -23,12 +28,120 @@ public class S3CmdPluginHelper {
      */
     public static String getChunkSize(long sizeInBytes) {
         String modifiedChunkSize = "";
+        long chunkSize = getChunkSizeInMegabytes(sizeInBytes);
+        if (chunkSize != DEFAULT_CHUNK_SIZE) {
+            modifiedChunkSize = " --multipart-chunk-size-mb=" + chunkSize;
+        }
+        return modifiedChunkSize;
+    }
+
+    /**
+     * Calculates the chunk size for uploads using the same rules as getChunkSize
+     *
+     * @param sizeInBytes Size of the file trying to upload in bytes
+     * @return The chunk size in MB as s3cmd understands it (--multipart-chunk-size-mb)
+     */
+    public static long getChunkSizeInMegabytes(long sizeInBytes) {
         double sizeInMegabytes = (double)sizeInBytes / 1000000;
         if (sizeInMegabytes > DEFAULT_CHUNK_SIZE * MAX_PARTS) {
-            long newChunkSize = (long)Math.ceil(sizeInMegabytes / MAX_PARTS);
-            modifiedChunkSize = " --multipart-chunk-size-mb=" + newChunkSize;
+            return (long)Math.ceil(sizeInMegabytes / MAX_PARTS);
         }
-        return modifiedChunkSize;
+        return DEFAULT_CHUNK_SIZE;
+    }
+
+    /**
+     * Calculates the chunk size for uploads in bytes.  s3cmd treats --multipart-chunk-size-mb as mebibytes.
+     *
+     * @param sizeInBytes Size of the file trying to upload in bytes
+     * @return The chunk size in bytes
+     */
+    public static long getChunkSizeInBytes(long sizeInBytes) {
+        return getChunkSizeInMegabytes(sizeInBytes) * 1024 * 1024;
+    }
+
+    /**
+     * Calculates the chunk size for uploads from the measured throughput, instead of leaving it at the default.
+     * Parts grow until the per-part request overhead is a small share of the time each part takes, but stay short enough
+     * that the parts lost to failures (half a part on average) are a small share too.
+     * The chunk size getChunkSize picks is the floor, and the chunk size is always that floor doubled some number of times,
+     * so that the part size of a multipart ETag can be worked out from its part count (see getChunkSizeForPartCount).
+     *
+     * @param sizeInBytes       Size of the file trying to upload in bytes
+     * @param bytesPerSecond    The expected throughput of this upload, 0 if unknown
+     * @param failuresPerSecond The expected rate of failed parts or commands, 0 if unknown
+     * @return The chunk size in bytes
+     */
+    public static long getAdaptiveChunkSizeInBytes(long sizeInBytes, double bytesPerSecond, double failuresPerSecond) {
+        long chunkSize = getChunkSizeInBytes(sizeInBytes);
+        if (!(bytesPerSecond > 0)) {
+            return chunkSize;
+        }
+        double wanted = bytesPerSecond * PART_OVERHEAD_SECONDS * (1 - MAX_OVERHEAD_SHARE) / MAX_OVERHEAD_SHARE;
+        if (failuresPerSecond > 0) {
+            wanted = Math.min(wanted, 2 * MAX_RETRY_SHARE * bytesPerSecond / failuresPerSecond);
+        }
+        // A part larger than the file would not be a multipart upload at all
+        wanted = Math.min(wanted, sizeInBytes);
+        while (chunkSize * 2 <= wanted && chunkSize * 2 <= MAX_PART_SIZE_IN_BYTES) {
+            chunkSize *= 2;
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Works out the chunk size of a multipart upload by this plugin from its number of parts.
+     * The candidates are the chunk sizes getAdaptiveChunkSizeInBytes can pick, no two of which give the same number of parts.
+     *
+     * @param sizeInBytes Size of the object in bytes
+     * @param partCount   The number of parts, from the end of its ETag (ex. 3 for d41d8cd98f00b204e9800998ecf8427e-3)
+     * @return The chunk size in bytes, or the getChunkSize one if none of the candidates gives that many parts
+     */
+    public static long getChunkSizeForPartCount(long sizeInBytes, long partCount) {
+        long floor = getChunkSizeInBytes(sizeInBytes);
+        for (long chunkSize = floor; chunkSize <= MAX_PART_SIZE_IN_BYTES; chunkSize *= 2) {
+            if ((sizeInBytes + chunkSize - 1) / chunkSize == partCount) {
+                return chunkSize;
+            }
+        }
+        return floor;
+    }
+
+    /**
+     * Calculates the flag that sets a chunk size for s3cmd
+     *
+     * @param chunkSizeInBytes The chunk size in bytes, a whole number of MB
+     * @return The flag, or an empty string for the default chunk size
+     */
+    public static String getChunkSizeOption(long chunkSizeInBytes) {
+        long chunkSize = chunkSizeInBytes / (1024 * 1024);
+        return chunkSize == DEFAULT_CHUNK_SIZE ? "" : " --multipart-chunk-size-mb=" + chunkSize;
+    }
+
+    /**
+     * Calculates the part size for uploads of unknown length, which cannot use getChunkSize.
+     * Parts start at the default chunk size and double every thousand parts (up to the 5 GB part limit),
+     * so that a stream can grow past the 5 TB object limit before it runs out of the 10 000 parts.
+     *
+     * @param partNumber The part number, starting from 1
+     * @return The size of the part in bytes
+     */
+    public static long getStreamingPartSizeInBytes(int partNumber) {
+        long doublings = Math.min(20, (partNumber - 1) / (MAX_PARTS / 10));
+        return Math.min(MAX_PART_SIZE_IN_BYTES, (DEFAULT_CHUNK_SIZE * 1024 * 1024) << doublings);
+    }
+
+    /**
+     * @return The largest part a multipart upload can have, in bytes
+     */
+    public static long getMaxPartSizeInBytes() {
+        return MAX_PART_SIZE_IN_BYTES;
+    }
+
+    /**
+     * @return The number of parts a multipart upload can have
+     */
+    public static long getMaxParts() {
+        return MAX_PARTS;
     }
 
     /**
@@ -37,9 +150,94 @@ public class S3CmdPluginHelper {
      * @return True if the next lines require carriage return, false otherwise
      */
     public static boolean nextLinesRequireCarriageReturn(String line) {
-        Pattern pattern = Pattern.compile("download.*|upload.*");
-        Matcher matcher = pattern.matcher(line);
-        boolean matches = matcher.matches();
-        return matches;
+        return line.startsWith("download") || line.startsWith("upload");
+    }
+
+    /**
+     * Splits a command into its arguments.  Spaces inside file names are encoded as %32 so that they survive the split.
+     *
+     * @param command The command (ex. /usr/bin/s3cmd -c /home/user/.s3cfg put my%32file.txt s3://bucket/)
+     * @return The arguments with %32 turned back into spaces
+     */
+    public static String[] splitCommand(String command) {
+        String[] split = command.split(" ");
+        for (int i = 0; i < split.length; i++) {
+            split[i] = split[i].replace("%32", " ");
+        }
+        return split;
+    }
+
+    /**
+     * Parses the output of 's3cmd info' for an object
+     *
+     * @param url   The object url the info was requested for (ex. s3://bucket/dir/object)
+     * @param lines The stdout/stderr lines of 's3cmd info'
+     * @return The object metadata, or null if the output does not describe an object
+     */
+    public static RemoteObject parseObjectInfo(String url, List<String> lines) {
+        long size = -1;
+        String etag = null;
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("File size:")) {
+                try {
+                    size = Long.parseLong(trimmed.substring("File size:".length()).trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else if (trimmed.startsWith("MD5 sum:")) {
+                etag = trimmed.substring("MD5 sum:".length()).trim();
+            }
+        }
+        return size < 0 ? null : new RemoteObject(url, size, etag);
+    }
+
+    /**
+     * @param url The url (ex. s3://bucket/dir/object or s3cmd://bucket/dir/object)
+     * @return The bucket name (ex. bucket)
+     */
+    public static String getBucketName(String url) {
+        String trimmed = url.substring(url.indexOf("://") + 3);
+        int slash = trimmed.indexOf('/');
+        return slash < 0 ? trimmed : trimmed.substring(0, slash);
+    }
+
+    /**
+     * @param url The url (ex. s3://bucket/dir/object or s3cmd://bucket/dir/object)
+     * @return The object key (ex. dir/object), empty for the bucket itself
+     */
+    public static String getObjectKey(String url) {
+        String trimmed = url.substring(url.indexOf("://") + 3);
+        int slash = trimmed.indexOf('/');
+        return slash < 0 ? "" : trimmed.substring(slash + 1);
+    }
+
+    /**
+     * Parses the output of 's3cmd ls' (with or without --list-md5 and -r)
+     *
+     * @param lines The stdout/stderr lines of 's3cmd ls'
+     * @return The objects listed, directories ("DIR" lines) are left out
+     */
+    public static List<RemoteObject> parseListing(List<String> lines) {
+        List<RemoteObject> objects = new ArrayList<>();
+        for (String line : lines) {
+            int urlStart = line.indexOf(" s3://");
+            if (urlStart < 0) {
+                continue;
+            }
+            String[] columns = line.substring(0, urlStart).trim().split("\\s+");
+            // date, time, size and optionally the md5
+            if (columns.length < 3 || "DIR".equals(columns[0])) {
+                continue;
+            }
+            try {
+                long size = Long.parseLong(columns[2]);
+                String etag = columns.length > 3 ? columns[3] : null;
+                objects.add(new RemoteObject(line.substring(urlStart + 1).trim(), size, etag));
+            } catch (NumberFormatException e) {
+                // Not an object line
+            }
+        }
+        return objects;
     }
 }
@@ -0,0 +1,264 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Splits s3cmd's combined stdout/stderr into messages and progress updates.
+ * Progress lines ("  1048576 of 10485760    10% in    1s   900.00 kB/s") are parsed straight from the bytes without creating
+ * Strings, and only published to the listener once per interval (plus the final "done" update), so a multi-hour transfer
+ * does not flood the listener.  Every other line is passed on as a message.
+ *
+ * @since 18/10/26
+ */
+class S3CmdProgressParser {
+    static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] OF = " of ".getBytes(Charset.forName("US-ASCII"));
+    private static final byte[] DONE = "done".getBytes(Charset.forName("US-ASCII"));
+
+    private final ProgressListener listener;
+    private final long intervalNanos;
+    private final LongSupplier nanoClock;
+    private final Charset charset = Charset.defaultCharset();
+
+    private byte[] line = new byte[256];
+    private int length;
+    private int position;
+    private boolean afterCarriageReturn;
+    private int partNumber;
+    private int partCount;
+    private boolean published;
+    private long lastPublished;
+
+    /**
+     * @param listener       Receives the messages and progress updates
+     * @param intervalMillis The minimum time between two progress updates
+     */
+    S3CmdProgressParser(ProgressListener listener, long intervalMillis) {
+        this(listener, intervalMillis, System::nanoTime);
+    }
+
+    S3CmdProgressParser(ProgressListener listener, long intervalMillis, LongSupplier nanoClock) {
+        this.listener = listener;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Reads the stream until it ends, then notifies the listener that the command is finished
+     *
+     * @param in The combined stdout/stderr of the command
+     */
+    void parse(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            feed(buffer, 0, read);
+        }
+        if (length > 0) {
+            endLine();
+        }
+        listener.onFinished();
+    }
+
+    /**
+     * Lines end with \n, \r\n, or \r (which s3cmd uses to redraw the progress meter)
+     */
+    void feed(byte[] bytes, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            byte b = bytes[i];
+            if (b == '\n') {
+                if (!(afterCarriageReturn && length == 0)) {
+                    endLine();
+                }
+                afterCarriageReturn = false;
+            } else if (b == '\r') {
+                if (length > 0) {
+                    endLine();
+                }
+                afterCarriageReturn = true;
+            } else {
+                if (length == line.length) {
+                    byte[] bigger = new byte[line.length * 2];
+                    System.arraycopy(line, 0, bigger, 0, length);
+                    line = bigger;
+                }
+                line[length++] = b;
+                afterCarriageReturn = false;
+            }
+        }
+    }
+
+    private void endLine() {
+        if (!parseProgress()) {
+            String text = new String(line, 0, length, charset);
+            if (S3CmdPluginHelper.nextLinesRequireCarriageReturn(text)) {
+                parsePart(text);
+            }
+            listener.onMessage(text);
+        }
+        length = 0;
+    }
+
+    /**
+     * Picks the part number out of headers like "upload: 'file' -> 's3://bucket/file'  [part 2 of 5, 15MB] [1 of 1]"
+     */
+    private void parsePart(String header) {
+        partNumber = 0;
+        partCount = 0;
+        int start = header.indexOf("[part ");
+        if (start < 0) {
+            return;
+        }
+        int of = header.indexOf(" of ", start);
+        int end = header.indexOf(',', of);
+        if (of < 0 || end < 0) {
+            return;
+        }
+        try {
+            partNumber = Integer.parseInt(header.substring(start + "[part ".length(), of).trim());
+            partCount = Integer.parseInt(header.substring(of + " of ".length(), end).trim());
+        } catch (NumberFormatException e) {
+            partNumber = 0;
+            partCount = 0;
+        }
+    }
+
+    /**
+     * Parses "<done> of <total> <percent>% in <elapsed>s <rate> <unit>B/s [done]" in place
+     *
+     * @return True if the current line is a progress line
+     */
+    private boolean parseProgress() {
+        position = 0;
+        skipSpaces();
+        long bytesDone = parseSize();
+        if (bytesDone < 0 || !expect(OF)) {
+            return false;
+        }
+        long bytesTotal = parseSize();
+        skipSpaces();
+        long percent = parseLong();
+        if (bytesTotal < 0 || percent < 0 || !expect('%')) {
+            return false;
+        }
+        skipSpaces();
+        if (!expect('i') || !expect('n')) {
+            return false;
+        }
+        skipSpaces();
+        long elapsed = parseLong();
+        if (elapsed < 0 || !expect('s')) {
+            return false;
+        }
+        skipSpaces();
+        double rate = parseDecimal();
+        skipSpaces();
+        if (rate < 0) {
+            return false;
+        }
+        rate *= parseMultiplier();
+        if (!expect('B') || !expect('/') || !expect('s')) {
+            return false;
+        }
+        skipSpaces();
+        boolean done = expect(DONE);
+        long now = nanoClock.getAsLong();
+        if (done || !published || now - lastPublished >= intervalNanos) {
+            published = true;
+            lastPublished = now;
+            listener.onProgress(new ProgressEvent(bytesDone, bytesTotal, elapsed, rate, partNumber, partCount, done));
+        }
+        return true;
+    }
+
+    private void skipSpaces() {
+        while (position < length && line[position] == ' ') {
+            position++;
+        }
+    }
+
+    private boolean expect(char c) {
+        if (position < length && line[position] == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean expect(byte[] bytes) {
+        if (length - position < bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (line[position + i] != bytes[i]) {
+                return false;
+            }
+        }
+        position += bytes.length;
+        return true;
+    }
+
+    private long parseLong() {
+        int start = position;
+        long value = 0;
+        while (position < length && line[position] >= '0' && line[position] <= '9') {
+            value = value * 10 + (line[position++] - '0');
+        }
+        return position == start ? -1 : value;
+    }
+
+    /**
+     * Sizes are plain bytes unless s3cmd is set to human readable sizes, in which case they carry a k/M/G/T suffix
+     */
+    private long parseSize() {
+        long value = parseLong();
+        if (value < 0) {
+            return -1;
+        }
+        return (long)(value * parseMultiplier());
+    }
+
+    private double parseDecimal() {
+        long whole = parseLong();
+        if (whole < 0) {
+            return -1;
+        }
+        double value = whole;
+        if (expect('.')) {
+            double scale = 0.1;
+            while (position < length && line[position] >= '0' && line[position] <= '9') {
+                value += (line[position++] - '0') * scale;
+                scale /= 10;
+            }
+        }
+        return value;
+    }
+
+    private double parseMultiplier() {
+        if (position >= length) {
+            return 1;
+        }
+        switch (line[position]) {
+        case 'k':
+        case 'K':
+            position++;
+            return 1024d;
+        case 'M':
+            position++;
+            return 1024d * 1024;
+        case 'G':
+            position++;
+            return 1024d * 1024 * 1024;
+        case 'T':
+            position++;
+            return 1024d * 1024 * 1024 * 1024;
+        default:
+            return 1;
+        }
+    }
+}
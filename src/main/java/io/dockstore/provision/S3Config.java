@@ -0,0 +1,118 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The subset of an s3cmd configuration file (.s3cfg) needed to talk to S3 without s3cmd
+ *
+ * @since 18/10/26
+ */
+class S3Config {
+    private static final String DEFAULT_HOST = "s3.amazonaws.com";
+    private static final String DEFAULT_REGION = "us-east-1";
+    private static final String BUCKET_PLACEHOLDER = "%(bucket)s";
+
+    private final String accessKey;
+    private final String secretKey;
+    private final String sessionToken;
+    private final String hostBase;
+    private final String hostBucket;
+    private final boolean useHttps;
+    private final String region;
+
+    S3Config(String accessKey, String secretKey, String sessionToken, String hostBase, String hostBucket, boolean useHttps, String region) {
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.sessionToken = sessionToken;
+        this.hostBase = hostBase;
+        this.hostBucket = hostBucket;
+        this.useHttps = useHttps;
+        this.region = region;
+    }
+
+    /**
+     * Reads the [default] section of an s3cmd configuration file
+     *
+     * @param configFile The s3cmd configuration file (ex. ~/.s3cfg)
+     * @return The parsed configuration
+     * @throws IOException If the file could not be read
+     */
+    static S3Config load(Path configFile) throws IOException {
+        return parse(Files.readAllLines(configFile, StandardCharsets.UTF_8));
+    }
+
+    static S3Config parse(List<String> lines) {
+        Map<String, String> values = new HashMap<>();
+        String section = "default";
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.startsWith(";")) {
+                continue;
+            }
+            if (trimmed.startsWith("[") && trimmed.endsWith("]")) {
+                section = trimmed.substring(1, trimmed.length() - 1).trim();
+                continue;
+            }
+            int equals = trimmed.indexOf('=');
+            if ("default".equals(section) && equals > 0) {
+                values.put(trimmed.substring(0, equals).trim(), trimmed.substring(equals + 1).trim());
+            }
+        }
+        String location = values.getOrDefault("bucket_location", "");
+        // s3cmd uses "US" (and an empty value) for the classic us-east-1 region
+        String region = location.isEmpty() || "US".equals(location) ? DEFAULT_REGION : location;
+        String hostBase = values.getOrDefault("host_base", "");
+        return new S3Config(values.getOrDefault("access_key", ""), values.getOrDefault("secret_key", ""),
+                emptyToNull(values.get("access_token")), hostBase.isEmpty() ? DEFAULT_HOST : hostBase,
+                emptyToNull(values.get("host_bucket")), !"False".equalsIgnoreCase(values.getOrDefault("use_https", "True")), region);
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    String getAccessKey() {
+        return accessKey;
+    }
+
+    String getSecretKey() {
+        return secretKey;
+    }
+
+    String getSessionToken() {
+        return sessionToken;
+    }
+
+    String getRegion() {
+        return region;
+    }
+
+    String getScheme() {
+        return useHttps ? "https" : "http";
+    }
+
+    /**
+     * @param bucket The bucket name (without s3://)
+     * @return Whether the bucket is addressed as part of the host name rather than the path
+     */
+    boolean isVirtualHosted(String bucket) {
+        return hostBucket != null && hostBucket.contains(BUCKET_PLACEHOLDER) && !bucket.contains(".");
+    }
+
+    /**
+     * @param bucket The bucket name (without s3://), may be null for service level requests
+     * @return The host (and port) requests for the bucket are sent to
+     */
+    String getHost(String bucket) {
+        if (bucket != null && isVirtualHosted(bucket)) {
+            return hostBucket.replace(BUCKET_PLACEHOLDER, bucket);
+        }
+        return hostBase;
+    }
+}
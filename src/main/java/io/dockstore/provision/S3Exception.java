@@ -0,0 +1,27 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+
+/**
+ * An error response returned by an S3 endpoint
+ *
+ * @since 18/10/26
+ */
+class S3Exception extends IOException {
+    private final int statusCode;
+    private final String errorCode;
+
+    S3Exception(int statusCode, String errorCode, String message) {
+        super(statusCode + (errorCode == null ? "" : " " + errorCode) + (message == null ? "" : ": " + message));
+        this.statusCode = statusCode;
+        this.errorCode = errorCode;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    String getErrorCode() {
+        return errorCode;
+    }
+}
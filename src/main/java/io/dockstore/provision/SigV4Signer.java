@@ -0,0 +1,166 @@
+package io.dockstore.provision;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs S3 requests with AWS Signature Version 4
+ * See https://docs.aws.amazon.com/AmazonS3/latest/API/sig-v4-authenticating-requests.html
+ *
+ * @since 18/10/26
+ */
+class SigV4Signer {
+    static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    static final String EMPTY_PAYLOAD_HASH = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String accessKey;
+    private final String secretKey;
+    private final String sessionToken;
+    private final String region;
+
+    SigV4Signer(String accessKey, String secretKey, String sessionToken, String region) {
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.sessionToken = sessionToken;
+        this.region = region;
+    }
+
+    /**
+     * Adds the x-amz-* headers and the Authorization header to the headers of a request
+     *
+     * @param method      The HTTP method
+     * @param host        The Host header value
+     * @param path        The unencoded request path (ex. /bucket/dir/object)
+     * @param query       The unencoded query parameters
+     * @param headers     Headers to sign, the signing headers are added to this map
+     * @param payloadHash The hex SHA-256 of the body, or UNSIGNED-PAYLOAD
+     * @param now         The time of the request
+     */
+    void sign(String method, String host, String path, Map<String, String> query, SortedMap<String, String> headers, String payloadHash,
+            Instant now) {
+        String amzDate = AMZ_DATE.format(now);
+        headers.put("host", host);
+        headers.put("x-amz-content-sha256", payloadHash);
+        headers.put("x-amz-date", amzDate);
+        if (sessionToken != null) {
+            headers.put("x-amz-security-token", sessionToken);
+        }
+        String signedHeaders = String.join(";", headers.keySet());
+        StringBuilder canonicalHeaders = new StringBuilder();
+        headers.forEach((name, value) -> canonicalHeaders.append(name).append(':').append(value.trim()).append('\n'));
+        String canonicalRequest = method + '\n' + encodePath(path) + '\n' + canonicalQuery(query) + '\n' + canonicalHeaders + '\n'
+                + signedHeaders + '\n' + payloadHash;
+        String scope = scope(amzDate);
+        String signature = signature(amzDate, scope, canonicalRequest);
+        headers.remove("host");
+        headers.put("Authorization", ALGORITHM + " Credential=" + accessKey + '/' + scope + ", SignedHeaders=" + signedHeaders
+                + ", Signature=" + signature);
+    }
+
+    /**
+     * Builds the query string of a presigned GET url
+     *
+     * @param host          The Host the url points to
+     * @param path          The unencoded request path (ex. /bucket/dir/object)
+     * @param expirySeconds How long the url is valid for
+     * @param now           The time the url is signed at
+     * @return The encoded query string including the signature
+     */
+    String presignQuery(String host, String path, int expirySeconds, Instant now) {
+        String amzDate = AMZ_DATE.format(now);
+        String scope = scope(amzDate);
+        SortedMap<String, String> query = new TreeMap<>();
+        query.put("X-Amz-Algorithm", ALGORITHM);
+        query.put("X-Amz-Credential", accessKey + '/' + scope);
+        query.put("X-Amz-Date", amzDate);
+        query.put("X-Amz-Expires", Integer.toString(expirySeconds));
+        query.put("X-Amz-SignedHeaders", "host");
+        if (sessionToken != null) {
+            query.put("X-Amz-Security-Token", sessionToken);
+        }
+        String canonicalQuery = canonicalQuery(query);
+        String canonicalRequest = "GET\n" + encodePath(path) + '\n' + canonicalQuery + "\nhost:" + host + "\n\nhost\n" + UNSIGNED_PAYLOAD;
+        return canonicalQuery + "&X-Amz-Signature=" + signature(amzDate, scope, canonicalRequest);
+    }
+
+    private String scope(String amzDate) {
+        return amzDate.substring(0, 8) + '/' + region + '/' + SERVICE + "/aws4_request";
+    }
+
+    private String signature(String amzDate, String scope, String canonicalRequest) {
+        String stringToSign = ALGORITHM + '\n' + amzDate + '\n' + scope + '\n' + hex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), amzDate.substring(0, 8));
+        key = hmac(key, region);
+        key = hmac(key, SERVICE);
+        key = hmac(key, "aws4_request");
+        return hex(hmac(key, stringToSign));
+    }
+
+    static String canonicalQuery(Map<String, String> query) {
+        return new TreeMap<>(query).entrySet().stream().map(entry -> encode(entry.getKey()) + '=' + encode(entry.getValue()))
+                .collect(Collectors.joining("&"));
+    }
+
+    static String encodePath(String path) {
+        return Arrays.stream(path.split("/", -1)).map(SigV4Signer::encode).collect(Collectors.joining("/"));
+    }
+
+    /**
+     * URI-encodes a value the way SigV4 expects (RFC 3986 unreserved characters are left alone)
+     */
+    static String encode(String value) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char)(b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~') {
+                builder.append(c);
+            } else {
+                builder.append('%').append(Character.toUpperCase(HEX[(b >> 4) & 0xf])).append(Character.toUpperCase(HEX[b & 0xf]));
+            }
+        }
+        return builder.toString();
+    }
+
+    static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.IntToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads a stream of unknown length with the native transport, without staging it in a local file first.
+ * The stream is read into fixed size direct buffers that are reused once the part they hold has been uploaded.
+ * One part is uploaded while the next one is read, so no more than two parts are in memory at once, and the parts grow
+ * as the stream does (see S3CmdPluginHelper.getStreamingPartSizeInBytes) so a long stream stays under the part limit.
+ * Parts stop growing at half of the memory budget, so the buffers never take more than the budget, and a stream too long
+ * for the parts the budget allows fails once it runs out of parts.
+ * A stream that ends within the first part is uploaded with a single PUT.
+ *
+ * @since 18/10/26
+ */
+class StreamingUploader {
+    static final int SLICE_SIZE = 1024 * 1024;
+    static final long DEFAULT_MEMORY_BUDGET = 512L * 1024 * 1024;
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingUploader.class);
+
+    private final NativeS3Client client;
+    private final boolean verifyIntegrity;
+    private final IntToLongFunction partSizes;
+    private final long memoryBudget;
+    private final long maxPartSize;
+    private final Deque<ByteBuffer> freeSlices = new ArrayDeque<>();
+    private int allocatedSlices;
+
+    /**
+     * @param client          The native client
+     * @param verifyIntegrity Whether the MD5 of every part is checked against the ETag S3 returns for it
+     * @param memoryBudget    The most bytes of direct buffers the upload may hold, at least two slices
+     */
+    StreamingUploader(NativeS3Client client, boolean verifyIntegrity, long memoryBudget) {
+        this(client, verifyIntegrity, S3CmdPluginHelper::getStreamingPartSizeInBytes, memoryBudget);
+    }
+
+    StreamingUploader(NativeS3Client client, boolean verifyIntegrity, IntToLongFunction partSizes, long memoryBudget) {
+        if (memoryBudget < 2L * SLICE_SIZE) {
+            throw new IllegalArgumentException("The streaming memory budget must hold at least two " + SLICE_SIZE + " byte buffers");
+        }
+        this.client = client;
+        this.verifyIntegrity = verifyIntegrity;
+        this.partSizes = partSizes;
+        this.memoryBudget = memoryBudget;
+        // Two parts are held at once, each in whole slices
+        this.maxPartSize = memoryBudget / SLICE_SIZE / 2 * SLICE_SIZE;
+    }
+
+    /**
+     * Reads the source until it ends and uploads it as one object.  The source is not closed.
+     *
+     * @param bucket The bucket name (without s3://)
+     * @param key    The object key
+     * @param source The content
+     * @return The new object with its size and ETag
+     */
+    RemoteObject upload(String bucket, String key, ReadableByteChannel source) throws IOException {
+        String url = "s3://" + bucket + "/" + key;
+        Part part = readPart(source, 1);
+        // A stream that is exactly one part long only shows it has ended when the next part is read
+        Part next = part.last ? null : readPart(source, 2);
+        if (next == null || next.length == 0) {
+            String etag = client.putObject(bucket, key, part.slices);
+            verify(url, part, etag);
+            return new RemoteObject(url, part.length, etag);
+        }
+        String uploadId = client.initiateMultipartUpload(bucket, key);
+        Future<String> inFlight = null;
+        try {
+            List<String> etags = new ArrayList<>();
+            long total = 0;
+            while (part != null) {
+                if (part.number > S3CmdPluginHelper.getMaxParts()) {
+                    throw new IOException("The stream is larger than " + total + " bytes, the most " + S3CmdPluginHelper.getMaxParts()
+                            + " parts can hold with parts of at most " + maxPartSize + " bytes (a streaming memory budget of " + memoryBudget
+                            + " bytes)");
+                }
+                Part current = part;
+                inFlight = TransferExecutor.getInstance().submit(() -> {
+                    String etag = client.uploadPart(bucket, key, uploadId, current.number, current.slices);
+                    verify(url + " part " + current.number, current, etag);
+                    return etag;
+                });
+                // Read the next part while this one is uploaded
+                if (next == null && !current.last) {
+                    next = readPart(source, current.number + 1);
+                }
+                etags.add(await(inFlight));
+                inFlight = null;
+                total += current.length;
+                release(current);
+                part = next != null && next.length > 0 ? next : null;
+                next = null;
+            }
+            LOG.debug("Streamed " + total + " bytes to " + url + " in " + etags.size() + " parts");
+            return new RemoteObject(url, total, client.completeMultipartUpload(bucket, key, uploadId, etags));
+        } catch (IOException | RuntimeException e) {
+            if (inFlight != null) {
+                inFlight.cancel(true);
+            }
+            // The stream cannot be read again, so there is nothing to resume from
+            client.abortMultipartUpload(bucket, key, uploadId);
+            throw e;
+        }
+    }
+
+    /**
+     * Fills the buffers of a part from the source, stopping early if the source ends
+     */
+    private Part readPart(ReadableByteChannel source, int number) throws IOException {
+        long size = Math.min(maxPartSize, partSizes.applyAsLong(number));
+        List<ByteBuffer> slices = new ArrayList<>();
+        long length = 0;
+        boolean last = false;
+        while (length < size && !last) {
+            ByteBuffer slice = take();
+            slice.limit((int)Math.min(SLICE_SIZE, size - length));
+            while (slice.hasRemaining()) {
+                if (source.read(slice) < 0) {
+                    last = true;
+                    break;
+                }
+            }
+            slice.flip();
+            if (slice.hasRemaining()) {
+                slices.add(slice);
+                length += slice.remaining();
+            } else {
+                freeSlices.push(slice);
+            }
+        }
+        return new Part(number, slices, length, last);
+    }
+
+    private ByteBuffer take() throws IOException {
+        ByteBuffer slice = freeSlices.poll();
+        if (slice == null) {
+            if ((allocatedSlices + 1L) * SLICE_SIZE > memoryBudget) {
+                throw new IOException("The streaming buffers would take more than their memory budget of " + memoryBudget + " bytes");
+            }
+            allocatedSlices++;
+            return ByteBuffer.allocateDirect(SLICE_SIZE);
+        }
+        slice.clear();
+        return slice;
+    }
+
+    /**
+     * @return The bytes of direct buffers the upload has allocated so far
+     */
+    long getAllocatedBytes() {
+        return (long)allocatedSlices * SLICE_SIZE;
+    }
+
+    private void release(Part part) {
+        part.slices.forEach(freeSlices::push);
+    }
+
+    /**
+     * Compares the MD5 of a part (or of a single part object) with the ETag S3 returned for it
+     */
+    private void verify(String url, Part part, String etag) {
+        if (!verifyIntegrity) {
+            return;
+        }
+        long start = System.nanoTime();
+        MessageDigest md5 = EtagDigest.newMd5();
+        for (ByteBuffer slice : part.slices) {
+            md5.update(slice.duplicate());
+        }
+        String actual = SigV4Signer.hex(md5.digest());
+        boolean matched = actual.equals(etag);
+        TransferMetrics.getInstance().recordVerification(System.nanoTime() - start, part.length, matched);
+        if (!matched) {
+            throw new IntegrityVerificationException(url, etag, actual);
+        }
+    }
+
+    private static String await(Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static final class Part {
+        private final int number;
+        private final List<ByteBuffer> slices;
+        private final long length;
+        private final boolean last;
+
+        private Part(int number, List<ByteBuffer> slices, long length, boolean last) {
+            this.number = number;
+            this.slices = slices;
+            this.length = length;
+            this.last = last;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package io.dockstore.provision;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate bytes are transferred at.  The bucket holds up to one second worth of bytes;
+ * a transfer that takes more than is available goes into debt and waits until the debt is paid off,
+ * so concurrent transfers share the rate instead of the largest buffer winning.
+ *
+ * @since 18/10/26
+ */
+class TokenBucket {
+    private long bytesPerSecond;
+    private double available;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond The rate, 0 or less for no limit
+     */
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = Math.max(0, bytesPerSecond);
+    }
+
+    synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @param bytesPerSecond The new rate, 0 or less for no limit
+     */
+    synchronized void setRate(long bytesPerSecond) {
+        refill(System.nanoTime());
+        this.bytesPerSecond = bytesPerSecond;
+        available = Math.min(available, Math.max(0, bytesPerSecond));
+    }
+
+    /**
+     * Takes the bytes out of the bucket, waiting as long as the rate requires
+     *
+     * @param bytes The number of bytes about to be transferred
+     * @throws InterruptedIOException If the transfer was cancelled while waiting
+     */
+    void acquire(long bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            refill(System.nanoTime());
+            available -= bytes;
+            waitNanos = available >= 0 ? 0 : (long)(-available * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+
+    private void refill(long now) {
+        if (bytesPerSecond > 0) {
+            available = Math.min(bytesPerSecond, available + (now - lastRefillNanos) * (double)bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefillNanos = now;
+    }
+}
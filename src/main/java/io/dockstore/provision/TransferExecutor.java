@@ -0,0 +1,75 @@
+package io.dockstore.provision;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The executor shared by asynchronous transfers and the threads that drain s3cmd output, and the process clean up that goes with it.
+ * Uses one virtual thread per task when the JDK has them (21+) and a cached pool of daemon threads otherwise,
+ * so that many concurrent transfers do not each hold on to a platform thread while they wait on I/O.
+ *
+ * @since 18/10/26
+ */
+final class TransferExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(TransferExecutor.class);
+    private static final long DESTROY_GRACE_MILLIS = 5000;
+    private static final ExecutorService INSTANCE = create();
+
+    private TransferExecutor() {
+    }
+
+    static ExecutorService getInstance() {
+        return INSTANCE;
+    }
+
+    private static ExecutorService create() {
+        try {
+            // Looked up reflectively since the plugin is still built for Java 8
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            LOG.debug("Using virtual threads for transfers");
+            return (ExecutorService)factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3cmd-async-%d").build());
+        }
+    }
+
+    /**
+     * Kills a process along with every process it started, politely first and forcibly after a grace period.
+     * The descendants are only known on Java 9+; on Java 8 only the process itself is killed.
+     *
+     * @param process The process to kill
+     */
+    static void destroyTree(Process process) {
+        // Children first, so that they are not reparented and missed once their parent is gone
+        destroyDescendants(process);
+        process.destroy();
+        try {
+            if (!process.waitFor(DESTROY_GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly().waitFor(DESTROY_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void destroyDescendants(Process process) {
+        try {
+            Stream<?> descendants = (Stream<?>)Process.class.getMethod("descendants").invoke(process);
+            Method destroyForcibly = Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly");
+            for (Iterator<?> iterator = descendants.iterator(); iterator.hasNext();) {
+                destroyForcibly.invoke(iterator.next());
+            }
+        } catch (ReflectiveOperationException e) {
+            LOG.debug("Cannot list the child processes of s3cmd on this JDK");
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the transfers of every launcher (and JVM) on a machine to a number running at once and a total bandwidth.
+ * A running transfer holds a file lock on one of the slot files in a shared directory.  A transfer waiting for a slot
+ * holds a lock on a waiter file named after its priority and arrival time, and only takes a free slot once no live waiter
+ * ranks ahead of it, so a higher priority transfer jumps ahead of the ones already queued.
+ * The bandwidth is split evenly between the slots: s3cmd is started with the share of one slot, and the native transport
+ * shares a token bucket sized for the slots this JVM holds.  A bandwidth limit needs a slot limit to hold for the whole
+ * machine, so without one it comes with DEFAULT_BANDWIDTH_SLOTS slots.
+ *
+ * @since 18/10/26
+ */
+class TransferGovernor {
+    static final String DEFAULT_DIRECTORY = System.getProperty("java.io.tmpdir") + "/dockstore-s3cmd-governor";
+    static final int DEFAULT_BANDWIDTH_SLOTS = 4;
+    private static final Logger LOG = LoggerFactory.getLogger(TransferGovernor.class);
+    private static final long POLL_MILLIS = 50;
+    private static final String WAITER_PREFIX = "wait_";
+    private static final String PENDING_PREFIX = "pending_";
+    private static final ConcurrentMap<String, TransferGovernor> INSTANCES = new ConcurrentHashMap<>();
+    // Closing any channel to a file can release the locks the JVM holds on it, so files locked by this JVM are never opened twice
+    private static final Set<Path> LOCAL_FILES = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final Path directory;
+    private final int maxConcurrentTransfers;
+    private final long maxBytesPerSecond;
+    private final TokenBucket bandwidth;
+    private final AtomicInteger heldPermits = new AtomicInteger();
+
+    private TransferGovernor(Path directory, int maxConcurrentTransfers, long maxBytesPerSecond) {
+        this.directory = directory;
+        this.maxConcurrentTransfers = maxConcurrentTransfers;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.bandwidth = new TokenBucket(getProcessRateLimit());
+    }
+
+    /**
+     * @param directory              The directory shared by every JVM on the machine
+     * @param maxConcurrentTransfers The number of transfers running at once on the machine, 0 for no limit
+     * @param maxBytesPerSecond      The bandwidth of all of the transfers on the machine together, 0 for no limit
+     * @return The governor shared by every provisioner of this JVM with the same settings
+     */
+    static TransferGovernor getInstance(Path directory, int maxConcurrentTransfers, long maxBytesPerSecond) {
+        Path absolute = directory.toAbsolutePath().normalize();
+        int slots = Math.max(0, maxConcurrentTransfers);
+        if (slots == 0 && maxBytesPerSecond > 0) {
+            // Every process would otherwise get the whole bandwidth to itself
+            LOG.warn("A bandwidth limit without a limit on concurrent transfers is shared between " + DEFAULT_BANDWIDTH_SLOTS + " transfer slots");
+            slots = DEFAULT_BANDWIDTH_SLOTS;
+        }
+        int maxTransfers = slots;
+        return INSTANCES.computeIfAbsent(absolute + "|" + maxTransfers + "|" + maxBytesPerSecond,
+                key -> new TransferGovernor(absolute, maxTransfers, Math.max(0, maxBytesPerSecond)));
+    }
+
+    /**
+     * @return The rate one s3cmd process may transfer at in bytes per second (for --limit-rate), 0 for no limit
+     */
+    long getProcessRateLimit() {
+        return maxConcurrentTransfers > 0 ? maxBytesPerSecond / maxConcurrentTransfers : maxBytesPerSecond;
+    }
+
+    /**
+     * @return The token bucket shared by the native transfers of this JVM
+     */
+    TokenBucket getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Waits for a slot.  Transfers with a higher priority, then transfers that have waited longer, get a slot first.
+     *
+     * @param priority    The priority, higher goes first
+     * @param description What is being transferred, for the logs
+     * @return The slot, to be closed once the transfer is done
+     * @throws InterruptedIOException If the transfer was cancelled while waiting
+     * @throws IOException            If the governor directory cannot be used
+     */
+    Permit acquire(int priority, String description) throws IOException {
+        if (maxConcurrentTransfers <= 0) {
+            return new Permit(null, null);
+        }
+        Files.createDirectories(directory);
+        String name = priority + "_" + System.currentTimeMillis() + "_" + String.format("%019d", SEQUENCE.incrementAndGet()) + "_" + UUID.randomUUID();
+        Waiter waiter = new Waiter(directory.resolve(WAITER_PREFIX + name));
+        Path pending = directory.resolve(PENDING_PREFIX + name);
+        long start = System.nanoTime();
+        // Nobody may see the waiter file before it is locked, or they would take it for a stale one and delete it
+        LOCAL_FILES.add(waiter.path);
+        try (FileChannel channel = FileChannel.open(pending, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.lock();
+            Files.move(pending, waiter.path, StandardCopyOption.ATOMIC_MOVE);
+            boolean logged = false;
+            while (true) {
+                if (!isAnyoneAhead(waiter)) {
+                    Permit permit = tryTakeSlot();
+                    if (permit != null) {
+                        if (logged) {
+                            LOG.info("Got a transfer slot for " + description + " after " + (System.nanoTime() - start) / 1000000 + " ms");
+                        }
+                        return permit;
+                    }
+                }
+                if (!logged) {
+                    LOG.info("Waiting for one of the " + maxConcurrentTransfers + " transfer slots of this machine for " + description);
+                    logged = true;
+                }
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a transfer slot for " + description);
+                }
+            }
+        } finally {
+            // Another JVM may take the closed waiter for a stale one and delete it first, which is harmless
+            try {
+                Files.deleteIfExists(pending);
+                Files.deleteIfExists(waiter.path);
+            } finally {
+                LOCAL_FILES.remove(waiter.path);
+            }
+        }
+    }
+
+    /**
+     * @return True if a live waiter ranks ahead of the given one.  Waiters whose JVM died are cleaned up.
+     */
+    private boolean isAnyoneAhead(Waiter me) throws IOException {
+        List<Path> waiters;
+        try (Stream<Path> paths = Files.list(directory)) {
+            waiters = paths.filter(path -> path.getFileName().toString().startsWith(WAITER_PREFIX)).collect(Collectors.toList());
+        }
+        for (Path path : waiters) {
+            Waiter other = new Waiter(path);
+            if (other.compareTo(me) >= 0) {
+                continue;
+            }
+            if (LOCAL_FILES.contains(path) || isLocked(path)) {
+                return true;
+            }
+            LOG.debug("Removing the stale transfer waiter " + path);
+            Files.deleteIfExists(path);
+        }
+        return false;
+    }
+
+    private static boolean isLocked(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        }
+    }
+
+    private Permit tryTakeSlot() throws IOException {
+        for (int slot = 0; slot < maxConcurrentTransfers; slot++) {
+            Path slotFile = directory.resolve("slot_" + slot + ".lock");
+            if (!LOCAL_FILES.add(slotFile)) {
+                continue;
+            }
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(slotFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.tryLock();
+                if (lock != null) {
+                    return new Permit(lock, slotFile);
+                }
+            } catch (OverlappingFileLockException e) {
+                LOG.debug("Slot " + slot + " is held by this JVM");
+            } catch (IOException e) {
+                LOCAL_FILES.remove(slotFile);
+                throw e;
+            }
+            channel.close();
+            LOCAL_FILES.remove(slotFile);
+        }
+        return null;
+    }
+
+    private void updateBandwidth() {
+        if (maxConcurrentTransfers > 0) {
+            bandwidth.setRate(getProcessRateLimit() * Math.max(1, heldPermits.get()));
+        }
+    }
+
+    /**
+     * A slot held by a running transfer
+     */
+    final class Permit implements AutoCloseable {
+        private final FileLock lock;
+        private final Path slotFile;
+
+        private Permit(FileLock lock, Path slotFile) {
+            this.lock = lock;
+            this.slotFile = slotFile;
+            heldPermits.incrementAndGet();
+            updateBandwidth();
+        }
+
+        @Override
+        public void close() {
+            heldPermits.decrementAndGet();
+            updateBandwidth();
+            if (lock == null) {
+                return;
+            }
+            try {
+                lock.channel().close();
+            } catch (IOException e) {
+                LOG.warn("Could not release a transfer slot. " + e.getMessage());
+            } finally {
+                LOCAL_FILES.remove(slotFile);
+            }
+        }
+    }
+
+    /**
+     * Orders waiters by priority (highest first), then by arrival
+     */
+    private static final class Waiter implements Comparable<Waiter> {
+        private final Path path;
+        private final long priority;
+        private final String arrival;
+
+        private Waiter(Path path) {
+            this.path = path;
+            String[] parts = path.getFileName().toString().substring(WAITER_PREFIX.length()).split("_", 2);
+            long parsedPriority;
+            try {
+                parsedPriority = Long.parseLong(parts[0]);
+            } catch (NumberFormatException e) {
+                parsedPriority = Long.MIN_VALUE;
+            }
+            this.priority = parsedPriority;
+            this.arrival = parts.length > 1 ? parts[1] : "";
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            // Millisecond timestamps of the same width compare correctly as text
+            return arrival.compareTo(other.arrival);
+        }
+    }
+}
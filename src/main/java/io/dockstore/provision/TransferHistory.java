@@ -0,0 +1,239 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recent uploads per endpoint, which the adaptive chunk size is learned from (see S3CmdPluginHelper.getAdaptiveChunkSizeInBytes).
+ * The history lives in memory for the process and, if a history file is configured, in that file so that later launches
+ * start from what earlier ones measured.  Every launcher on the machine can share the file; an upload recorded by two of them
+ * at the same moment may be lost, which only makes the history a little shorter.
+ *
+ * @since 18/10/26
+ */
+final class TransferHistory {
+    static final int MAX_SAMPLES = 100;
+    static final int ESTIMATE_SAMPLES = 20;
+    // Smaller uploads are mostly request overhead and say little about throughput
+    static final long MIN_THROUGHPUT_SAMPLE_BYTES = 8L * 1024 * 1024;
+    private static final Logger LOG = LoggerFactory.getLogger(TransferHistory.class);
+    private static final Gson GSON = new Gson();
+    private static final TransferHistory IN_MEMORY = new TransferHistory(null);
+    private static final ConcurrentMap<Path, TransferHistory> INSTANCES = new ConcurrentHashMap<>();
+    private static final AtomicInteger ACTIVE_UPLOADS = new AtomicInteger();
+
+    private final Path file;
+    private final List<Sample> samples = new ArrayList<>();
+
+    TransferHistory(Path file) {
+        this.file = file;
+        if (file != null) {
+            samples.addAll(load(file));
+        }
+    }
+
+    /**
+     * @param file The history file shared with other launchers, or null to keep the history in memory only
+     * @return The history of the file, shared by every S3CmdProvision in the process
+     */
+    static TransferHistory getInstance(Path file) {
+        return file == null ? IN_MEMORY : INSTANCES.computeIfAbsent(file.toAbsolutePath().normalize(), TransferHistory::new);
+    }
+
+    /**
+     * Starts timing an upload.  Close the returned upload when it is done, and call finished first if it should be recorded.
+     *
+     * @param endpoint The endpoint of the upload (the s3cmd config file location)
+     * @return The upload, which knows how many uploads run in the process at the same time
+     */
+    Upload startUpload(String endpoint) {
+        return new Upload(endpoint, ACTIVE_UPLOADS.incrementAndGet());
+    }
+
+    /**
+     * Estimates the throughput of one upload from the recent uploads to the endpoint.  The uploads that ran at the same time
+     * shared the link, so each sample is scaled up by its concurrency before the link is shared out again by the current one.
+     *
+     * @param endpoint    The endpoint (the s3cmd config file location)
+     * @param concurrency The number of uploads running at the same time now
+     * @return The median throughput in bytes per second, 0 if there are no samples
+     */
+    synchronized double getBytesPerSecond(String endpoint, int concurrency) {
+        List<Double> linkRates = new ArrayList<>();
+        for (Sample sample : recent(endpoint)) {
+            if (sample.success && sample.bytes >= MIN_THROUGHPUT_SAMPLE_BYTES && sample.millis > 0) {
+                linkRates.add(sample.bytes * 1000.0 / sample.millis * Math.max(1, sample.concurrency));
+            }
+        }
+        if (linkRates.isEmpty()) {
+            return 0;
+        }
+        Collections.sort(linkRates);
+        return linkRates.get(linkRates.size() / 2) / Math.max(1, concurrency);
+    }
+
+    /**
+     * Estimates how often uploads to the endpoint fail, from the retries and failed uploads of the recent ones
+     *
+     * @param endpoint The endpoint (the s3cmd config file location)
+     * @return Failures per second of uploading, 0 if there are no samples
+     */
+    synchronized double getFailuresPerSecond(String endpoint) {
+        long failures = 0;
+        long millis = 0;
+        for (Sample sample : recent(endpoint)) {
+            failures += sample.retries + (sample.success ? 0 : 1);
+            millis += sample.millis;
+        }
+        return millis == 0 ? 0 : failures * 1000.0 / millis;
+    }
+
+    private List<Sample> recent(String endpoint) {
+        List<Sample> recent = new ArrayList<>();
+        for (int i = samples.size() - 1; i >= 0 && recent.size() < ESTIMATE_SAMPLES; i--) {
+            if (endpoint.equals(samples.get(i).endpoint)) {
+                recent.add(samples.get(i));
+            }
+        }
+        return recent;
+    }
+
+    /**
+     * Records an upload
+     *
+     * @param endpoint    The endpoint of the upload (the s3cmd config file location)
+     * @param bytes       The size of the uploaded file
+     * @param millis      How long the upload took
+     * @param concurrency The number of uploads running in the process at the same time, including this one
+     * @param retries     The number of retried requests or commands
+     * @param success     Whether the upload was successful
+     */
+    void record(String endpoint, long bytes, long millis, int concurrency, long retries, boolean success) {
+        record(new Sample(endpoint, bytes, millis, concurrency, retries, success));
+    }
+
+    private synchronized void record(Sample sample) {
+        if (file != null) {
+            // Pick up what other launchers recorded since
+            samples.clear();
+            samples.addAll(load(file));
+        }
+        samples.add(sample);
+        if (samples.size() > MAX_SAMPLES) {
+            samples.subList(0, samples.size() - MAX_SAMPLES).clear();
+        }
+        if (file != null) {
+            save(file, samples);
+        }
+    }
+
+    private static List<Sample> load(Path file) {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Sample[] loaded = GSON.fromJson(reader, Sample[].class);
+            return loaded == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(loaded));
+        } catch (NoSuchFileException e) {
+            return new ArrayList<>();
+        } catch (IOException | JsonParseException e) {
+            LOG.warn("Ignoring unreadable transfer history " + file + ". " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Replaces the file atomically, like the metrics summary, so that other launchers never read a partial file
+     */
+    private static void save(Path file, List<Sample> samples) {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path temporary = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            Files.write(temporary, GSON.toJson(samples).getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Could not write transfer history " + file + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * An upload being timed
+     */
+    final class Upload implements AutoCloseable {
+        private final String endpoint;
+        private final int concurrency;
+        private final long startNanos = System.nanoTime();
+        // Retries of uploads running at the same time are counted too, which only errs towards smaller parts
+        private final long startRetries = TransferMetrics.getInstance().getRetryCount();
+        private long bytes = -1;
+        private boolean success;
+
+        private Upload(String endpoint, int concurrency) {
+            this.endpoint = endpoint;
+            this.concurrency = concurrency;
+        }
+
+        /**
+         * @return The number of uploads running in the process when this one started, including this one
+         */
+        int getConcurrency() {
+            return concurrency;
+        }
+
+        /**
+         * Records the upload in the history when it is closed
+         *
+         * @param sizeInBytes The size of the uploaded file
+         * @param succeeded   Whether the upload was successful
+         */
+        void finished(long sizeInBytes, boolean succeeded) {
+            bytes = sizeInBytes;
+            success = succeeded;
+        }
+
+        @Override
+        public void close() {
+            ACTIVE_UPLOADS.decrementAndGet();
+            if (bytes >= 0) {
+                record(endpoint, bytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), concurrency,
+                        TransferMetrics.getInstance().getRetryCount() - startRetries, success);
+            }
+        }
+    }
+
+    private static final class Sample {
+        private String endpoint;
+        private long bytes;
+        private long millis;
+        private int concurrency;
+        private long retries;
+        private boolean success;
+
+        private Sample(String endpoint, long bytes, long millis, int concurrency, long retries, boolean success) {
+            this.endpoint = endpoint;
+            this.bytes = bytes;
+            this.millis = millis;
+            this.concurrency = concurrency;
+            this.retries = retries;
+            this.success = success;
+        }
+    }
+}
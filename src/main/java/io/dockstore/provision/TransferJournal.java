@@ -0,0 +1,221 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A checkpoint of an interrupted transfer, kept in a file next to the local file being written or read.
+ * It records the remote object (url, ETag, size), the part size, the local modification time for uploads,
+ * the multipart upload id and the parts that are already done, so that a later attempt, even in another JVM,
+ * only transfers the missing parts.  A journal that does not describe the same transfer is discarded.
+ *
+ * @since 18/10/26
+ */
+class TransferJournal {
+    static final String SUFFIX = ".s3cmd-journal";
+    private static final Logger LOG = LoggerFactory.getLogger(TransferJournal.class);
+    private static final Gson GSON = new Gson();
+
+    private final Path file;
+    private final Record record;
+    private boolean resumed;
+
+    private TransferJournal(Path file, Record record) {
+        this.file = file;
+        this.record = record;
+    }
+
+    /**
+     * @param localFile The file being downloaded to or uploaded from
+     * @return The journal file for it
+     */
+    static Path getJournalFile(Path localFile) {
+        return localFile.resolveSibling(localFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * @param localFile The file being downloaded to or uploaded from
+     * @return The journal left by an earlier attempt, or null if there is none
+     */
+    static TransferJournal load(Path localFile) {
+        Path file = getJournalFile(localFile);
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Record record = GSON.fromJson(reader, Record.class);
+            if (record != null) {
+                if (record.parts == null) {
+                    record.parts = new TreeMap<>();
+                }
+                return new TransferJournal(file, record);
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | JsonParseException e) {
+            LOG.error("Ignoring unreadable transfer journal " + file + ". " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Starts a new journal, replacing any earlier one
+     *
+     * @param localFile    The file being downloaded to or uploaded from
+     * @param url          The remote object (ex. s3://bucket/dir/object)
+     * @param etag         The ETag of the remote object for downloads, null for uploads
+     * @param size         The size of the object in bytes
+     * @param partSize     The part size in bytes
+     * @param lastModified The modification time of the local file for uploads, 0 for downloads
+     * @return The journal, or null if it could not be written (the transfer then simply cannot be resumed)
+     */
+    static TransferJournal create(Path localFile, String url, String etag, long size, long partSize, long lastModified) {
+        Record record = new Record();
+        record.url = url;
+        record.etag = etag;
+        record.size = size;
+        record.partSize = partSize;
+        record.lastModified = lastModified;
+        record.parts = new TreeMap<>();
+        TransferJournal journal = new TransferJournal(getJournalFile(localFile), record);
+        try {
+            journal.save();
+            return journal;
+        } catch (IOException e) {
+            LOG.warn("Could not write transfer journal " + journal.file + ", the transfer will not be resumable. " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Continues the journal of an earlier attempt at the same transfer, or starts a new one
+     *
+     * @return The journal, or null if it could not be written
+     * @see #create(Path, String, String, long, long, long)
+     */
+    static TransferJournal open(Path localFile, String url, String etag, long size, long partSize, long lastModified) {
+        TransferJournal journal = load(localFile);
+        if (journal != null && journal.matches(url, etag, size, partSize, lastModified)) {
+            LOG.info("Resuming " + url + " with " + journal.record.parts.size() + " parts already done");
+            journal.resumed = true;
+            return journal;
+        }
+        if (journal != null) {
+            LOG.info("Discarding transfer journal " + journal.file + ", the transfer changed since it was written");
+        }
+        return create(localFile, url, etag, size, partSize, lastModified);
+    }
+
+    /**
+     * @return The part size in bytes
+     */
+    synchronized long getPartSize() {
+        return record.partSize;
+    }
+
+    /**
+     * @return True if the journal describes the same transfer
+     */
+    synchronized boolean matches(String url, String etag, long size, long partSize, long lastModified) {
+        return Objects.equals(record.url, url) && Objects.equals(record.etag, etag) && record.size == size && record.partSize == partSize
+                && record.lastModified == lastModified;
+    }
+
+    /**
+     * @return True if the journal was left by an earlier attempt at the same transfer
+     */
+    synchronized boolean isResumed() {
+        return resumed;
+    }
+
+    synchronized String getUrl() {
+        return record.url;
+    }
+
+    synchronized String getEtag() {
+        return record.etag;
+    }
+
+    synchronized boolean isPartDone(int partNumber) {
+        return record.parts.containsKey(partNumber);
+    }
+
+    /**
+     * @param partNumber The part number, starting from 1
+     * @return The ETag recorded for the part (empty for downloads), or null if the part is not done
+     */
+    synchronized String getPartEtag(int partNumber) {
+        return record.parts.get(partNumber);
+    }
+
+    /**
+     * Records a finished part.  Downloads must have forced the part to disk before calling this.
+     *
+     * @param partNumber The part number, starting from 1
+     * @param etag       The ETag of an uploaded part, empty for downloads
+     */
+    synchronized void partDone(int partNumber, String etag) {
+        record.parts.put(partNumber, etag);
+        trySave();
+    }
+
+    synchronized String getUploadId() {
+        return record.uploadId;
+    }
+
+    synchronized void setUploadId(String uploadId) {
+        record.uploadId = uploadId;
+        trySave();
+    }
+
+    /**
+     * Removes the journal once the transfer is complete (or can no longer be resumed)
+     */
+    synchronized void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.error("Could not delete transfer journal " + file + ". " + e.getMessage());
+        }
+    }
+
+    private void trySave() {
+        try {
+            save();
+        } catch (IOException e) {
+            LOG.warn("Could not update transfer journal " + file + ". " + e.getMessage());
+        }
+    }
+
+    private void save() throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            GSON.toJson(record, writer);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The layout of the journal file
+     */
+    private static final class Record {
+        private String url;
+        private String etag;
+        private long size;
+        private long partSize;
+        private long lastModified;
+        private String uploadId;
+        private SortedMap<Integer, String> parts;
+    }
+}
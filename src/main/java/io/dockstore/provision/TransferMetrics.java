@@ -0,0 +1,363 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide counters for every s3cmd invocation and transfer, exposed through JMX and as a JSON summary.
+ *
+ * @since 18/10/26
+ */
+public final class TransferMetrics implements TransferMetricsMXBean {
+    static final String OBJECT_NAME = "io.dockstore.provision:type=TransferMetrics";
+    private static final Logger LOG = LoggerFactory.getLogger(TransferMetrics.class);
+    private static final TransferMetrics INSTANCE = register(new TransferMetrics());
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final Object SUMMARY_LOCK = new Object();
+
+    private final long startMillis = System.currentTimeMillis();
+    private final Stats commands = new Stats();
+    private final Stats spawns = new Stats();
+    private final Stats downloads = new Stats();
+    private final Stats uploads = new Stats();
+    private final Stats bucketChecks = new Stats();
+    private final Stats bucketCreates = new Stats();
+    private final Stats verifications = new Stats();
+    private final Stats copies = new Stats();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retriesExhausted = new AtomicLong();
+    private final ConcurrentMap<Integer, AtomicLong> exitCodes = new ConcurrentHashMap<>();
+
+    TransferMetrics() {
+    }
+
+    public static TransferMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private static TransferMetrics register(TransferMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            // For example when the plugin is loaded twice by different class loaders
+            LOG.debug("Could not register transfer metrics with JMX. " + e.getMessage());
+        }
+        return metrics;
+    }
+
+    void recordProcessSpawn(long nanos) {
+        spawns.record(nanos, 0, true);
+    }
+
+    void recordCommand(long nanos, int exitCode) {
+        commands.record(nanos, 0, exitCode == 0);
+        exitCodes.computeIfAbsent(exitCode, code -> new AtomicLong()).incrementAndGet();
+    }
+
+    void recordDownload(long nanos, long bytes, boolean success) {
+        downloads.record(nanos, bytes, success);
+    }
+
+    void recordUpload(long nanos, long bytes, boolean success) {
+        uploads.record(nanos, bytes, success);
+    }
+
+    void recordVerification(long nanos, long bytes, boolean matched) {
+        verifications.record(nanos, bytes, matched);
+    }
+
+    void recordCopy(long nanos, long bytes, boolean success) {
+        copies.record(nanos, bytes, success);
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    void recordRetriesExhausted() {
+        retriesExhausted.incrementAndGet();
+    }
+
+    void recordBucketCheck(long nanos, boolean exists) {
+        bucketChecks.record(nanos, 0, exists);
+    }
+
+    void recordBucketCreate(long nanos, boolean created) {
+        bucketCreates.record(nanos, 0, created);
+    }
+
+    @Override
+    public long getProcessCount() {
+        return spawns.count.get();
+    }
+
+    @Override
+    public double getAverageProcessSpawnMillis() {
+        return spawns.count.get() == 0 ? 0 : spawns.millis() / spawns.count.get();
+    }
+
+    @Override
+    public double getMaxProcessSpawnMillis() {
+        return spawns.maxNanos.get() / 1e6;
+    }
+
+    @Override
+    public long getDownloadCount() {
+        return downloads.count.get();
+    }
+
+    @Override
+    public long getDownloadFailures() {
+        return downloads.failures.get();
+    }
+
+    @Override
+    public long getDownloadBytes() {
+        return downloads.bytes.get();
+    }
+
+    @Override
+    public double getDownloadMillis() {
+        return downloads.millis();
+    }
+
+    @Override
+    public double getDownloadBytesPerSecond() {
+        return downloads.bytesPerSecond();
+    }
+
+    @Override
+    public long getUploadCount() {
+        return uploads.count.get();
+    }
+
+    @Override
+    public long getUploadFailures() {
+        return uploads.failures.get();
+    }
+
+    @Override
+    public long getUploadBytes() {
+        return uploads.bytes.get();
+    }
+
+    @Override
+    public double getUploadMillis() {
+        return uploads.millis();
+    }
+
+    @Override
+    public double getUploadBytesPerSecond() {
+        return uploads.bytesPerSecond();
+    }
+
+    @Override
+    public long getBucketCheckCount() {
+        return bucketChecks.count.get();
+    }
+
+    @Override
+    public double getBucketCheckMillis() {
+        return bucketChecks.millis();
+    }
+
+    @Override
+    public long getBucketCreateCount() {
+        return bucketCreates.count.get();
+    }
+
+    @Override
+    public double getBucketCreateMillis() {
+        return bucketCreates.millis();
+    }
+
+    @Override
+    public long getVerificationCount() {
+        return verifications.count.get();
+    }
+
+    @Override
+    public long getVerificationFailures() {
+        return verifications.failures.get();
+    }
+
+    @Override
+    public long getCopyCount() {
+        return copies.count.get();
+    }
+
+    @Override
+    public long getCopyBytes() {
+        return copies.bytes.get();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    @Override
+    public long getRetriesExhaustedCount() {
+        return retriesExhausted.get();
+    }
+
+    @Override
+    public Map<String, Long> getExitCodeCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        exitCodes.forEach((code, count) -> counts.put(describeExitCode(code), count.get()));
+        return counts;
+    }
+
+    /**
+     * Names the exit codes that checkExitCode treats specially, see https://github.com/s3tools/s3cmd/blob/master/S3/ExitCodes.py
+     *
+     * @param exitCode The s3cmd exit code
+     * @return The code followed by its name and how the plugin treats it (ex. "74 EX_IOERR (failed)")
+     */
+    static String describeExitCode(int exitCode) {
+        switch (exitCode) {
+        case 0:
+            return "0 EX_OK (success)";
+        case 65:
+            return "65 EX_DATAERR (failed)";
+        case 71:
+            return "71 EX_OSERR (failed)";
+        case 74:
+            return "74 EX_IOERR (failed)";
+        case 75:
+            return "75 EX_TEMPFAIL (failed)";
+        default:
+            return exitCode + " (error)";
+        }
+    }
+
+    @Override
+    public String getSummaryJson() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("process", ManagementFactory.getRuntimeMXBean().getName());
+        summary.put("startMillis", startMillis);
+        summary.put("elapsedMillis", System.currentTimeMillis() - startMillis);
+        summary.put("processes", spawns.toMap());
+        summary.put("commands", commands.toMap());
+        summary.put("downloads", downloads.toMap());
+        summary.put("uploads", uploads.toMap());
+        summary.put("bucketChecks", bucketChecks.toMap());
+        summary.put("bucketCreates", bucketCreates.toMap());
+        summary.put("verifications", verifications.toMap());
+        summary.put("copies", copies.toMap());
+        Map<String, Object> retryCounts = new LinkedHashMap<>();
+        retryCounts.put("count", getRetryCount());
+        retryCounts.put("exhausted", getRetriesExhaustedCount());
+        summary.put("retries", retryCounts);
+        summary.put("exitCodes", getExitCodeCounts());
+        return GSON.toJson(summary);
+    }
+
+    /**
+     * Writes the JSON summary, replacing the file atomically so that scrapers never see a partial file.
+     * Every writer (transfers in this JVM and other launchers) has its own temporary file, and the writers in this JVM take
+     * turns so that an older summary does not replace a newer one.
+     *
+     * @param file Where to write the summary
+     */
+    void writeSummary(Path file) {
+        synchronized (SUMMARY_LOCK) {
+            Path temporary = null;
+            try {
+                Path parent = file.toAbsolutePath().getParent();
+                Files.createDirectories(parent);
+                temporary = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+                Files.write(temporary, getSummaryJson().getBytes(StandardCharsets.UTF_8));
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                LOG.error("Could not write metrics summary to " + file + ". " + e.getMessage());
+                deleteQuietly(temporary);
+            }
+        }
+    }
+
+    private static void deleteQuietly(Path temporary) {
+        if (temporary != null) {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                LOG.debug("Could not delete " + temporary + ". " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (Stats stats : new Stats[] { commands, spawns, downloads, uploads, bucketChecks, bucketCreates, verifications, copies }) {
+            stats.reset();
+        }
+        retries.set(0);
+        retriesExhausted.set(0);
+        exitCodes.clear();
+    }
+
+    private static final class Stats {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        void record(long nanos, long byteCount, boolean success) {
+            count.incrementAndGet();
+            if (!success) {
+                failures.incrementAndGet();
+            }
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            bytes.addAndGet(byteCount);
+        }
+
+        double millis() {
+            return totalNanos.get() / 1e6;
+        }
+
+        double bytesPerSecond() {
+            long nanos = totalNanos.get();
+            return nanos == 0 ? 0 : bytes.get() / (nanos / (double)TimeUnit.SECONDS.toNanos(1));
+        }
+
+        void reset() {
+            count.set(0);
+            failures.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+            bytes.set(0);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", count.get());
+            map.put("failures", failures.get());
+            map.put("totalMillis", millis());
+            map.put("maxMillis", maxNanos.get() / 1e6);
+            map.put("bytes", bytes.get());
+            map.put("bytesPerSecond", bytesPerSecond());
+            return map;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package io.dockstore.provision;
+
+import java.util.Map;
+
+/**
+ * JMX view of the plugin's transfer metrics, registered as io.dockstore.provision:type=TransferMetrics
+ *
+ * @since 18/10/26
+ */
+public interface TransferMetricsMXBean {
+    long getProcessCount();
+
+    double getAverageProcessSpawnMillis();
+
+    double getMaxProcessSpawnMillis();
+
+    long getDownloadCount();
+
+    long getDownloadFailures();
+
+    long getDownloadBytes();
+
+    double getDownloadMillis();
+
+    double getDownloadBytesPerSecond();
+
+    long getUploadCount();
+
+    long getUploadFailures();
+
+    long getUploadBytes();
+
+    double getUploadMillis();
+
+    double getUploadBytesPerSecond();
+
+    long getBucketCheckCount();
+
+    double getBucketCheckMillis();
+
+    long getBucketCreateCount();
+
+    double getBucketCreateMillis();
+
+    long getVerificationCount();
+
+    /**
+     * @return The number of transferred files that did not match the ETag of the remote object
+     */
+    long getVerificationFailures();
+
+    /**
+     * @return The number of uploads tried as a server-side copy of the object the file was downloaded from.
+     * Failed copies fell back to a normal upload.
+     */
+    long getCopyCount();
+
+    /**
+     * @return The bytes that server-side copies did not have to upload
+     */
+    long getCopyBytes();
+
+    /**
+     * @return The number of parts, ranges, requests and s3cmd commands that were attempted again after a transient failure
+     */
+    long getRetryCount();
+
+    /**
+     * @return The number of times the retries ran out and the error was passed on
+     */
+    long getRetriesExhaustedCount();
+
+    /**
+     * @return The number of s3cmd processes that exited with each exit code
+     */
+    Map<String, Long> getExitCodeCounts();
+
+    /**
+     * @return The same summary that is written to the metrics-file
+     */
+    String getSummaryJson();
+
+    void reset();
+}
@@ -0,0 +1,35 @@
+package io.dockstore.provision;
+
+import java.nio.file.Path;
+
+/**
+ * One file to transfer as part of a batch
+ *
+ * @since 18/10/26
+ */
+public class TransferRequest {
+    private final String remotePath;
+    private final Path localPath;
+
+    /**
+     * @param remotePath The remote path (ex. s3cmd://bucket/dir/object), the source of a download or the destination of an upload
+     * @param localPath  The local path, the destination of a download or the source of an upload
+     */
+    public TransferRequest(String remotePath, Path localPath) {
+        this.remotePath = remotePath;
+        this.localPath = localPath;
+    }
+
+    public String getRemotePath() {
+        return remotePath;
+    }
+
+    public Path getLocalPath() {
+        return localPath;
+    }
+
+    @Override
+    public String toString() {
+        return remotePath + " <-> " + localPath;
+    }
+}
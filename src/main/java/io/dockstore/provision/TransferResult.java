@@ -0,0 +1,47 @@
+package io.dockstore.provision;
+
+/**
+ * The outcome of one file transferred as part of a batch
+ *
+ * @since 18/10/26
+ */
+public class TransferResult {
+    private final TransferRequest request;
+    private final boolean success;
+    private final Throwable error;
+    private final long durationMillis;
+
+    public TransferResult(TransferRequest request, boolean success, Throwable error, long durationMillis) {
+        this.request = request;
+        this.success = success;
+        this.error = error;
+        this.durationMillis = durationMillis;
+    }
+
+    public TransferRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * @return True if the file was transferred successfully
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return The exception that failed the transfer, null if the transfer succeeded or simply returned false
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return request + (success ? " succeeded" : " failed") + " in " + durationMillis + " ms" + (error == null ? "" : ": " + error.getMessage());
+    }
+}
@@ -0,0 +1,101 @@
+package io.dockstore.provision;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class BatchSchedulerTest {
+    private static TransferRequest request(String remotePath) {
+        return new TransferRequest(remotePath, Paths.get("/tmp/" + remotePath.hashCode()));
+    }
+
+    /**
+     * This tests that the largest files are started first and results come back in request order
+     */
+    @Test
+    public void largestFirst() throws Exception {
+        List<TransferRequest> requests = Arrays.asList(request("s3://bucket/small"), request("s3://bucket/large"), request("s3://bucket/unknown"),
+                request("s3://bucket/medium"));
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<TransferResult> results = new BatchScheduler(1, 1).run(requests, request -> {
+            switch (request.getRemotePath()) {
+            case "s3://bucket/small":
+                return 1;
+            case "s3://bucket/medium":
+                return 10;
+            case "s3://bucket/large":
+                return 100;
+            default:
+                return -1;
+            }
+        }, request -> order.add(request.getRemotePath()));
+        assertEquals(Arrays.asList("s3://bucket/large", "s3://bucket/medium", "s3://bucket/small", "s3://bucket/unknown"), order);
+        assertEquals(4, results.size());
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(requests.get(i), results.get(i).getRequest());
+            assertTrue(results.get(i).isSuccess());
+        }
+    }
+
+    /**
+     * This tests that no bucket gets more than its share of workers while other buckets keep going
+     */
+    @Test
+    public void perBucketLimit() throws Exception {
+        List<TransferRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            requests.add(request("s3://bucket" + (i % 2) + "/file" + i));
+        }
+        ConcurrentHashMap<String, AtomicInteger> active = new ConcurrentHashMap<>();
+        AtomicInteger maxPerBucket = new AtomicInteger();
+        AtomicInteger maxOverall = new AtomicInteger();
+        AtomicInteger overall = new AtomicInteger();
+        new BatchScheduler(6, 2).run(requests, request -> 0, request -> {
+            AtomicInteger bucketCount = active.computeIfAbsent(S3CmdPluginHelper.getBucketName(request.getRemotePath()), b -> new AtomicInteger());
+            maxPerBucket.accumulateAndGet(bucketCount.incrementAndGet(), Math::max);
+            maxOverall.accumulateAndGet(overall.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            bucketCount.decrementAndGet();
+            overall.decrementAndGet();
+            return true;
+        });
+        assertTrue(maxPerBucket.get() <= 2);
+        assertTrue(maxOverall.get() <= 4);
+    }
+
+    /**
+     * This tests that one failing file does not stop the rest of the batch
+     */
+    @Test
+    public void failuresAreReportedPerFile() throws Exception {
+        List<TransferRequest> requests = Arrays.asList(request("s3://bucket/ok"), request("s3://bucket/throws"), request("s3://bucket/false"));
+        List<TransferResult> results = new BatchScheduler(2, 2).run(requests, request -> 0, request -> {
+            if (request.getRemotePath().endsWith("throws")) {
+                throw new RuntimeException("Process exited with exit code12");
+            }
+            return request.getRemotePath().endsWith("ok");
+        });
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertNotNull(results.get(1).getError());
+        assertFalse(results.get(2).isSuccess());
+    }
+}
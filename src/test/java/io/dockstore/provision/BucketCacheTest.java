@@ -0,0 +1,117 @@
+package io.dockstore.provision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class BucketCacheTest {
+    /**
+     * This tests that a known bucket is not checked again until its entry expires
+     */
+    @Test
+    public void ensureBucketCachesUntilExpiry() throws Exception {
+        AtomicLong now = new AtomicLong();
+        BucketCache cache = new BucketCache(now::get);
+        AtomicInteger calls = new AtomicInteger();
+        assertTrue(cache.ensureBucket("cfg", "s3://bucket", 10, () -> calls.incrementAndGet() > 0));
+        assertTrue(cache.ensureBucket("cfg", "s3://bucket", 10, () -> calls.incrementAndGet() > 0));
+        assertEquals(1, calls.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        // Same bucket on a different endpoint is a different entry
+        cache.ensureBucket("other-cfg", "s3://bucket", 10, () -> calls.incrementAndGet() > 0);
+        assertEquals(2, calls.get());
+        now.addAndGet(TimeUnit.SECONDS.toNanos(11));
+        cache.ensureBucket("cfg", "s3://bucket", 10, () -> calls.incrementAndGet() > 0);
+        assertEquals(3, calls.get());
+    }
+
+    /**
+     * This tests that failed checks and invalidated buckets are not remembered
+     */
+    @Test
+    public void ensureBucketDoesNotCacheFailures() throws Exception {
+        BucketCache cache = new BucketCache(System::nanoTime);
+        AtomicInteger calls = new AtomicInteger();
+        assertFalse(cache.ensureBucket("cfg", "s3://bucket", 10, () -> calls.incrementAndGet() < 0));
+        assertTrue(cache.ensureBucket("cfg", "s3://bucket", 10, () -> calls.incrementAndGet() > 0));
+        cache.invalidate("cfg", "s3://bucket");
+        assertTrue(cache.ensureBucket("cfg", "s3://bucket", 10, () -> calls.incrementAndGet() > 0));
+        assertEquals(3, calls.get());
+    }
+
+    /**
+     * This tests that concurrent uploads to a new bucket only create it once
+     */
+    @Test
+    public void ensureBucketCoalescesConcurrentCallers() throws Exception {
+        BucketCache cache = new BucketCache(System::nanoTime);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(() -> cache.ensureBucket("cfg", "s3://new-bucket", 10, () -> {
+                calls.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return true;
+            })));
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Future<Boolean> future : futures) {
+            assertTrue(future.get());
+        }
+        executor.shutdown();
+        assertEquals(1, calls.get());
+    }
+
+    /**
+     * This tests that a caller which checked the cache just before another caller finished verifying the bucket does not verify it again
+     */
+    @Test
+    public void ensureBucketChecksAgainAfterLateStart() throws Exception {
+        AtomicLong now = new AtomicLong();
+        AtomicBoolean raced = new AtomicBoolean(true);
+        AtomicInteger calls = new AtomicInteger();
+        BucketCache[] cache = new BucketCache[1];
+        cache[0] = new BucketCache(() -> {
+            if (raced.compareAndSet(false, true)) {
+                // Another caller verifies the bucket while this one is between its check and taking over the verification
+                Thread other = new Thread(() -> cache[0].ensureBucket("cfg", "s3://bucket", 10, () -> calls.incrementAndGet() > 0));
+                other.start();
+                try {
+                    other.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return now.get();
+        });
+        assertTrue(cache[0].ensureBucket("cfg", "s3://bucket", 1, () -> calls.incrementAndGet() > 0));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        raced.set(false);
+        assertTrue(cache[0].ensureBucket("cfg", "s3://bucket", 10, () -> calls.incrementAndGet() > 0));
+        assertEquals(2, calls.get());
+    }
+}
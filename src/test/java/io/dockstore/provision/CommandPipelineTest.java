@@ -0,0 +1,100 @@
+package io.dockstore.provision;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class CommandPipelineTest {
+    // Enough threads for every caller to wait in the pipeline at once
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    /**
+     * This tests that operations submitted at about the same time run as one batch, and that full batches do not wait
+     */
+    @Test
+    public void batchConcurrentOperations() throws Exception {
+        CommandPipeline<Integer> pipeline = new CommandPipeline<>(10000, 4);
+        List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> singles = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            int operation = i;
+            results.add(CompletableFuture.supplyAsync(() -> pipeline.submit("group", operation, batch -> {
+                batches.add(new ArrayList<>(batch));
+                return 0;
+            }, single -> {
+                singles.add(single);
+                return 0;
+            }), callers));
+        }
+        for (CompletableFuture<Integer> result : results) {
+            assertEquals(0, (int)result.get(30, TimeUnit.SECONDS));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertEquals(2, batches.size());
+        assertEquals(4, batches.get(0).size());
+        assertTrue(singles.isEmpty());
+    }
+
+    /**
+     * This tests that a lone operation runs on its own once the linger time is up
+     */
+    @Test
+    public void lingerThenRunAlone() throws Exception {
+        CommandPipeline<String> pipeline = new CommandPipeline<>(50, 10);
+        List<String> singles = new ArrayList<>();
+        assertEquals(3, pipeline.submit("group", "operation", batch -> 1, single -> {
+            singles.add(single);
+            return 3;
+        }));
+        assertEquals(Collections.singletonList("operation"), singles);
+    }
+
+    /**
+     * This tests that each operation of a failed batch runs again on its own and gets its own exit code
+     */
+    @Test
+    public void splitFailedBatch() throws Exception {
+        CommandPipeline<Integer> pipeline = new CommandPipeline<>(10000, 2);
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            int operation = i;
+            results.add(CompletableFuture.supplyAsync(() -> pipeline.submit("group", operation, batch -> 74,
+                    single -> single == 0 ? 0 : 65), callers));
+        }
+        assertEquals(0, (int)results.get(0).get(30, TimeUnit.SECONDS));
+        assertEquals(65, (int)results.get(1).get(30, TimeUnit.SECONDS));
+    }
+
+    /**
+     * This tests that operations of different groups never share a batch
+     */
+    @Test
+    public void separateGroups() throws Exception {
+        CommandPipeline<String> pipeline = new CommandPipeline<>(100, 10);
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> pipeline.submit("get /a", "one", batch -> {
+            batchSizes.add(batch.size());
+            return 0;
+        }, single -> 0), callers);
+        assertEquals(0, pipeline.submit("get /b", "two", batch -> {
+            batchSizes.add(batch.size());
+            return 0;
+        }, single -> 0));
+        assertEquals(0, (int)first.get(30, TimeUnit.SECONDS));
+        assertTrue(batchSizes.isEmpty());
+    }
+}
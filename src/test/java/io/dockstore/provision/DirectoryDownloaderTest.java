@@ -0,0 +1,105 @@
+package io.dockstore.provision;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @since 18/10/26
+ */
+public class DirectoryDownloaderTest {
+    private static final String DIRECTORY_URL = "s3://bucket/dir/";
+    private final List<RemoteObject> objects = new ArrayList<>();
+    private Path directory;
+
+    @Before
+    public void before() throws Exception {
+        directory = Files.createTempDirectory("fan-out");
+        objects.add(new RemoteObject(DIRECTORY_URL + "a.txt", 10, "etag"));
+        objects.add(new RemoteObject(DIRECTORY_URL + "huge.bin", 1000000, "etag"));
+        objects.add(new RemoteObject(DIRECTORY_URL + "sub/", 0, "etag"));
+        for (int i = 0; i < 20; i++) {
+            objects.add(new RemoteObject(DIRECTORY_URL + "sub/deeper/" + i + ".txt", i, "etag"));
+        }
+    }
+
+    /**
+     * This tests that every object lands in its relative path, with the directories created before any worker starts
+     */
+    @Test
+    public void download() throws Exception {
+        Set<Path> targets = ConcurrentHashMap.newKeySet();
+        assertTrue(new DirectoryDownloader(4).download(DIRECTORY_URL, objects, directory, (remoteObject, target) -> {
+            assertTrue(Files.isDirectory(target.getParent()));
+            targets.add(target);
+            return true;
+        }));
+        assertEquals(22, targets.size());
+        assertTrue(targets.contains(directory.resolve("huge.bin")));
+        assertTrue(targets.contains(directory.resolve("sub/deeper/19.txt")));
+        assertFalse(targets.contains(directory.resolve("sub")));
+    }
+
+    /**
+     * This tests that the small objects do not wait for the huge one
+     */
+    @Test
+    public void hugeObjectDoesNotHoldUpTheRest() throws Exception {
+        List<String> finished = Collections.synchronizedList(new ArrayList<>());
+        assertTrue(new DirectoryDownloader(2).download(DIRECTORY_URL, objects, directory, (remoteObject, target) -> {
+            if (remoteObject.getSize() == 1000000) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            finished.add(remoteObject.getUrl());
+            return true;
+        }));
+        assertEquals(DIRECTORY_URL + "huge.bin", finished.get(finished.size() - 1));
+    }
+
+    /**
+     * This tests that a failure does not stop the other objects and the first exception is passed on
+     */
+    @Test
+    public void failures() throws Exception {
+        Set<String> attempted = ConcurrentHashMap.newKeySet();
+        assertFalse(new DirectoryDownloader(3).download(DIRECTORY_URL, objects, directory, (remoteObject, target) -> {
+            attempted.add(remoteObject.getUrl());
+            return !remoteObject.getUrl().endsWith("a.txt");
+        }));
+        assertEquals(22, attempted.size());
+        try {
+            new DirectoryDownloader(3).download(DIRECTORY_URL, objects, directory, (remoteObject, target) -> {
+                if (remoteObject.getSize() == 5) {
+                    throw new RuntimeException("Process exited with exit code 64");
+                }
+                return true;
+            });
+            fail("Expected the exception to be passed on");
+        } catch (RuntimeException e) {
+            assertEquals("Process exited with exit code 64", e.getMessage());
+        }
+    }
+
+    @Test
+    public void emptyDirectory() throws Exception {
+        assertTrue(new DirectoryDownloader(3).download(DIRECTORY_URL, Arrays.asList(new RemoteObject(DIRECTORY_URL, 0, null)), directory,
+                (remoteObject, target) -> false));
+    }
+}
@@ -0,0 +1,101 @@
+package io.dockstore.provision;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class DirectoryManifestTest {
+    /**
+     * This tests that hashes survive a save/load and are reused while size and modification time are unchanged
+     */
+    @Test
+    public void scanReusesUnchangedHashes() throws Exception {
+        Path directory = Files.createTempDirectory("manifest");
+        Files.createDirectories(directory.resolve("dir"));
+        Path file = directory.resolve("dir/file.txt");
+        Files.write(file, "file".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("other.txt"), "other".getBytes(StandardCharsets.UTF_8));
+        DirectoryManifest manifest = DirectoryManifest.scan(directory, new DirectoryManifest(), 2);
+        assertEquals(2, manifest.getEntries().size());
+        assertEquals(StubS3Server.md5("file".getBytes(StandardCharsets.UTF_8)), manifest.getEntries().get("dir/file.txt").getMd5());
+
+        Path manifestFile = directory.resolve("manifests/manifest.json");
+        manifest.save(manifestFile);
+        DirectoryManifest loaded = DirectoryManifest.load(manifestFile);
+        assertTrue(loaded.getEntries().get("dir/file.txt").sameContent(manifest.getEntries().get("dir/file.txt")));
+
+        // Same size and modification time, so the stored hash is trusted even though the content changed
+        FileTime modified = Files.getLastModifiedTime(file);
+        Files.write(file, "FILE".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, modified);
+        assertEquals(manifest.getEntries().get("dir/file.txt").getMd5(),
+                DirectoryManifest.scan(directory, loaded, 2).getEntries().get("dir/file.txt").getMd5());
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() + 1000));
+        assertFalse(DirectoryManifest.scan(directory, loaded, 2).getEntries().get("dir/file.txt")
+                .sameContent(manifest.getEntries().get("dir/file.txt")));
+    }
+
+    /**
+     * This tests that launchers saving the same manifest at once each write their own temporary file
+     */
+    @Test
+    public void saveConcurrently() throws Exception {
+        Path directory = Files.createTempDirectory("manifest");
+        Files.write(directory.resolve("file.txt"), "file".getBytes(StandardCharsets.UTF_8));
+        DirectoryManifest manifest = DirectoryManifest.scan(directory, new DirectoryManifest(), 1);
+        Path manifests = Files.createDirectories(directory.resolve("manifests"));
+        Path manifestFile = manifests.resolve("manifest.json");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            writers.add(executor.submit(() -> {
+                for (int j = 0; j < 50; j++) {
+                    manifest.save(manifestFile);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertEquals(1, DirectoryManifest.load(manifestFile).getEntries().size());
+        try (Stream<Path> files = Files.list(manifests)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void loadMissingManifest() throws Exception {
+        assertTrue(DirectoryManifest.load(Files.createTempDirectory("manifest").resolve("missing.json")).getEntries().isEmpty());
+    }
+
+    @Test
+    public void getManifestName() throws Exception {
+        Path directory = Paths.get("/data/results");
+        assertEquals(DirectoryManifest.getManifestName(directory, "cfg", "s3://bucket/dir/"),
+                DirectoryManifest.getManifestName(directory, "cfg", "s3://bucket/dir/"));
+        assertNotEquals(DirectoryManifest.getManifestName(directory, "cfg", "s3://bucket/dir/"),
+                DirectoryManifest.getManifestName(directory, "other-cfg", "s3://bucket/dir/"));
+    }
+}
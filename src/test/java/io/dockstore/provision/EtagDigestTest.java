@@ -0,0 +1,116 @@
+package io.dockstore.provision;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @since 18/10/26
+ */
+public class EtagDigestTest {
+    private static final int PART_SIZE = 1000;
+
+    /**
+     * This tests that streamed and memory-mapped hashing produce the multipart ETag S3 would
+     */
+    @Test
+    public void multipartEtag() throws Exception {
+        byte[] content = new byte[2500];
+        new Random(3).nextBytes(content);
+        ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+        for (int start = 0; start < content.length; start += PART_SIZE) {
+            byte[] part = Arrays.copyOfRange(content, start, Math.min(content.length, start + PART_SIZE));
+            partDigests.write(MessageDigest.getInstance("MD5").digest(part));
+        }
+        String expected = StubS3Server.md5(partDigests.toByteArray()) + "-3";
+
+        EtagDigest digest = new EtagDigest(PART_SIZE);
+        // Uneven writes that cross part boundaries
+        digest.update(content, 0, 999);
+        digest.update(content, 999, 1002);
+        digest.update(content, 2001, 499);
+        assertEquals(expected, digest.getEtag());
+
+        Path file = Files.createTempFile("etag", ".bin");
+        Files.write(file, content);
+        assertEquals(expected, EtagDigest.computeEtag(file, PART_SIZE, 4));
+    }
+
+    /**
+     * This tests that content that fits in one part has its MD5 as ETag
+     */
+    @Test
+    public void singlePartEtag() throws Exception {
+        byte[] content = "file".getBytes("UTF-8");
+        EtagDigest digest = new EtagDigest(PART_SIZE);
+        digest.update(content, 0, content.length);
+        assertEquals(StubS3Server.md5(content), digest.getEtag());
+        Path file = Files.createTempFile("etag", ".txt");
+        Files.write(file, content);
+        assertEquals(StubS3Server.md5(content), EtagDigest.computeEtag(file, PART_SIZE, 4));
+        assertEquals(StubS3Server.md5(new byte[0]), EtagDigest.computeEtag(Files.createTempFile("etag", ".empty"), PART_SIZE, 4));
+    }
+
+    @Test
+    public void verify() throws Exception {
+        Path file = Files.createTempFile("etag", ".txt");
+        Files.write(file, "file".getBytes("UTF-8"));
+        assertTrue(EtagDigest.verify("s3://bucket/file", file, StubS3Server.md5("file".getBytes("UTF-8")), 2));
+        // A multipart ETag with a part count the default part size cannot produce
+        assertFalse(EtagDigest.verify("s3://bucket/file", file, "0123456789abcdef0123456789abcdef-7", 2));
+        try {
+            EtagDigest.verify("s3://bucket/file", file, StubS3Server.md5("FILE".getBytes("UTF-8")), 2);
+            fail("A different MD5 should not verify");
+        } catch (IntegrityVerificationException e) {
+            assertEquals(StubS3Server.md5("file".getBytes("UTF-8")), e.getActualEtag());
+        }
+    }
+
+    /**
+     * This tests that a multipart ETag with the part count this plugin would give, but from parts of another size, is not taken as corruption
+     */
+    @Test
+    public void verifyOtherPartSize() throws Exception {
+        // aws s3 cp uploads 15.5 MB in two 8 MB parts, the plugin would use two 15 MB parts
+        byte[] content = new byte[31 * 512 * 1024];
+        new Random(5).nextBytes(content);
+        Path file = Files.createTempFile("etag", ".bin");
+        Files.write(file, content);
+        long awsPartSize = 8L * 1024 * 1024;
+        String awsEtag = EtagDigest.computeEtag(file, awsPartSize, 2);
+        assertTrue(awsEtag.endsWith("-2"));
+        assertFalse(EtagDigest.verify("s3://bucket/file", file, awsEtag, 2));
+        assertFalse(EtagDigest.matches(file, awsEtag, 2));
+        EtagDigest streamed = EtagDigest.forEtag(content.length, awsEtag);
+        streamed.update(content, 0, content.length);
+        assertFalse(streamed.verify("s3://bucket/file", awsEtag));
+
+        // With the part size of the upload the same ETag verifies, and a different one fails
+        assertTrue(EtagDigest.verify("s3://bucket/file", file, awsEtag, awsPartSize, 2));
+        String otherEtag = "0123456789abcdef0123456789abcdef-2";
+        try {
+            EtagDigest.verify("s3://bucket/file", file, otherEtag, awsPartSize, 2);
+            fail("A different multipart ETag should not verify with a known part size");
+        } catch (IntegrityVerificationException e) {
+            assertEquals(awsEtag, e.getActualEtag());
+        }
+        EtagDigest known = new EtagDigest(awsPartSize);
+        known.update(content, 0, content.length);
+        try {
+            known.verify("s3://bucket/file", otherEtag);
+            fail("A different multipart ETag should not verify with a known part size");
+        } catch (IntegrityVerificationException e) {
+            assertEquals(awsEtag, e.getActualEtag());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package io.dockstore.provision;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @since 18/10/26
+ */
+public class NativeS3ClientTest {
+    private StubS3Server server;
+    private NativeS3Client client;
+    private Path directory;
+
+    @Before
+    public void before() throws Exception {
+        server = new StubS3Server();
+        directory = Files.createTempDirectory("native-s3");
+        client = new NativeS3Client(S3Config.load(server.writeConfig(directory)));
+    }
+
+    @After
+    public void after() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void parseConfig() throws Exception {
+        S3Config s3Config = S3Config.parse(Arrays.asList("[default]", "access_key = potato", "bucket_location = potato",
+                "host_base = localhost:4572", "host_bucket =", "use_https = False", "[other]", "access_key = tomato"));
+        assertEquals("potato", s3Config.getAccessKey());
+        assertEquals("potato", s3Config.getRegion());
+        assertEquals("http", s3Config.getScheme());
+        assertEquals("localhost:4572", s3Config.getHost("bucket"));
+        assertFalse(s3Config.isVirtualHosted("bucket"));
+        s3Config = S3Config.parse(Arrays.asList("[default]", "host_bucket = %(bucket)s.s3.amazonaws.com"));
+        assertEquals("https", s3Config.getScheme());
+        assertEquals("us-east-1", s3Config.getRegion());
+        assertEquals("bucket.s3.amazonaws.com", s3Config.getHost("bucket"));
+    }
+
+    @Test
+    public void bucketLifecycle() throws Exception {
+        assertFalse(client.headBucket("new-bucket"));
+        client.createBucket("new-bucket");
+        assertTrue(client.headBucket("new-bucket"));
+        assertNull(client.headObject("new-bucket", "missing.txt"));
+    }
+
+    @Test
+    public void putAndGetObject() throws Exception {
+        client.createBucket("bucket");
+        Path source = directory.resolve("file with spaces.txt");
+        Files.write(source, "hello".getBytes(StandardCharsets.UTF_8));
+        String etag = client.putObject("bucket", "dir/file with spaces.txt", source, 1024);
+        assertEquals(StubS3Server.md5("hello".getBytes(StandardCharsets.UTF_8)), etag);
+        RemoteObject remoteObject = client.headObject("bucket", "dir/file with spaces.txt");
+        assertEquals(5, remoteObject.getSize());
+        assertEquals(etag, remoteObject.getEtag());
+        Path destination = directory.resolve("out/file.txt");
+        client.getObject("bucket", "dir/file with spaces.txt", destination);
+        assertEquals("hello", new String(Files.readAllBytes(destination), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void multipartUpload() throws Exception {
+        client.createBucket("bucket");
+        byte[] content = new byte[10000];
+        new Random(1).nextBytes(content);
+        Path source = directory.resolve("large.bin");
+        Files.write(source, content);
+        String etag = client.putObject("bucket", "large.bin", source, 3000);
+        assertTrue(etag, etag.endsWith("-4"));
+        assertArrayEquals(content, server.getObject("bucket", "large.bin"));
+    }
+
+    @Test
+    public void listObjectsFollowsContinuationTokens() throws Exception {
+        for (String key : Arrays.asList("dir/a", "dir/b", "dir/c", "dir/sub/d", "other/e")) {
+            server.putObject("bucket", key, key.getBytes(StandardCharsets.UTF_8));
+        }
+        List<RemoteObject> objects = client.listObjects("bucket", "dir/");
+        assertEquals(4, objects.size());
+        assertEquals("dir/sub/d", objects.get(3).getKey());
+        assertEquals(9, objects.get(3).getSize());
+    }
+
+    @Test
+    public void errorsCarryTheStatusCode() throws Exception {
+        try {
+            client.getObject("missing-bucket", "file.txt", directory.resolve("file.txt"));
+            fail("Expected the download to fail");
+        } catch (S3Exception e) {
+            assertEquals(404, e.getStatusCode());
+            assertEquals("NoSuchBucket", e.getErrorCode());
+        } catch (IOException e) {
+            fail("Expected an S3Exception");
+        }
+    }
+
+    /**
+     * This tests that a failed multipart upload keeps its parts and the next attempt only uploads the missing ones
+     */
+    @Test
+    public void resumeMultipartUpload() throws Exception {
+        client.setResumeTransfers(true);
+        server.putObject("bucket", "placeholder", new byte[0]);
+        byte[] content = new byte[5 * 1024 + 3];
+        new Random(5).nextBytes(content);
+        Path source = directory.resolve("large.bin");
+        Files.write(source, content);
+        server.failPartOnce(4);
+        try {
+            client.putObject("bucket", "large.bin", source, 1024);
+            fail("Expected part 4 to fail");
+        } catch (S3Exception e) {
+            assertEquals(500, e.getStatusCode());
+        }
+        assertTrue(Files.exists(TransferJournal.getJournalFile(source)));
+        assertEquals(3, server.getPartUploadCount());
+        client.putObject("bucket", "large.bin", source, 1024);
+        assertEquals(6, server.getPartUploadCount());
+        assertArrayEquals(content, server.getObject("bucket", "large.bin"));
+        assertFalse(Files.exists(TransferJournal.getJournalFile(source)));
+    }
+
+    /**
+     * This tests that a failed part is retried on its own instead of failing the whole upload
+     */
+    @Test
+    public void retryFailedPart() throws Exception {
+        client.setRetryPolicy(new RetryPolicy(2, 0, 0, Collections.emptySet(), Collections.singleton(500)));
+        server.putObject("bucket", "placeholder", new byte[0]);
+        byte[] content = new byte[5 * 1024 + 3];
+        new Random(6).nextBytes(content);
+        Path source = directory.resolve("large.bin");
+        Files.write(source, content);
+        server.failPartOnce(4);
+        long retries = TransferMetrics.getInstance().getRetryCount();
+        client.putObject("bucket", "large.bin", source, 1024);
+        assertEquals(6, server.getPartUploadCount());
+        assertEquals(retries + 1, TransferMetrics.getInstance().getRetryCount());
+        assertArrayEquals(content, server.getObject("bucket", "large.bin"));
+    }
+
+    /**
+     * This tests that objects are copied inside S3, part by part above the single copy limit, and only while the source is unchanged
+     */
+    @Test
+    public void copyObject() throws Exception {
+        byte[] content = new byte[10000];
+        new Random(8).nextBytes(content);
+        server.putObject("bucket", "dir/source file.bin", content);
+        String etag = server.getEtag("bucket", "dir/source file.bin");
+        assertEquals(etag, client.copyObject("bucket", "dir/source file.bin", etag, "bucket", "copy.bin", content.length));
+        assertArrayEquals(content, server.getObject("bucket", "copy.bin"));
+        String multipartEtag = client.copyObject("bucket", "dir/source file.bin", etag, "bucket", "parts.bin", content.length, 5000, 3000);
+        assertTrue(multipartEtag, multipartEtag.endsWith("-4"));
+        assertArrayEquals(content, server.getObject("bucket", "parts.bin"));
+        assertEquals(5, server.getCopyCount());
+        try {
+            client.copyObject("bucket", "dir/source file.bin", "stale", "bucket", "stale.bin", content.length);
+            fail("Expected the copy to fail");
+        } catch (S3Exception e) {
+            assertEquals(412, e.getStatusCode());
+        }
+        assertNull(server.getObject("bucket", "stale.bin"));
+    }
+
+    /**
+     * This tests that a stream of unknown length is uploaded in growing parts, with a single PUT when it fits in the first one
+     */
+    @Test
+    public void streamUpload() throws Exception {
+        client.createBucket("bucket");
+        byte[] content = new byte[10000];
+        new Random(7).nextBytes(content);
+        StreamingUploader uploader = new StreamingUploader(client, true, partNumber -> 3000L * partNumber, StreamingUploader.DEFAULT_MEMORY_BUDGET);
+        RemoteObject remoteObject = uploader.upload("bucket", "stream.bin", Channels.newChannel(new ByteArrayInputStream(content)));
+        assertEquals(10000, remoteObject.getSize());
+        assertTrue(remoteObject.getEtag(), remoteObject.getEtag().endsWith("-3"));
+        assertEquals(3, server.getPartUploadCount());
+        assertArrayEquals(content, server.getObject("bucket", "stream.bin"));
+
+        byte[] small = Arrays.copyOf(content, 3000);
+        remoteObject = uploader.upload("bucket", "small.bin", Channels.newChannel(new ByteArrayInputStream(small)));
+        assertEquals(StubS3Server.md5(small), remoteObject.getEtag());
+        assertEquals(3, server.getPartUploadCount());
+        assertArrayEquals(small, server.getObject("bucket", "small.bin"));
+    }
+
+    /**
+     * This tests that parts stop growing at half of the memory budget, so the buffers stay within it
+     */
+    @Test
+    public void streamUploadMemoryBudget() throws Exception {
+        client.createBucket("bucket");
+        byte[] content = new byte[7 * StreamingUploader.SLICE_SIZE / 2];
+        new Random(9).nextBytes(content);
+        StreamingUploader uploader = new StreamingUploader(client, true, partNumber -> 4L * StreamingUploader.SLICE_SIZE,
+                2L * StreamingUploader.SLICE_SIZE);
+        RemoteObject remoteObject = uploader.upload("bucket", "stream.bin", Channels.newChannel(new ByteArrayInputStream(content)));
+        assertTrue(remoteObject.getEtag(), remoteObject.getEtag().endsWith("-4"));
+        assertEquals(4, server.getPartUploadCount());
+        assertEquals(2L * StreamingUploader.SLICE_SIZE, uploader.getAllocatedBytes());
+        assertArrayEquals(content, server.getObject("bucket", "stream.bin"));
+    }
+
+    /**
+     * This tests that a streamed upload is aborted when one of its parts fails, since the stream cannot be read again
+     */
+    @Test
+    public void abortFailedStreamUpload() throws Exception {
+        server.putObject("bucket", "placeholder", new byte[0]);
+        server.failPartOnce(2);
+        StreamingUploader uploader = new StreamingUploader(client, false, partNumber -> 1024, StreamingUploader.DEFAULT_MEMORY_BUDGET);
+        try {
+            uploader.upload("bucket", "stream.bin", Channels.newChannel(new ByteArrayInputStream(new byte[5000])));
+            fail("Expected part 2 to fail");
+        } catch (S3Exception e) {
+            assertEquals(500, e.getStatusCode());
+        }
+        assertNull(server.getObject("bucket", "stream.bin"));
+    }
+
+    /**
+     * This tests that an interrupted download continues from its partial file unless the object changed
+     */
+    @Test
+    public void resumeDownload() throws Exception {
+        client.setResumeTransfers(true);
+        byte[] content = "0123456789".getBytes(StandardCharsets.UTF_8);
+        server.putObject("bucket", "object", content);
+        Path destination = directory.resolve("object");
+        Path partial = directory.resolve("object.part");
+        // What an attempt that died after 4 bytes leaves behind
+        Files.write(partial, Arrays.copyOf(content, 4));
+        TransferJournal.create(partial, "s3://bucket/object", server.getEtag("bucket", "object"), content.length, 0, 0);
+        client.getObject("bucket", "object", destination);
+        assertArrayEquals(content, Files.readAllBytes(destination));
+        assertFalse(Files.exists(TransferJournal.getJournalFile(partial)));
+
+        // The journal is for an older version of the object, so the partial file is thrown away
+        Files.write(partial, "stale".getBytes(StandardCharsets.UTF_8));
+        TransferJournal.create(partial, "s3://bucket/object", "0123456789abcdef0123456789abcdef", content.length, 0, 0);
+        client.getObject("bucket", "object", destination);
+        assertArrayEquals(content, Files.readAllBytes(destination));
+    }
+}
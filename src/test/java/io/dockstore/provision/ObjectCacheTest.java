@@ -0,0 +1,140 @@
+package io.dockstore.provision;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class ObjectCacheTest {
+    private Path directory;
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    @Before
+    public void before() throws Exception {
+        directory = Files.createTempDirectory("object-cache");
+    }
+
+    private ObjectCache.Downloader writes(int size) {
+        return file -> {
+            downloads.incrementAndGet();
+            try {
+                Files.write(file, new byte[size]);
+                return true;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    /**
+     * This tests that the second fetch of the same object is served from the cache with a hardlink
+     */
+    @Test
+    public void fetchHitIsLinked() throws Exception {
+        ObjectCache cache = new ObjectCache(directory.resolve("cache"), 1000);
+        RemoteObject remoteObject = new RemoteObject("s3://bucket/reference.fa", 10, "etag");
+        assertTrue(cache.fetch(remoteObject, directory.resolve("run1/reference.fa"), writes(10)));
+        assertTrue(cache.fetch(remoteObject, directory.resolve("run2/reference.fa"), writes(10)));
+        assertEquals(1, downloads.get());
+        assertTrue(Files.isSameFile(directory.resolve("run1/reference.fa"), directory.resolve("run2/reference.fa")));
+        assertArrayEquals(new byte[10], Files.readAllBytes(directory.resolve("run2/reference.fa")));
+    }
+
+    /**
+     * This tests that a hit does not change the modification time of the destinations linked earlier
+     */
+    @Test
+    public void fetchHitKeepsModificationTime() throws Exception {
+        ObjectCache cache = new ObjectCache(directory.resolve("cache"), 1000);
+        RemoteObject remoteObject = new RemoteObject("s3://bucket/reference.fa", 10, "etag");
+        Path first = directory.resolve("run1/reference.fa");
+        assertTrue(cache.fetch(remoteObject, first, writes(10)));
+        FileTime modified = FileTime.fromMillis(1000000);
+        Files.setLastModifiedTime(first, modified);
+        assertTrue(cache.fetch(remoteObject, directory.resolve("run2/reference.fa"), writes(10)));
+        assertEquals(modified, Files.getLastModifiedTime(first));
+    }
+
+    /**
+     * This tests that a changed ETag or size is a different entry
+     */
+    @Test
+    public void changedObjectIsDownloadedAgain() throws Exception {
+        ObjectCache cache = new ObjectCache(directory.resolve("cache"), 1000);
+        cache.fetch(new RemoteObject("s3://bucket/file", 10, "etag1"), directory.resolve("a"), writes(10));
+        cache.fetch(new RemoteObject("s3://bucket/file", 10, "etag2"), directory.resolve("b"), writes(10));
+        assertEquals(2, downloads.get());
+        assertNotEquals(ObjectCache.getEntryName(new RemoteObject("s3://bucket/file", 10, "etag")),
+                ObjectCache.getEntryName(new RemoteObject("s3://bucket/file", 11, "etag")));
+    }
+
+    /**
+     * This tests that a download of the wrong size is not cached
+     */
+    @Test
+    public void truncatedDownloadIsRejected() throws Exception {
+        ObjectCache cache = new ObjectCache(directory.resolve("cache"), 1000);
+        assertFalse(cache.fetch(new RemoteObject("s3://bucket/file", 10, "etag"), directory.resolve("a"), writes(5)));
+        assertTrue(cache.fetch(new RemoteObject("s3://bucket/file", 10, "etag"), directory.resolve("a"), writes(10)));
+        assertEquals(2, downloads.get());
+    }
+
+    /**
+     * This tests that the least recently used entries are evicted first
+     */
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        ObjectCache cache = new ObjectCache(directory.resolve("cache"), 25);
+        RemoteObject first = new RemoteObject("s3://bucket/first", 10, "etag");
+        RemoteObject second = new RemoteObject("s3://bucket/second", 10, "etag");
+        cache.fetch(first, directory.resolve("first"), writes(10));
+        cache.fetch(second, directory.resolve("second"), writes(10));
+        // Make the second entry the least recently used
+        Files.setLastModifiedTime(directory.resolve("cache/used/" + ObjectCache.getEntryName(second)), FileTime.fromMillis(0));
+        cache.fetch(new RemoteObject("s3://bucket/third", 10, "etag"), directory.resolve("third"), writes(10));
+        assertTrue(Files.exists(directory.resolve("cache/objects/" + ObjectCache.getEntryName(first))));
+        assertFalse(Files.exists(directory.resolve("cache/objects/" + ObjectCache.getEntryName(second))));
+        // Nothing of an evicted entry is left behind, and lock files are shared by the entries whose names start alike
+        assertFalse(Files.exists(directory.resolve("cache/used/" + ObjectCache.getEntryName(second))));
+        assertTrue(Files.exists(directory.resolve("cache/locks/" + ObjectCache.getEntryName(second).substring(0, 3) + ".lock")));
+        // Evicting an entry does not touch the linked copies
+        assertTrue(Files.exists(directory.resolve("second")));
+    }
+
+    /**
+     * This tests that concurrent launchers asking for the same object only download it once
+     */
+    @Test
+    public void concurrentFetchesDownloadOnce() throws Exception {
+        ObjectCache cache = new ObjectCache(directory.resolve("cache"), 1000);
+        RemoteObject remoteObject = new RemoteObject("s3://bucket/shared", 10, "etag");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Path destination = directory.resolve("run" + i + "/shared");
+            futures.add(executor.submit(() -> cache.fetch(remoteObject, destination, writes(10))));
+        }
+        for (Future<Boolean> future : futures) {
+            assertTrue(future.get());
+        }
+        executor.shutdown();
+        assertEquals(1, downloads.get());
+    }
+}
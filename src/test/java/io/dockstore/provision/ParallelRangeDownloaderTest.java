@@ -0,0 +1,149 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @since 18/10/26
+ */
+public class ParallelRangeDownloaderTest {
+    private final byte[] content = new byte[1000003];
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Set<String> failedRanges = ConcurrentHashMap.newKeySet();
+    private HttpServer server;
+    private Path directory;
+
+    @Before
+    public void before() throws Exception {
+        new Random(42).nextBytes(content);
+        directory = Files.createTempDirectory("range-download");
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/object", exchange -> {
+            requests.incrementAndGet();
+            serveRange(exchange);
+        });
+        server.createContext("/flaky", exchange -> {
+            // The first request for every range fails
+            if (failedRanges.add(exchange.getRequestHeaders().getFirst("Range"))) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            serveRange(exchange);
+        });
+        server.createContext("/truncated", exchange -> {
+            exchange.sendResponseHeaders(206, 10);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content, 0, 10);
+            }
+        });
+        server.start();
+    }
+
+    private void serveRange(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String[] bounds = range.substring("bytes=".length()).split("-");
+        int start = Integer.parseInt(bounds[0]);
+        int end = Math.min(content.length - 1, Integer.parseInt(bounds[1]));
+        exchange.sendResponseHeaders(206, end - start + 1);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content, start, end - start + 1);
+        }
+    }
+
+    @After
+    public void after() throws Exception {
+        server.stop(0);
+    }
+
+    private URL url(String path) throws Exception {
+        return new URL("http://localhost:" + server.getAddress().getPort() + path);
+    }
+
+    /**
+     * This tests that the ranges are reassembled in place into the exact object
+     */
+    @Test
+    public void download() throws Exception {
+        ParallelRangeDownloader downloader = new ParallelRangeDownloader(100000, 4);
+        Path destination = directory.resolve("nested/object.bin");
+        downloader.download(url("/object"), content.length, destination);
+        assertArrayEquals(content, Files.readAllBytes(destination));
+        assertEquals(11, downloader.getPartCount(content.length));
+        assertEquals(11, requests.get());
+    }
+
+    /**
+     * This tests that a range that ends early fails the download
+     */
+    @Test
+    public void downloadTruncatedRange() throws Exception {
+        try {
+            new ParallelRangeDownloader(100, 2).download(url("/truncated"), 200, directory.resolve("object.bin"));
+            fail("Expected the truncated range to fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * This tests that the ranges a journal marks as done are not downloaded again
+     */
+    @Test
+    public void resumeDownload() throws Exception {
+        Path destination = directory.resolve("object.bin");
+        // The first two ranges made it to disk before the previous attempt died
+        Files.write(destination, java.util.Arrays.copyOf(content, 200000));
+        TransferJournal journal = TransferJournal.create(destination, "s3://bucket/object", "etag", content.length, 100000, 0);
+        journal.partDone(1, "");
+        journal.partDone(2, "");
+        TransferJournal resumed = TransferJournal.open(destination, "s3://bucket/object", "etag", content.length, 100000, 0);
+        new ParallelRangeDownloader(100000, 4).download(url("/object"), content.length, destination, resumed);
+        assertArrayEquals(content, Files.readAllBytes(destination));
+        assertEquals(9, requests.get());
+    }
+
+    /**
+     * This tests that failed ranges are retried on their own and the object still comes out whole
+     */
+    @Test
+    public void retryFailedRanges() throws Exception {
+        Path destination = directory.resolve("object.bin");
+        RetryPolicy retryPolicy = new RetryPolicy(2, 0, 0, Collections.emptySet(), Collections.singleton(503));
+        new ParallelRangeDownloader(100000, 4, retryPolicy).download(url("/flaky"), content.length, destination);
+        assertArrayEquals(content, Files.readAllBytes(destination));
+    }
+
+    /**
+     * This tests that a range failing with a status that is not retryable fails the download
+     */
+    @Test
+    public void doNotRetryOtherStatusCodes() throws Exception {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 0, 0, Collections.emptySet(), Collections.singleton(500));
+        try {
+            new ParallelRangeDownloader(100000, 1, retryPolicy).download(url("/flaky"), content.length, directory.resolve("object.bin"));
+            fail("Expected the first 503 to fail the download");
+        } catch (S3Exception e) {
+            assertEquals(503, e.getStatusCode());
+        }
+    }
+}
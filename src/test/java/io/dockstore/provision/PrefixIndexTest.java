@@ -0,0 +1,142 @@
+package io.dockstore.provision;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class PrefixIndexTest {
+    private static final List<RemoteObject> LISTING = Arrays.asList(new RemoteObject("s3://bucket/inputs/a.txt", 1, "etag-a"),
+            new RemoteObject("s3://bucket/inputs/b.txt", 2, "etag-b"), new RemoteObject("s3://bucket/inputs/sample/reads.bam", 3, "etag-c"));
+
+    private final AtomicInteger listings = new AtomicInteger();
+    private final List<Integer> limits = new ArrayList<>();
+    private final PrefixIndex.Lister lister = (directoryUrl, limit) -> {
+        listings.incrementAndGet();
+        limits.add(limit);
+        List<RemoteObject> objects = new ArrayList<>();
+        for (RemoteObject remoteObject : LISTING) {
+            if (remoteObject.getUrl().startsWith(directoryUrl)) {
+                objects.add(remoteObject);
+            }
+        }
+        return Optional.of(objects);
+    };
+
+    /**
+     * This tests that one listing answers lookups in the directory and its subdirectories until it expires
+     */
+    @Test
+    public void listOnceUntilExpiry() throws Exception {
+        AtomicLong now = new AtomicLong();
+        PrefixIndex index = new PrefixIndex(null, now::get);
+        assertEquals(3, index.list("cfg", "s3://bucket/inputs/", 10, 100, lister).get().size());
+        assertEquals("etag-b", index.lookup("cfg", "s3://bucket/inputs/b.txt", 10).get().getEtag());
+        assertEquals(3, index.lookup("cfg", "s3://bucket/inputs/sample/reads.bam", 10).get().getSize());
+        assertEquals(1, index.list("cfg", "s3://bucket/inputs/sample/", 10, 100, lister).get().size());
+        // Not listed, but not known not to exist either
+        assertFalse(index.lookup("cfg", "s3://bucket/inputs/c.txt", 10).isPresent());
+        assertEquals(1, listings.get());
+        assertEquals(4, index.getHitCount());
+        // Same bucket on a different endpoint is a different entry
+        index.list("other-cfg", "s3://bucket/inputs/", 10, 100, lister);
+        assertEquals(2, listings.get());
+        now.addAndGet(TimeUnit.SECONDS.toMillis(11));
+        assertFalse(index.lookup("cfg", "s3://bucket/inputs/a.txt", 10).isPresent());
+        index.list("cfg", "s3://bucket/inputs/", 10, 100, lister);
+        assertEquals(3, listings.get());
+    }
+
+    /**
+     * This tests that looking up an object or a directory never lists anything, since its directory could be the whole bucket
+     */
+    @Test
+    public void lookupsDoNotList() throws Exception {
+        PrefixIndex index = new PrefixIndex(null, System::currentTimeMillis);
+        assertFalse(index.lookup("cfg", "s3://bucket/a.txt", 10).isPresent());
+        assertFalse(index.isDirectory("cfg", "s3://bucket/inputs", 10).isPresent());
+        assertEquals(0, listings.get());
+        assertEquals(2, index.getMissCount());
+    }
+
+    /**
+     * This tests that a url without a trailing slash is a directory when it only has objects under it
+     */
+    @Test
+    public void isDirectory() throws Exception {
+        PrefixIndex index = new PrefixIndex(null, System::currentTimeMillis);
+        index.list("cfg", "s3://bucket/inputs/", 10, 100, lister);
+        assertTrue(index.isDirectory("cfg", "s3://bucket/inputs/sample", 10).get());
+        assertFalse(index.isDirectory("cfg", "s3://bucket/inputs/a.txt", 10).get());
+        assertFalse(index.isDirectory("cfg", "s3://bucket/inputs/missing", 10).get());
+        // A listing that failed cannot tell
+        assertFalse(index.list("cfg", "s3://bucket/outputs/", 10, 100, (directoryUrl, limit) -> Optional.empty()).isPresent());
+        assertFalse(index.isDirectory("cfg", "s3://bucket/outputs/sample", 10).isPresent());
+    }
+
+    /**
+     * This tests that uploads are added to the listings covering them, and that invalidated listings are forgotten
+     */
+    @Test
+    public void recordAndInvalidate() throws Exception {
+        PrefixIndex index = new PrefixIndex(null, System::currentTimeMillis);
+        index.list("cfg", "s3://bucket/inputs/", 10, 100, lister);
+        index.record("cfg", new RemoteObject("s3://bucket/inputs/c.txt", 4, null));
+        index.record("cfg", new RemoteObject("s3://bucket/outputs/d.txt", 5, "etag-d"));
+        assertEquals(4, index.lookup("cfg", "s3://bucket/inputs/c.txt", 10).get().getSize());
+        index.invalidate("cfg", "s3://bucket/inputs/sample/");
+        assertFalse(index.lookup("cfg", "s3://bucket/inputs/c.txt", 10).isPresent());
+        assertEquals(3, index.list("cfg", "s3://bucket/", 10, 100, lister).get().size());
+        // Never listed, so not recorded either
+        assertFalse(index.lookup("cfg", "s3://bucket/outputs/d.txt", 10).isPresent());
+    }
+
+    /**
+     * This tests that a listing stops at one more object than it may keep, is not kept, and is not listed again until it expires
+     */
+    @Test
+    public void tooManyObjects() throws Exception {
+        PrefixIndex index = new PrefixIndex(null, System::currentTimeMillis);
+        assertFalse(index.list("cfg", "s3://bucket/inputs/", 10, 2, lister).isPresent());
+        assertEquals(Collections.singletonList(3), limits);
+        assertFalse(index.list("cfg", "s3://bucket/inputs/", 10, 2, lister).isPresent());
+        assertFalse(index.lookup("cfg", "s3://bucket/inputs/a.txt", 10).isPresent());
+        assertEquals(1, listings.get());
+        // A smaller directory under it can still be indexed
+        assertTrue(index.list("cfg", "s3://bucket/inputs/sample/", 10, 2, lister).isPresent());
+        assertTrue(index.lookup("cfg", "s3://bucket/inputs/sample/reads.bam", 10).isPresent());
+        assertEquals(2, listings.get());
+    }
+
+    /**
+     * This tests that a later launch starts from the listings an earlier one saved
+     */
+    @Test
+    public void persistIndex() throws Exception {
+        Path directory = Files.createTempDirectory("prefix-index");
+        new PrefixIndex(directory, System::currentTimeMillis).list("cfg", "s3://bucket/inputs/", 10, 100, lister);
+        PrefixIndex later = new PrefixIndex(directory, System::currentTimeMillis);
+        assertEquals("etag-a", later.lookup("cfg", "s3://bucket/inputs/a.txt", 10).get().getEtag());
+        assertEquals(1, listings.get());
+        Files.write(Files.list(directory).findFirst().get(), "not json".getBytes());
+        PrefixIndex corrupted = new PrefixIndex(directory, System::currentTimeMillis);
+        assertFalse(corrupted.lookup("cfg", "s3://bucket/inputs/a.txt", 10).isPresent());
+        assertEquals(3, corrupted.list("cfg", "s3://bucket/inputs/", 10, 100, lister).get().size());
+        assertEquals(2, listings.get());
+    }
+}
@@ -0,0 +1,113 @@
+package io.dockstore.provision;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @since 18/10/26
+ */
+public class RetryPolicyTest {
+    private final List<Long> sleeps = new ArrayList<>();
+
+    private RetryPolicy policy(int maxAttempts) {
+        return new RetryPolicy(maxAttempts, 100, 300, new HashSet<>(Arrays.asList(74, 75)), Collections.singleton(503), sleeps::add, () -> 1.0);
+    }
+
+    /**
+     * This tests that the delay doubles up to the maximum and is scaled by the jitter
+     */
+    @Test
+    public void delays() {
+        RetryPolicy policy = policy(5);
+        assertEquals(100, policy.getDelayMillis(1));
+        assertEquals(200, policy.getDelayMillis(2));
+        assertEquals(300, policy.getDelayMillis(3));
+        assertEquals(300, policy.getDelayMillis(10));
+        RetryPolicy halfJitter = new RetryPolicy(5, 100, 300, Collections.emptySet(), Collections.emptySet(), sleeps::add, () -> 0.5);
+        assertEquals(100, halfJitter.getDelayMillis(2));
+    }
+
+    /**
+     * This tests that transient errors are retried until the attempt succeeds
+     */
+    @Test
+    public void retryUntilSuccess() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        long retries = TransferMetrics.getInstance().getRetryCount();
+        String result = policy(3).call("test", () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new S3Exception(503, "SlowDown", null);
+            }
+            return "done";
+        });
+        assertEquals("done", result);
+        assertEquals(3, attempts.get());
+        assertEquals(Arrays.asList(100L, 200L), sleeps);
+        assertEquals(retries + 2, TransferMetrics.getInstance().getRetryCount());
+    }
+
+    /**
+     * This tests that the last error is thrown once the attempts run out
+     */
+    @Test
+    public void giveUp() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        long exhausted = TransferMetrics.getInstance().getRetriesExhaustedCount();
+        try {
+            policy(2).call("test", () -> {
+                throw new IOException("Connection reset " + attempts.incrementAndGet());
+            });
+            fail("Expected the second attempt to fail");
+        } catch (IOException e) {
+            assertEquals("Connection reset 2", e.getMessage());
+        }
+        assertEquals(exhausted + 1, TransferMetrics.getInstance().getRetriesExhaustedCount());
+    }
+
+    /**
+     * This tests that errors that will not go away are not retried
+     */
+    @Test
+    public void classification() {
+        RetryPolicy policy = policy(3);
+        assertTrue(policy.isRetryable(new S3Exception(503, null, null)));
+        assertTrue(policy.isRetryable(new IOException("Connection reset")));
+        assertFalse(policy.isRetryable(new S3Exception(403, "AccessDenied", null)));
+        assertFalse(policy.isRetryable(new FileNotFoundException("missing")));
+        assertTrue(sleeps.isEmpty());
+    }
+
+    /**
+     * This tests that only the configured exit codes run the command again
+     */
+    @Test
+    public void retryCommand() {
+        List<Integer> exitCodes = new ArrayList<>(Arrays.asList(75, 74, 0));
+        List<Integer> attempts = new ArrayList<>();
+        assertEquals(0, policy(3).callCommand("test", attempt -> {
+            attempts.add(attempt);
+            return exitCodes.remove(0);
+        }));
+        assertEquals(Arrays.asList(1, 2, 3), attempts);
+        assertEquals(12, policy(3).callCommand("test", attempt -> 12));
+        assertEquals(75, policy(1).callCommand("test", attempt -> 75));
+    }
+
+    @Test
+    public void parseCodes() {
+        assertEquals(new HashSet<>(Arrays.asList(500, 503)), RetryPolicy.parseCodes(" 500, 503,,x"));
+    }
+}
@@ -0,0 +1,182 @@
+package io.dockstore.provision;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class S3CmdPluginAsyncTest {
+    private StubS3Server server;
+    private Path directory;
+    private S3CmdPlugin.S3CmdProvision provision;
+    private Map<String, String> config;
+
+    @Before
+    public void before() throws Exception {
+        server = new StubS3Server();
+        directory = Files.createTempDirectory("async-provision");
+        config = new HashMap<>();
+        config.put("config-file-location", server.writeConfig(directory).toString());
+        config.put("verbosity", "Minimal");
+        provision = new S3CmdPlugin.S3CmdProvision();
+        provision.setConfiguration(config);
+    }
+
+    @After
+    public void after() throws Exception {
+        server.close();
+    }
+
+    /**
+     * This tests that many uploads and downloads can run at once from one provisioner
+     */
+    @Test
+    public void concurrentTransfers() throws Exception {
+        config.put("transport", "native");
+        List<CompletableFuture<Boolean>> uploads = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Path file = directory.resolve("file" + i + ".txt");
+            Files.write(file, ("file" + i).getBytes(StandardCharsets.UTF_8));
+            uploads.add(provision.uploadToAsync("s3cmd://async-bucket/dir/file" + i + ".txt", file, Optional.empty()));
+        }
+        for (CompletableFuture<Boolean> upload : uploads) {
+            assertTrue(upload.get(30, TimeUnit.SECONDS));
+        }
+        List<CompletableFuture<Boolean>> downloads = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            downloads.add(provision.downloadFromAsync("s3cmd://async-bucket/dir/file" + i + ".txt", directory.resolve("out/file" + i + ".txt")));
+        }
+        CompletableFuture.allOf(downloads.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(downloads.get(i).get());
+            assertEquals("file" + i, new String(Files.readAllBytes(directory.resolve("out/file" + i + ".txt")), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * This tests that cancelling a transfer kills its s3cmd process instead of leaving it running
+     */
+    @Test
+    public void cancelKillsProcess() throws Exception {
+        Path pidFile = directory.resolve("s3cmd.pid");
+        Path client = directory.resolve("s3cmd");
+        // A client that hangs like a stalled transfer
+        Files.write(client, ("#!/bin/sh\necho $$ > " + pidFile + "\nexec sleep 60\n").getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(client, PosixFilePermissions.fromString("rwx------"));
+        config.put("client", client.toString());
+        CompletableFuture<Boolean> download = provision.downloadFromAsync("s3cmd://bucket/object", directory.resolve("object"));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!Files.exists(pidFile) || Files.size(pidFile) == 0) {
+            assertTrue("The client was not started", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+        String pid = new String(Files.readAllBytes(pidFile), StandardCharsets.UTF_8).trim();
+        assertTrue(download.cancel(true));
+        assertTrue(download.isCancelled());
+        while (isRunning(pid)) {
+            assertTrue("The client is still running", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+        assertFalse(isRunning(pid));
+    }
+
+    /**
+     * This tests that small transfers of a batch share s3cmd processes, and that each still gets its own file
+     */
+    @Test
+    public void pipelineSmallTransfers() throws Exception {
+        Path log = directory.resolve("s3cmd.log");
+        Path client = directory.resolve("s3cmd");
+        // A client that logs its verb and number of arguments, lists six small objects, and writes every object it gets
+        Files.write(client, ("#!/bin/sh\n"
+                + "echo \"$3 $#\" >> " + log + "\n"
+                + "case \"$3\" in\n"
+                + "  ls) for i in 0 1 2 3 4 5; do echo \"2018-01-15 19:31         5   ${4}file$i.txt\"; done;;\n"
+                + "  get) shift 3; sources=''; destination=''\n"
+                + "    for a in \"$@\"; do case \"$a\" in --*) ;; *) sources=\"$sources $destination\"; destination=\"$a\";; esac; done\n"
+                + "    for s in $sources; do printf hello > \"$destination$(basename $s)\"; done;;\n"
+                + "esac\n").getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(client, PosixFilePermissions.fromString("rwx------"));
+        config.put("client", client.toString());
+        config.put("batch-workers", "6");
+        config.put("pipeline-linger-ms", "10000");
+        config.put("pipeline-max-batch", "6");
+        List<TransferRequest> downloads = new ArrayList<>();
+        List<TransferRequest> uploads = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            downloads.add(new TransferRequest("s3cmd://bucket/dir/file" + i + ".txt", directory.resolve("out/file" + i + ".txt")));
+            uploads.add(new TransferRequest("s3cmd://bucket/copy/file" + i + ".txt", directory.resolve("out/file" + i + ".txt")));
+        }
+        for (TransferResult result : provision.downloadFrom(downloads)) {
+            assertTrue(result.isSuccess());
+        }
+        for (int i = 0; i < 6; i++) {
+            assertEquals("hello", new String(Files.readAllBytes(directory.resolve("out/file" + i + ".txt")), StandardCharsets.UTF_8));
+        }
+        for (TransferResult result : provision.uploadTo(uploads)) {
+            assertTrue(result.isSuccess());
+        }
+        List<String> commands = Files.readAllLines(log, StandardCharsets.UTF_8);
+        // One listing, one get of six objects into out/, one bucket check and one put of six files into copy/
+        assertEquals(Arrays.asList("ls 4", "get 11", "info 4", "put 10"), commands);
+    }
+
+    /**
+     * This tests that a stream that fails part way through fails its upload, rather than s3cmd storing what it read before the failure
+     */
+    @Test
+    public void failingStreamFailsUpload() throws Exception {
+        Path stored = directory.resolve("stored.bin");
+        Path client = directory.resolve("s3cmd");
+        Path arguments = directory.resolve("arguments");
+        // A client that stores whatever it reads from stdin, and succeeds once stdin ends
+        Files.write(client, ("#!/bin/sh\n"
+                + "case \"$3\" in\n"
+                + "  put) echo \"$@\" > " + arguments + "; cat > " + stored + ";;\n"
+                + "esac\n").getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(client, PosixFilePermissions.fromString("rwx------"));
+        config.put("client", client.toString());
+        InputStream source = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (count == 10) {
+                    throw new IOException("The producer failed");
+                }
+                return count++;
+            }
+        };
+        assertFalse(provision.uploadTo("s3cmd://bucket/streamed.bin", source));
+        assertTrue(provision.uploadTo("s3cmd://bucket/streamed.bin", new ByteArrayInputStream(new byte[10])));
+        assertEquals(10, Files.size(stored));
+        // Parts of half the default streaming memory, since s3cmd cannot grow them
+        assertTrue(new String(Files.readAllBytes(arguments), StandardCharsets.UTF_8).contains("--multipart-chunk-size-mb=256"));
+    }
+
+    private static boolean isRunning(String pid) throws Exception {
+        return new ProcessBuilder("kill", "-0", pid).start().waitFor() == 0;
+    }
+}
@@ -1,5 +1,8 @@
 package io.dockstore.provision;
 
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -30,4 +33,81 @@ public class S3CmdPluginHelperTest {
         assertFalse(S3CmdPluginHelper.nextLinesRequireCarriageReturn(line));
     }
 
+    @Test
+    public void splitCommand() throws Exception {
+        String[] split = S3CmdPluginHelper.splitCommand("/usr/bin/s3cmd -c /home/user/.s3cfg put my%32file.txt s3://bucket/");
+        assertEquals(6, split.length);
+        assertEquals("put", split[3]);
+        assertEquals("my file.txt", split[4]);
+    }
+
+    @Test
+    public void parseObjectInfo() throws Exception {
+        List<String> lines = Arrays.asList("s3://dockstore.temp/thing2.txt (object):", "   File size: 33",
+                "   Last mod:  Mon, 15 Jan 2018 19:31:06 GMT", "   MIME type: text/plain", "   Storage:   STANDARD",
+                "   MD5 sum:   0d3b2a4e8a0d6cbb1c1a6fa3e5fbb1ea", "   SSE:       none");
+        RemoteObject remoteObject = S3CmdPluginHelper.parseObjectInfo("s3://dockstore.temp/thing2.txt", lines);
+        assertEquals(33, remoteObject.getSize());
+        assertEquals("0d3b2a4e8a0d6cbb1c1a6fa3e5fbb1ea", remoteObject.getEtag());
+        lines = Arrays.asList("s3://dockstore.temp/ (bucket):", "   Location:  us-east-1");
+        assertNull(S3CmdPluginHelper.parseObjectInfo("s3://dockstore.temp/", lines));
+    }
+
+    @Test
+    public void parseListing() throws Exception {
+        List<String> lines = Arrays.asList("                       DIR   s3://dockstore.temp/dir/",
+                "2018-01-15 19:31        33   s3://dockstore.temp/thing2.txt",
+                "2018-01-15 19:31  16777216   3c3c6f0d2d1b8f7e9bda2e1e0de6aa43-2  s3://dockstore.temp/file with spaces.bam");
+        List<RemoteObject> objects = S3CmdPluginHelper.parseListing(lines);
+        assertEquals(2, objects.size());
+        assertEquals("s3://dockstore.temp/thing2.txt", objects.get(0).getUrl());
+        assertEquals(33, objects.get(0).getSize());
+        assertNull(objects.get(0).getEtag());
+        assertEquals("file with spaces.bam", objects.get(1).getKey());
+        assertEquals("3c3c6f0d2d1b8f7e9bda2e1e0de6aa43-2", objects.get(1).getEtag());
+    }
+
+    @Test
+    public void streamingPartSizeGrows() throws Exception {
+        assertEquals(15L * 1024 * 1024, S3CmdPluginHelper.getStreamingPartSizeInBytes(1));
+        assertEquals(15L * 1024 * 1024, S3CmdPluginHelper.getStreamingPartSizeInBytes(1000));
+        assertEquals(30L * 1024 * 1024, S3CmdPluginHelper.getStreamingPartSizeInBytes(1001));
+        assertEquals(5L * 1024 * 1024 * 1024, S3CmdPluginHelper.getStreamingPartSizeInBytes(10000));
+        long total = 0;
+        for (int partNumber = 1; partNumber <= S3CmdPluginHelper.getMaxParts(); partNumber++) {
+            total += S3CmdPluginHelper.getStreamingPartSizeInBytes(partNumber);
+        }
+        // The largest object S3 allows fits in the parts
+        assertTrue(total > 5L * 1024 * 1024 * 1024 * 1024);
+    }
+
+    @Test
+    public void adaptiveChunkSize() throws Exception {
+        long mb = 1024 * 1024;
+        // Without measurements, and for a slow link, the getChunkSize rule stands
+        assertEquals(15 * mb, S3CmdPluginHelper.getAdaptiveChunkSizeInBytes(10000 * mb, 0, 0));
+        assertEquals(15 * mb, S3CmdPluginHelper.getAdaptiveChunkSizeInBytes(10000 * mb, mb, 0));
+        assertEquals(16 * mb, S3CmdPluginHelper.getAdaptiveChunkSizeInBytes(150000000001L, mb, 0));
+        // A fast link wants parts of up to 1.9 seconds (so the 100 ms overhead is 5%), 190 MB at 100 MB/s
+        assertEquals(120 * mb, S3CmdPluginHelper.getAdaptiveChunkSizeInBytes(10000 * mb, 100 * mb, 0));
+        // Failures cap the part size, and so does the file size
+        assertEquals(15 * mb, S3CmdPluginHelper.getAdaptiveChunkSizeInBytes(10000 * mb, 100 * mb, 1));
+        assertEquals(30 * mb, S3CmdPluginHelper.getAdaptiveChunkSizeInBytes(40 * mb, 100 * mb, 0));
+        // Parts stay under the 5 GB limit
+        assertEquals(4000 * mb, S3CmdPluginHelper.getAdaptiveChunkSizeInBytes(5000000000000L, 1e12, 0));
+    }
+
+    @Test
+    public void chunkSizeForPartCount() throws Exception {
+        long mb = 1024 * 1024;
+        for (double bytesPerSecond : new double[] { 0, mb, 50 * mb, 100 * mb, 1e12 }) {
+            for (long size : new long[] { 40 * mb, 10000 * mb, 150000000001L }) {
+                long chunkSize = S3CmdPluginHelper.getAdaptiveChunkSizeInBytes(size, bytesPerSecond, 0);
+                assertEquals(chunkSize, S3CmdPluginHelper.getChunkSizeForPartCount(size, EtagDigest.getPartCount(size, chunkSize)));
+            }
+        }
+        assertEquals(" --multipart-chunk-size-mb=120", S3CmdPluginHelper.getChunkSizeOption(120 * mb));
+        assertEquals("", S3CmdPluginHelper.getChunkSizeOption(15 * mb));
+    }
+
 }
@@ -0,0 +1,333 @@
+package io.dockstore.provision;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the provisioning round trips with the native transport against a local stub S3 server, so no s3cmd is needed
+ *
+ * @since 18/10/26
+ */
+public class S3CmdPluginNativeTest {
+    private StubS3Server server;
+    private Path directory;
+    private S3CmdPlugin.S3CmdProvision provision;
+    private Map<String, String> config;
+
+    @Before
+    public void before() throws Exception {
+        server = new StubS3Server();
+        directory = Files.createTempDirectory("native-provision");
+        config = new HashMap<>();
+        config.put("client", "/does/not/exist/s3cmd");
+        config.put("config-file-location", server.writeConfig(directory).toString());
+        config.put("verbosity", "Minimal");
+        config.put("transport", "native");
+        provision = new S3CmdPlugin.S3CmdProvision();
+        provision.setConfiguration(config);
+        Files.createDirectories(directory.resolve("inputFilesDirectory"));
+        Files.write(directory.resolve("inputFilesDirectory/file.txt"), "file".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("inputFilesDirectory/file2.txt"), "file2".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void after() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void uploadFileToFile() throws Exception {
+        assertTrue(provision.uploadTo("s3cmd://native-bucket1/file2.txt", directory.resolve("inputFilesDirectory/file.txt"), null));
+        Path destination = directory.resolve("outputFilesDirectory1/file3.txt");
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket1/file2.txt", destination));
+        assertEquals("file", new String(Files.readAllBytes(destination), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void uploadFileToDirectory() throws Exception {
+        assertTrue(provision.uploadTo("s3cmd://native-bucket2/", directory.resolve("inputFilesDirectory/file.txt"), null));
+        assertArrayEquals("file".getBytes(StandardCharsets.UTF_8), server.getObject("native-bucket2", "file.txt"));
+    }
+
+    @Test
+    public void uploadDirectoryToDirectory() throws Exception {
+        assertTrue(provision.uploadTo("s3cmd://native-bucket3/", directory.resolve("inputFilesDirectory"), null));
+        assertArrayEquals("file2".getBytes(StandardCharsets.UTF_8), server.getObject("native-bucket3", "inputFilesDirectory/file2.txt"));
+        Path destination = directory.resolve("outputFilesDirectory3");
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket3/inputFilesDirectory/", destination));
+        assertEquals("file", new String(Files.readAllBytes(destination.resolve("file.txt")), StandardCharsets.UTF_8));
+        assertEquals("file2", new String(Files.readAllBytes(destination.resolve("file2.txt")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void parallelDownload() throws Exception {
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new java.util.Random(7).nextBytes(content);
+        server.putObject("native-bucket4", "large.bin", content);
+        config.put("download-concurrency", "4");
+        config.put("download-part-size-mb", "1");
+        config.put("parallel-download-threshold-mb", "1");
+        Path destination = directory.resolve("large.bin");
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket4/large.bin", destination));
+        assertArrayEquals(content, Files.readAllBytes(destination));
+    }
+
+    /**
+     * This tests that a presigned url the endpoint rejects falls back to a single stream download instead of failing it
+     */
+    @Test
+    public void parallelDownloadRejectedUrl() throws Exception {
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new java.util.Random(13).nextBytes(content);
+        server.putObject("native-bucket19", "large.bin", content);
+        server.setRejectPresignedUrls(true);
+        config.put("download-concurrency", "4");
+        config.put("download-part-size-mb", "1");
+        config.put("parallel-download-threshold-mb", "1");
+        config.put("resume-transfers", "true");
+        Path destination = directory.resolve("rejected/large.bin");
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket19/large.bin", destination));
+        assertArrayEquals(content, Files.readAllBytes(destination));
+        assertNull(TransferJournal.load(destination));
+    }
+
+    @Test
+    public void fanOutDirectoryDownload() throws Exception {
+        server.putObject("native-bucket12", "dir/large.bin", new byte[2048]);
+        server.putObject("native-bucket12", "dir/nested/deeper/small.txt", "small".getBytes(StandardCharsets.UTF_8));
+        server.putObject("native-bucket12", "dir/nested/", new byte[0]);
+        server.putObject("native-bucket12", "dir/empty.txt", new byte[0]);
+        config.put("recursive-download-workers", "3");
+        Path destination = directory.resolve("fanOut");
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket12/dir/", destination));
+        assertEquals(2048, Files.size(destination.resolve("large.bin")));
+        assertEquals("small", new String(Files.readAllBytes(destination.resolve("nested/deeper/small.txt")), StandardCharsets.UTF_8));
+        assertEquals(0, Files.size(destination.resolve("empty.txt")));
+    }
+
+    @Test
+    public void governedBatchUpload() throws Exception {
+        config.put("governor-directory", directory.resolve("governor").toString());
+        config.put("max-concurrent-transfers", "2");
+        config.put("max-bandwidth-mb-per-second", "10");
+        List<TransferRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Path file = directory.resolve("governed" + i + ".bin");
+            Files.write(file, new byte[1024 * 1024]);
+            requests.add(new TransferRequest("s3cmd://native-bucket13/governed" + i + ".bin", file));
+        }
+        config.put("batch-workers", "5");
+        for (TransferResult result : provision.uploadTo(requests)) {
+            assertTrue(result.isSuccess());
+        }
+        assertEquals(1024 * 1024, server.getObject("native-bucket13", "governed4.bin").length);
+    }
+
+    @Test
+    public void uploadStream() throws Exception {
+        config.put("verify-integrity", "true");
+        byte[] content = "streamed".getBytes(StandardCharsets.UTF_8);
+        assertTrue(provision.uploadTo("s3cmd://native-bucket14/dir/streamed.txt", new ByteArrayInputStream(content)));
+        assertArrayEquals(content, server.getObject("native-bucket14", "dir/streamed.txt"));
+        assertFalse(provision.uploadTo("s3cmd://native-bucket14/dir/", new ByteArrayInputStream(content)));
+    }
+
+    @Test
+    public void copyUnchangedInput() throws Exception {
+        config.put("verify-integrity", "true");
+        config.put("server-side-copy", "true");
+        server.putObject("native-bucket15", "inputs/reference.fa", "ACGT".getBytes(StandardCharsets.UTF_8));
+        Path input = directory.resolve("inputs/reference.fa");
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket15/inputs/reference.fa", input));
+        // The ETag is remembered from the download, so the upload does not have to hash the file
+        assertEquals(server.getEtag("native-bucket15", "inputs/reference.fa"),
+                DownloadProvenance.getInstance().lookup(config.get("config-file-location"), input).get().getEtag());
+        // Tools usually see their inputs through symlinks
+        Path output = Files.createSymbolicLink(directory.resolve("reference-link.fa"), input);
+        assertTrue(provision.uploadTo("s3cmd://native-bucket15/outputs/", output, null));
+        assertEquals(1, server.getCopyCount());
+        assertArrayEquals("ACGT".getBytes(StandardCharsets.UTF_8), server.getObject("native-bucket15", "outputs/reference-link.fa"));
+
+        Files.write(input, "TTTT".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(input, FileTime.fromMillis(Files.getLastModifiedTime(input).toMillis() + 1000));
+        assertTrue(provision.uploadTo("s3cmd://native-bucket15/outputs/changed.fa", output, null));
+        assertEquals(1, server.getCopyCount());
+        assertArrayEquals("TTTT".getBytes(StandardCharsets.UTF_8), server.getObject("native-bucket15", "outputs/changed.fa"));
+    }
+
+    @Test
+    public void batchDownload() throws Exception {
+        List<TransferRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            server.putObject("native-bucket5", "dir/file" + i, new byte[i * 100]);
+            requests.add(new TransferRequest("s3cmd://native-bucket5/dir/file" + i, directory.resolve("batch/file" + i)));
+        }
+        requests.add(new TransferRequest("s3cmd://native-bucket5/dir/missing", directory.resolve("batch/missing")));
+        config.put("batch-workers", "3");
+        List<TransferResult> results = provision.downloadFrom(requests);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(results.get(i).isSuccess());
+            assertEquals(i * 100, Files.size(directory.resolve("batch/file" + i)));
+        }
+        assertFalse(results.get(5).isSuccess());
+    }
+
+    @Test
+    public void objectCache() throws Exception {
+        server.putObject("native-bucket6", "reference.fa", "ACGT".getBytes(StandardCharsets.UTF_8));
+        config.put("cache-directory", directory.resolve("cache").toString());
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket6/reference.fa", directory.resolve("run1/reference.fa")));
+        int requests = server.getRequestCount();
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket6/reference.fa", directory.resolve("run2/reference.fa")));
+        // Only the metadata check goes to the server on a hit
+        assertEquals(requests + 1, server.getRequestCount());
+        assertEquals("ACGT", new String(Files.readAllBytes(directory.resolve("run2/reference.fa")), StandardCharsets.UTF_8));
+        server.putObject("native-bucket6", "reference.fa", "TGCA".getBytes(StandardCharsets.UTF_8));
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket6/reference.fa", directory.resolve("run3/reference.fa")));
+        assertEquals("TGCA", new String(Files.readAllBytes(directory.resolve("run3/reference.fa")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void metricsFile() throws Exception {
+        Path metricsFile = directory.resolve("metrics.json");
+        config.put("metrics-file", metricsFile.toString());
+        TransferMetrics metrics = TransferMetrics.getInstance();
+        long uploadBytes = metrics.getUploadBytes();
+        long downloads = metrics.getDownloadCount();
+        assertTrue(provision.uploadTo("s3cmd://native-bucket7/file.txt", directory.resolve("inputFilesDirectory/file.txt"), null));
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket7/file.txt", directory.resolve("metrics/file.txt")));
+        assertEquals(uploadBytes + "file".length(), metrics.getUploadBytes());
+        assertEquals(downloads + 1, metrics.getDownloadCount());
+        assertTrue(new String(Files.readAllBytes(metricsFile), StandardCharsets.UTF_8).contains("\"downloads\""));
+    }
+
+    @Test
+    public void incrementalUpload() throws Exception {
+        config.put("upload-manifest-directory", directory.resolve("manifests").toString());
+        Path source = directory.resolve("inputFilesDirectory");
+        Files.createDirectories(source.resolve("nested"));
+        Files.write(source.resolve("nested/file3.txt"), "file3".getBytes(StandardCharsets.UTF_8));
+        assertTrue(provision.uploadTo("s3cmd://native-bucket8/results/", source, null));
+        assertArrayEquals("file3".getBytes(StandardCharsets.UTF_8), server.getObject("native-bucket8", "results/inputFilesDirectory/nested/file3.txt"));
+
+        // Nothing changed, so only the listing goes to the server
+        int requests = server.getRequestCount();
+        assertTrue(provision.uploadTo("s3cmd://native-bucket8/results/", source, null));
+        assertTrue(server.getRequestCount() - requests <= 2);
+
+        // A changed file, a file missing remotely and a remote object with the wrong content are uploaded again
+        Files.write(source.resolve("file.txt"), "changed".getBytes(StandardCharsets.UTF_8));
+        server.deleteObject("native-bucket8", "results/inputFilesDirectory/file2.txt");
+        server.putObject("native-bucket8", "results/inputFilesDirectory/nested/file3.txt", "FILE3".getBytes(StandardCharsets.UTF_8));
+        assertTrue(provision.uploadTo("s3cmd://native-bucket8/results/", source, null));
+        assertArrayEquals("changed".getBytes(StandardCharsets.UTF_8), server.getObject("native-bucket8", "results/inputFilesDirectory/file.txt"));
+        assertArrayEquals("file2".getBytes(StandardCharsets.UTF_8), server.getObject("native-bucket8", "results/inputFilesDirectory/file2.txt"));
+        assertArrayEquals("file3".getBytes(StandardCharsets.UTF_8), server.getObject("native-bucket8", "results/inputFilesDirectory/nested/file3.txt"));
+    }
+
+    @Test
+    public void verifyIntegrity() throws Exception {
+        config.put("verify-integrity", "true");
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new java.util.Random(11).nextBytes(content);
+        Path source = directory.resolve("large.bin");
+        Files.write(source, content);
+        assertTrue(provision.uploadTo("s3cmd://native-bucket9/large.bin", source, null));
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket9/large.bin", directory.resolve("verified/large.bin")));
+
+        server.putObject("native-bucket9", "corrupt.bin", content, StubS3Server.md5(new byte[1]));
+        Path destination = directory.resolve("verified/corrupt.bin");
+        try {
+            provision.downloadFrom("s3cmd://native-bucket9/corrupt.bin", destination);
+            fail("The corrupt object should not pass verification");
+        } catch (IntegrityVerificationException e) {
+            assertEquals("s3://native-bucket9/corrupt.bin", e.getUrl());
+        }
+        assertFalse(Files.exists(destination));
+    }
+
+    /**
+     * This tests that a fast link recorded in the history gives larger parts, which still verify
+     */
+    @Test
+    public void adaptiveChunkSize() throws Exception {
+        Path historyFile = directory.resolve("history.json");
+        config.put("transfer-history-file", historyFile.toString());
+        config.put("verify-integrity", "true");
+        TransferHistory history = TransferHistory.getInstance(historyFile);
+        for (int i = 0; i < 3; i++) {
+            history.record(config.get("config-file-location"), 1024L * 1024 * 1024, 1000, 1, 0, true);
+        }
+        Path source = directory.resolve("adaptive.bin");
+        Files.write(source, new byte[31 * 1024 * 1024]);
+        int parts = server.getPartUploadCount();
+        assertTrue(provision.uploadTo("s3cmd://native-bucket16/adaptive.bin", source, null));
+        // Two 30 MB parts rather than three 15 MB ones
+        assertEquals(2, server.getPartUploadCount() - parts);
+        assertTrue(server.getEtag("native-bucket16", "adaptive.bin").endsWith("-2"));
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket16/adaptive.bin", directory.resolve("adaptive/adaptive.bin")));
+    }
+
+    /**
+     * This tests that downloads from a prefix that was already listed do not list it again, and that a directory named
+     * without its trailing slash is downloaded as a directory
+     */
+    @Test
+    public void prefixIndex() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            server.putObject("native-bucket17", "inputs/file" + i + ".txt", ("file" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        server.putObject("native-bucket17", "inputs/sample/reads.txt", "reads".getBytes(StandardCharsets.UTF_8));
+        config.put("recursive-download-workers", "2");
+        config.put("prefix-index-ttl", "60");
+        int requests = server.getRequestCount();
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket17/inputs/", directory.resolve("index1")));
+        // One listing (three pages of two objects) and the six downloads
+        assertEquals(requests + 3 + 6, server.getRequestCount());
+        requests = server.getRequestCount();
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket17/inputs/", directory.resolve("index2")));
+        assertEquals(requests + 6, server.getRequestCount());
+        Path destination = directory.resolve("index3");
+        Files.createDirectories(destination);
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket17/inputs/sample", destination));
+        assertEquals("reads", new String(Files.readAllBytes(destination.resolve("reads.txt")), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * This tests that an object overwritten while its listing is still in the prefix index is not served from the object
+     * cache, since the index only hints at which objects exist
+     */
+    @Test
+    public void prefixIndexOverwrittenObject() throws Exception {
+        server.putObject("native-bucket18", "inputs/reference.fa", "ACGT".getBytes(StandardCharsets.UTF_8));
+        config.put("cache-directory", directory.resolve("cache").toString());
+        config.put("recursive-download-workers", "2");
+        config.put("verify-integrity", "true");
+        config.put("prefix-index-ttl", "60");
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket18/inputs/", directory.resolve("run1")));
+        assertEquals("ACGT", new String(Files.readAllBytes(directory.resolve("run1/reference.fa")), StandardCharsets.UTF_8));
+        server.putObject("native-bucket18", "inputs/reference.fa", "TGCATGCA".getBytes(StandardCharsets.UTF_8));
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket18/inputs/", directory.resolve("run2")));
+        assertEquals("TGCATGCA", new String(Files.readAllBytes(directory.resolve("run2/reference.fa")), StandardCharsets.UTF_8));
+        assertTrue(provision.downloadFrom("s3cmd://native-bucket18/inputs/reference.fa", directory.resolve("run3.fa")));
+        assertEquals("TGCATGCA", new String(Files.readAllBytes(directory.resolve("run3.fa")), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,113 @@
+package io.dockstore.provision;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class S3CmdProgressParserTest {
+    private final List<String> messages = new ArrayList<>();
+    private final List<ProgressEvent> events = new ArrayList<>();
+    private final ProgressListener recorder = new ProgressListener() {
+        @Override
+        public void onMessage(String line) {
+            messages.add(line);
+        }
+
+        @Override
+        public void onProgress(ProgressEvent event) {
+            events.add(event);
+        }
+    };
+
+    private void parse(String output, long intervalMillis, AtomicLong clock) throws Exception {
+        new S3CmdProgressParser(recorder, intervalMillis, clock::get).parse(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * This tests that messages and progress lines are told apart and the progress fields are extracted
+     */
+    @Test
+    public void parseDownload() throws Exception {
+        String output = "download: 's3://dockstore.temp/thing2.txt' -> '/tmp/thing2.txt'  [1 of 1]\n"
+                + "\r 1048576 of 10485760    10% in    1s   900.00 kB/s\r 10485760 of 10485760   100% in    9s     1.10 MB/s  done\n"
+                + "WARNING: something else\n";
+        parse(output, 0, new AtomicLong());
+        assertEquals(2, messages.size());
+        assertEquals("WARNING: something else", messages.get(1));
+        assertEquals(2, events.size());
+        ProgressEvent first = events.get(0);
+        assertEquals(1048576, first.getBytesDone());
+        assertEquals(10485760, first.getBytesTotal());
+        assertEquals(1, first.getElapsedSeconds());
+        assertEquals(900 * 1024, first.getBytesPerSecond(), 0.01);
+        assertEquals(10, first.getPercent());
+        assertFalse(first.isDone());
+        assertTrue(events.get(1).isDone());
+        assertEquals(1.1 * 1024 * 1024, events.get(1).getBytesPerSecond(), 1);
+    }
+
+    /**
+     * This tests that multipart headers set the part number of the following progress updates
+     */
+    @Test
+    public void parseUploadParts() throws Exception {
+        String output = "upload: 'big.bam' -> 's3://bucket/big.bam'  [part 2 of 5, 15MB] [1 of 1]\r\n"
+                + " 15728640 of 15728640   100% in    2s     7.50 MB/s  done\r\n";
+        parse(output, 0, new AtomicLong());
+        assertEquals(1, messages.size());
+        assertEquals(1, events.size());
+        assertEquals(2, events.get(0).getPartNumber());
+        assertEquals(5, events.get(0).getPartCount());
+    }
+
+    /**
+     * This tests that progress updates are limited to one per interval but the final update is always published
+     */
+    @Test
+    public void rateLimited() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        StringBuilder output = new StringBuilder("download: 's3://bucket/file' -> 'file'  [1 of 1]\n");
+        for (int i = 1; i < 100; i++) {
+            output.append('\r').append(i).append(" of 100   ").append(i).append("% in    1s     1.00 B/s");
+        }
+        output.append("\r100 of 100   100% in    1s     1.00 B/s  done\n");
+        S3CmdProgressParser parser = new S3CmdProgressParser(recorder, 1000, clock::get);
+        byte[] bytes = output.toString().getBytes(StandardCharsets.UTF_8);
+        // Feed the output in small pieces while time moves forward 100ms per piece
+        for (int offset = 0; offset < bytes.length; offset += 100) {
+            parser.feed(bytes, offset, Math.min(100, bytes.length - offset));
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        assertTrue("got " + events.size(), events.size() < 10);
+        assertTrue(events.get(events.size() - 1).isDone());
+    }
+
+    /**
+     * This tests that the console rendering redraws progress in place and ends the line before the next message
+     */
+    @Test
+    public void consoleRendering() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ConsoleProgressListener console = new ConsoleProgressListener(new PrintStream(bytes, true, "UTF-8"));
+        String output = "download: 's3://bucket/file' -> 'file'  [1 of 1]\n\r 33 of 33   100% in    0s    95.46 B/s  done";
+        new S3CmdProgressParser(console, 0).parse(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+        String rendered = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(rendered, rendered.startsWith("download: 's3://bucket/file' -> 'file'  [1 of 1]" + System.lineSeparator() + "\r"));
+        assertTrue(rendered, rendered.contains("33 of 33  100% in    0s     95.46 B/s  done"));
+        assertTrue(rendered, rendered.endsWith(System.lineSeparator()));
+    }
+}
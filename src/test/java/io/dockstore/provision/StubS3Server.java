@@ -0,0 +1,426 @@
+package io.dockstore.provision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small in-memory stand-in for an S3 endpoint used by the tests.
+ * It understands path-style bucket/object requests, byte ranges, multipart uploads, server-side copies and ListObjectsV2.
+ * Signatures are not verified, only the presence of credentials.
+ *
+ * @since 18/10/26
+ */
+class StubS3Server implements AutoCloseable {
+    private static final Pattern PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+    private static final int LIST_PAGE_SIZE = 2;
+
+    private final HttpServer server;
+    private final Map<String, SortedMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+    private final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger partUploadCount = new AtomicInteger();
+    private final AtomicInteger copyCount = new AtomicInteger();
+    private final Set<Integer> failingParts = ConcurrentHashMap.newKeySet();
+    private volatile long latencyMillis;
+    private volatile boolean rejectPresignedUrls;
+
+    StubS3Server() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    int getPartUploadCount() {
+        return partUploadCount.get();
+    }
+
+    /**
+     * @return The number of CopyObject and UploadPartCopy requests that copied something
+     */
+    int getCopyCount() {
+        return copyCount.get();
+    }
+
+    /**
+     * Makes the next upload of the multipart part fail with a 500 error
+     */
+    void failPartOnce(int partNumber) {
+        failingParts.add(partNumber);
+    }
+
+    /**
+     * Answers every presigned request with a 403 error, like an endpoint that does not accept the signature version
+     */
+    void setRejectPresignedUrls(boolean reject) {
+        rejectPresignedUrls = reject;
+    }
+
+    /**
+     * Delays every request, like the round trip to a remote endpoint
+     */
+    void setLatencyMillis(long millis) {
+        latencyMillis = millis;
+    }
+
+    /**
+     * Writes an s3cmd config file pointing at this server
+     *
+     * @param directory Where to write the config file
+     * @return The config file
+     */
+    Path writeConfig(Path directory) throws IOException {
+        Path config = directory.resolve(".s3cfg");
+        List<String> lines = new ArrayList<>();
+        lines.add("[default]");
+        lines.add("access_key = potato");
+        lines.add("secret_key = tomato");
+        lines.add("bucket_location = US");
+        lines.add("host_base = localhost:" + getPort());
+        lines.add("host_bucket = localhost:" + getPort());
+        lines.add("use_https = False");
+        Files.write(config, lines, StandardCharsets.UTF_8);
+        return config;
+    }
+
+    void putObject(String bucket, String key, byte[] content) {
+        putObject(bucket, key, content, md5(content));
+    }
+
+    /**
+     * Stores an object with the given ETag, which does not have to match the content
+     */
+    void putObject(String bucket, String key, byte[] content, String etag) {
+        buckets.computeIfAbsent(bucket, b -> new ConcurrentSkipListMap<>()).put(key, new StoredObject(content, etag));
+    }
+
+    byte[] getObject(String bucket, String key) {
+        SortedMap<String, StoredObject> objects = buckets.get(bucket);
+        StoredObject object = objects == null ? null : objects.get(key);
+        return object == null ? null : object.content;
+    }
+
+    void deleteObject(String bucket, String key) {
+        buckets.get(bucket).remove(key);
+    }
+
+    String getEtag(String bucket, String key) {
+        return buckets.get(bucket).get(key).etag;
+    }
+
+    boolean hasBucket(String bucket) {
+        return buckets.containsKey(bucket);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            String rawQuery = exchange.getRequestURI().getRawQuery();
+            Map<String, String> query = parseQuery(rawQuery);
+            if (authorization == null && (!query.containsKey("X-Amz-Signature") || rejectPresignedUrls)) {
+                send(exchange, 403, error("AccessDenied"));
+                return;
+            }
+            String path = exchange.getRequestURI().getPath().substring(1);
+            int slash = path.indexOf('/');
+            String bucket = slash < 0 ? path : path.substring(0, slash);
+            String key = slash < 0 ? "" : path.substring(slash + 1);
+            String method = exchange.getRequestMethod();
+            if (key.isEmpty()) {
+                handleBucket(exchange, method, bucket, query);
+            } else {
+                handleObject(exchange, method, bucket, key, query);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleBucket(HttpExchange exchange, String method, String bucket, Map<String, String> query) throws IOException {
+        SortedMap<String, StoredObject> objects = buckets.get(bucket);
+        if ("PUT".equals(method)) {
+            readBody(exchange);
+            buckets.putIfAbsent(bucket, new ConcurrentSkipListMap<>());
+            send(exchange, 200, new byte[0]);
+        } else if (objects == null) {
+            send(exchange, 404, "HEAD".equals(method) ? null : error("NoSuchBucket"));
+        } else if ("HEAD".equals(method)) {
+            send(exchange, 200, null);
+        } else {
+            String prefix = query.getOrDefault("prefix", "");
+            String after = query.getOrDefault("continuation-token", "");
+            StringBuilder body = new StringBuilder("<ListBucketResult>");
+            int count = 0;
+            String last = null;
+            boolean truncated = false;
+            for (Map.Entry<String, StoredObject> entry : objects.tailMap(after + "\0").entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    continue;
+                }
+                if (count == LIST_PAGE_SIZE) {
+                    truncated = true;
+                    break;
+                }
+                body.append("<Contents><Key>").append(entry.getKey()).append("</Key><Size>").append(entry.getValue().content.length)
+                        .append("</Size><ETag>\"").append(entry.getValue().etag).append("\"</ETag></Contents>");
+                last = entry.getKey();
+                count++;
+            }
+            body.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+            if (truncated) {
+                body.append("<NextContinuationToken>").append(last).append("</NextContinuationToken>");
+            }
+            body.append("</ListBucketResult>");
+            send(exchange, 200, body.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void handleObject(HttpExchange exchange, String method, String bucket, String key, Map<String, String> query)
+            throws IOException {
+        SortedMap<String, StoredObject> objects = buckets.get(bucket);
+        if (objects == null) {
+            readBody(exchange);
+            send(exchange, 404, "HEAD".equals(method) ? null : error("NoSuchBucket"));
+            return;
+        }
+        if ("POST".equals(method) && query.containsKey("uploads")) {
+            String uploadId = "upload-" + uploadIds.incrementAndGet();
+            uploads.put(uploadId, new ConcurrentSkipListMap<>());
+            send(exchange, 200, ("<InitiateMultipartUploadResult><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>")
+                    .getBytes(StandardCharsets.UTF_8));
+        } else if ("PUT".equals(method) && query.containsKey("uploadId")) {
+            byte[] content = readBody(exchange);
+            String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+            if (copySource != null) {
+                content = readCopySource(exchange, copySource);
+                if (content == null) {
+                    return;
+                }
+            }
+            int partNumber = Integer.parseInt(query.get("partNumber"));
+            if (failingParts.remove(partNumber)) {
+                send(exchange, 500, error("InternalError"));
+                return;
+            }
+            SortedMap<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+            if (parts == null) {
+                send(exchange, 404, error("NoSuchUpload"));
+                return;
+            }
+            partUploadCount.incrementAndGet();
+            parts.put(partNumber, content);
+            if (copySource != null) {
+                send(exchange, 200, ("<CopyPartResult><ETag>\"" + md5(content) + "\"</ETag></CopyPartResult>").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            exchange.getResponseHeaders().set("ETag", "\"" + md5(content) + "\"");
+            send(exchange, 200, new byte[0]);
+        } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+            String request = new String(readBody(exchange), StandardCharsets.UTF_8);
+            SortedMap<Integer, byte[]> parts = uploads.remove(query.get("uploadId"));
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            ByteArrayOutputStream digests = new ByteArrayOutputStream();
+            Matcher matcher = PART.matcher(request);
+            int partCount = 0;
+            while (matcher.find()) {
+                byte[] part = parts.get(Integer.parseInt(matcher.group(1)));
+                content.write(part);
+                digests.write(md5Bytes(part));
+                partCount++;
+            }
+            String etag = md5(digests.toByteArray()) + "-" + partCount;
+            objects.put(key, new StoredObject(content.toByteArray(), etag));
+            send(exchange, 200, ("<CompleteMultipartUploadResult><ETag>\"" + etag + "\"</ETag></CompleteMultipartUploadResult>")
+                    .getBytes(StandardCharsets.UTF_8));
+        } else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+            uploads.remove(query.get("uploadId"));
+            send(exchange, 204, null);
+        } else if ("PUT".equals(method) && exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+            readBody(exchange);
+            byte[] content = readCopySource(exchange, exchange.getRequestHeaders().getFirst("x-amz-copy-source"));
+            if (content == null) {
+                return;
+            }
+            String etag = md5(content);
+            objects.put(key, new StoredObject(content, etag));
+            send(exchange, 200, ("<CopyObjectResult><ETag>\"" + etag + "\"</ETag></CopyObjectResult>").getBytes(StandardCharsets.UTF_8));
+        } else if ("PUT".equals(method)) {
+            byte[] content = readBody(exchange);
+            String etag = md5(content);
+            objects.put(key, new StoredObject(content, etag));
+            exchange.getResponseHeaders().set("ETag", "\"" + etag + "\"");
+            send(exchange, 200, new byte[0]);
+        } else {
+            StoredObject object = objects.get(key);
+            if (object == null) {
+                send(exchange, 404, "HEAD".equals(method) ? null : error("NoSuchKey"));
+                return;
+            }
+            exchange.getResponseHeaders().set("ETag", "\"" + object.etag + "\"");
+            if ("HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Content-Length", Integer.toString(object.content.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+            if (ifMatch != null && !ifMatch.equals("\"" + object.etag + "\"")) {
+                send(exchange, 412, error("PreconditionFailed"));
+                return;
+            }
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null) {
+                send(exchange, 200, object.content);
+                return;
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            int start = Integer.parseInt(bounds[0]);
+            if (start >= object.content.length) {
+                send(exchange, 416, error("InvalidRange"));
+                return;
+            }
+            int end = bounds[1].isEmpty() ? object.content.length - 1 : Math.min(object.content.length - 1, Integer.parseInt(bounds[1]));
+            byte[] slice = new byte[end - start + 1];
+            System.arraycopy(object.content, start, slice, 0, slice.length);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + object.content.length);
+            send(exchange, 206, slice);
+        }
+    }
+
+    /**
+     * Reads the object (or the x-amz-copy-source-range of it) that a copy request names, or sends the error and returns null
+     */
+    private byte[] readCopySource(HttpExchange exchange, String copySource) throws IOException {
+        String source = URLDecoder.decode(copySource.replace("+", "%2B"), "UTF-8").substring(1);
+        int slash = source.indexOf('/');
+        SortedMap<String, StoredObject> sourceObjects = buckets.get(source.substring(0, slash));
+        StoredObject object = sourceObjects == null ? null : sourceObjects.get(source.substring(slash + 1));
+        if (object == null) {
+            send(exchange, 404, error("NoSuchKey"));
+            return null;
+        }
+        String ifMatch = exchange.getRequestHeaders().getFirst("x-amz-copy-source-if-match");
+        if (ifMatch != null && !ifMatch.equals("\"" + object.etag + "\"")) {
+            send(exchange, 412, error("PreconditionFailed"));
+            return null;
+        }
+        copyCount.incrementAndGet();
+        String range = exchange.getRequestHeaders().getFirst("x-amz-copy-source-range");
+        if (range == null) {
+            return object.content;
+        }
+        String[] bounds = range.substring("bytes=".length()).split("-");
+        return Arrays.copyOfRange(object.content, Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]) + 1);
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] error(String code) {
+        return ("<Error><Code>" + code + "</Code><Message>" + code + "</Message></Error>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return query;
+    }
+
+    static String md5(byte[] content) {
+        return SigV4Signer.hex(md5Bytes(content));
+    }
+
+    private static byte[] md5Bytes(byte[] content) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class StoredObject {
+        private final byte[] content;
+        private final String etag;
+
+        private StoredObject(byte[] content, String etag) {
+            this.content = content;
+            this.etag = etag;
+        }
+    }
+}
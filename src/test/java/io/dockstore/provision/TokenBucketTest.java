@@ -0,0 +1,38 @@
+package io.dockstore.provision;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class TokenBucketTest {
+
+    /**
+     * This tests that taking more than the rate allows waits for the difference
+     */
+    @Test
+    public void limitsRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(100000);
+        long start = System.nanoTime();
+        // The first second worth of bytes is already in the bucket
+        bucket.acquire(100000);
+        bucket.acquire(50000);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Took " + elapsedMillis + " ms", elapsedMillis >= 400 && elapsedMillis < 2000);
+    }
+
+    @Test
+    public void unlimited() throws Exception {
+        TokenBucket bucket = new TokenBucket(0);
+        long start = System.nanoTime();
+        bucket.acquire(Long.MAX_VALUE / 2);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+        bucket.setRate(1000);
+        assertEquals(1000, bucket.getRate());
+    }
+}
@@ -0,0 +1,123 @@
+package io.dockstore.provision;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class TransferGovernorTest {
+    private Path directory;
+
+    @Before
+    public void before() throws Exception {
+        directory = Files.createTempDirectory("governor");
+    }
+
+    /**
+     * This tests that no more than the maximum number of transfers hold a slot at once
+     */
+    @Test
+    public void limitsConcurrency() throws Exception {
+        TransferGovernor governor = TransferGovernor.getInstance(directory, 2, 0);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            Thread thread = new Thread(() -> {
+                try (TransferGovernor.Permit ignored = governor.acquire(0, "test")) {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(100);
+                    running.decrementAndGet();
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2, maxRunning.get());
+    }
+
+    /**
+     * This tests that a higher priority transfer gets the next slot ahead of one that was queued before it
+     */
+    @Test
+    public void priority() throws Exception {
+        TransferGovernor governor = TransferGovernor.getInstance(directory, 1, 0);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        TransferGovernor.Permit permit = governor.acquire(0, "running");
+        Thread low = waiter(governor, 0, "low", order);
+        awaitWaiter("wait_0_");
+        Thread high = waiter(governor, 10, "high", order);
+        awaitWaiter("wait_10_");
+        permit.close();
+        low.join();
+        high.join();
+        assertEquals(2, order.size());
+        assertEquals("high", order.get(0));
+    }
+
+    /**
+     * This tests that waiters left behind by a JVM that died do not block anyone
+     */
+    @Test
+    public void staleWaiter() throws Exception {
+        Path stale = Files.createFile(directory.resolve("wait_100_0000000000000_stale"));
+        TransferGovernor governor = TransferGovernor.getInstance(directory, 1, 0);
+        try (TransferGovernor.Permit ignored = governor.acquire(0, "test")) {
+            assertFalse(Files.exists(stale));
+        }
+    }
+
+    @Test
+    public void bandwidthShares() {
+        TransferGovernor governor = TransferGovernor.getInstance(directory, 4, 8000000);
+        assertEquals(2000000, governor.getProcessRateLimit());
+        // Without a slot limit, the bandwidth is still shared by a bounded number of transfers
+        assertEquals(8000000 / TransferGovernor.DEFAULT_BANDWIDTH_SLOTS,
+                TransferGovernor.getInstance(directory.resolve("other"), 0, 8000000).getProcessRateLimit());
+    }
+
+    private static Thread waiter(TransferGovernor governor, int priority, String name, List<String> order) {
+        Thread thread = new Thread(() -> {
+            try (TransferGovernor.Permit ignored = governor.acquire(priority, name)) {
+                order.add(name);
+                Thread.sleep(100);
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void awaitWaiter(String prefix) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try (Stream<Path> paths = Files.list(directory)) {
+                if (paths.anyMatch(path -> path.getFileName().toString().startsWith(prefix))) {
+                    return;
+                }
+            }
+            assertTrue("No waiter " + prefix, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
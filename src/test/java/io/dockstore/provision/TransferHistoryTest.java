@@ -0,0 +1,63 @@
+package io.dockstore.provision;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @since 18/10/26
+ */
+public class TransferHistoryTest {
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * This tests that the estimate is the median of the recent uploads, scaled by how many uploads shared the link
+     */
+    @Test
+    public void medianThroughput() throws Exception {
+        TransferHistory history = new TransferHistory(null);
+        assertEquals(0, history.getBytesPerSecond("endpoint", 1), 0);
+        history.record("endpoint", 100 * MB, 1000, 1, 0, true);
+        history.record("endpoint", 100 * MB, 10000, 1, 0, true);
+        history.record("endpoint", 100 * MB, 2000, 2, 0, true);
+        // Too small, failed, or for another endpoint
+        history.record("endpoint", MB, 1, 1, 0, true);
+        history.record("endpoint", 100 * MB, 1, 1, 0, false);
+        history.record("other", 100 * MB, 1, 1, 0, true);
+        assertEquals(100 * MB, history.getBytesPerSecond("endpoint", 1), 1);
+        assertEquals(25 * MB, history.getBytesPerSecond("endpoint", 4), 1);
+    }
+
+    @Test
+    public void failuresPerSecond() throws Exception {
+        TransferHistory history = new TransferHistory(null);
+        assertEquals(0, history.getFailuresPerSecond("endpoint"), 0);
+        history.record("endpoint", 100 * MB, 3000, 1, 2, true);
+        history.record("endpoint", 100 * MB, 1000, 1, 0, false);
+        assertEquals(0.75, history.getFailuresPerSecond("endpoint"), 0.001);
+    }
+
+    /**
+     * This tests that a later launcher starts from what an earlier one recorded, and that the history stays bounded
+     */
+    @Test
+    public void persistHistory() throws Exception {
+        Path file = Files.createTempDirectory("history").resolve("history.json");
+        TransferHistory history = new TransferHistory(file);
+        for (int i = 0; i < TransferHistory.MAX_SAMPLES + 5; i++) {
+            history.record("endpoint", 100 * MB, 1000, 1, 0, true);
+        }
+        try (TransferHistory.Upload upload = history.startUpload("endpoint")) {
+            assertEquals(1, upload.getConcurrency());
+        }
+        TransferHistory reloaded = new TransferHistory(file);
+        assertEquals(100 * MB, reloaded.getBytesPerSecond("endpoint", 1), 1);
+        String json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        assertEquals(TransferHistory.MAX_SAMPLES, new JsonParser().parse(json).getAsJsonArray().size());
+    }
+}
@@ -0,0 +1,50 @@
+package io.dockstore.provision;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class TransferJournalTest {
+    /**
+     * This tests that the finished parts and upload id survive a reload, as they would a JVM restart
+     */
+    @Test
+    public void resumeSameTransfer() throws Exception {
+        Path file = Files.createTempDirectory("journal").resolve("object.bin");
+        TransferJournal journal = TransferJournal.open(file, "s3://bucket/object.bin", null, 5000, 1000, 42);
+        assertFalse(journal.isResumed());
+        journal.setUploadId("upload-1");
+        journal.partDone(1, "etag-1");
+        journal.partDone(2, "etag-2");
+
+        TransferJournal resumed = TransferJournal.open(file, "s3://bucket/object.bin", null, 5000, 1000, 42);
+        assertTrue(resumed.isResumed());
+        assertEquals("upload-1", resumed.getUploadId());
+        assertEquals("etag-2", resumed.getPartEtag(2));
+        assertNull(resumed.getPartEtag(3));
+        resumed.delete();
+        assertNull(TransferJournal.load(file));
+    }
+
+    /**
+     * This tests that a journal for another version of the object or the file is replaced
+     */
+    @Test
+    public void discardChangedTransfer() throws Exception {
+        Path file = Files.createTempDirectory("journal").resolve("object.bin");
+        TransferJournal.open(file, "s3://bucket/object.bin", "etag", 5000, 1000, 0).partDone(1, "");
+        TransferJournal changed = TransferJournal.open(file, "s3://bucket/object.bin", "new-etag", 5000, 1000, 0);
+        assertFalse(changed.isResumed());
+        assertFalse(changed.isPartDone(1));
+        assertEquals("new-etag", TransferJournal.load(file).getEtag());
+    }
+}
@@ -0,0 +1,123 @@
+package io.dockstore.provision;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.management.ObjectName;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @since 18/10/26
+ */
+public class TransferMetricsTest {
+    /**
+     * This tests that transfers are counted and their throughput is derived from bytes and wall time
+     */
+    @Test
+    public void recordTransfers() {
+        TransferMetrics metrics = new TransferMetrics();
+        metrics.recordDownload(TimeUnit.SECONDS.toNanos(2), 4000, true);
+        metrics.recordDownload(TimeUnit.SECONDS.toNanos(2), 0, false);
+        metrics.recordUpload(TimeUnit.SECONDS.toNanos(1), 500, true);
+        assertEquals(2, metrics.getDownloadCount());
+        assertEquals(1, metrics.getDownloadFailures());
+        assertEquals(4000, metrics.getDownloadBytes());
+        assertEquals(1000, metrics.getDownloadBytesPerSecond(), 0.001);
+        assertEquals(500, metrics.getUploadBytesPerSecond(), 0.001);
+        metrics.reset();
+        assertEquals(0, metrics.getDownloadCount());
+        assertEquals(0, metrics.getDownloadBytesPerSecond(), 0);
+    }
+
+    /**
+     * This tests that exit codes are broken down the same way checkExitCode treats them
+     */
+    @Test
+    public void countExitCodes() {
+        TransferMetrics metrics = new TransferMetrics();
+        metrics.recordProcessSpawn(TimeUnit.MILLISECONDS.toNanos(4));
+        metrics.recordProcessSpawn(TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.recordCommand(1, 0);
+        metrics.recordCommand(1, 0);
+        metrics.recordCommand(1, 74);
+        metrics.recordCommand(1, 12);
+        assertEquals(2, metrics.getProcessCount());
+        assertEquals(3, metrics.getAverageProcessSpawnMillis(), 0.001);
+        assertEquals(4, metrics.getMaxProcessSpawnMillis(), 0.001);
+        Map<String, Long> exitCodes = metrics.getExitCodeCounts();
+        assertEquals(Long.valueOf(2), exitCodes.get("0 EX_OK (success)"));
+        assertEquals(Long.valueOf(1), exitCodes.get("74 EX_IOERR (failed)"));
+        assertEquals(Long.valueOf(1), exitCodes.get("12 (error)"));
+    }
+
+    /**
+     * This tests that the summary written to the metrics file is valid JSON
+     */
+    @Test
+    public void writeSummary() throws Exception {
+        TransferMetrics metrics = new TransferMetrics();
+        metrics.recordBucketCheck(TimeUnit.MILLISECONDS.toNanos(5), true);
+        metrics.recordCommand(1, 75);
+        Path file = Files.createTempDirectory("metrics").resolve("nested/summary.json");
+        metrics.writeSummary(file);
+        Map<?, ?> summary = new Gson().fromJson(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), Map.class);
+        assertEquals(1.0, ((Map<?, ?>)summary.get("bucketChecks")).get("count"));
+        assertEquals(1.0, ((Map<?, ?>)summary.get("exitCodes")).get("75 EX_TEMPFAIL (failed)"));
+        assertTrue(summary.containsKey("downloads"));
+    }
+
+    /**
+     * This tests that transfers writing the summary at the same time leave a complete file and no temporary files
+     */
+    @Test
+    public void writeSummaryConcurrently() throws Exception {
+        TransferMetrics metrics = new TransferMetrics();
+        Path directory = Files.createTempDirectory("metrics");
+        Path file = directory.resolve("summary.json");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            writers.add(executor.submit(() -> {
+                for (int j = 0; j < 50; j++) {
+                    metrics.recordDownload(1, 1, true);
+                    metrics.writeSummary(file);
+                }
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        Map<?, ?> summary = new Gson().fromJson(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), Map.class);
+        assertEquals(400.0, ((Map<?, ?>)summary.get("downloads")).get("count"));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    /**
+     * This tests that the shared instance can be read over JMX
+     */
+    @Test
+    public void registeredWithJmx() throws Exception {
+        TransferMetrics.getInstance();
+        ObjectName name = new ObjectName(TransferMetrics.OBJECT_NAME);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertTrue(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "DownloadCount") instanceof Long);
+    }
+}